@@ -7,6 +7,7 @@ import java.io.ObjectOutput;
 import java.lang.foreign.AddressLayout;
 import java.lang.foreign.Arena;
 import java.lang.foreign.MemorySegment;
+import java.lang.foreign.SegmentAllocator;
 import java.lang.foreign.ValueLayout;
 import java.nio.charset.StandardCharsets;
 import java.util.Arrays;
@@ -20,31 +21,52 @@ public final class ArrayStringTensor implements Externalizable, Comparable {
 	public ArrayStringTensor() {
 	}
 
+	/**
+	 * Copy into the process lifetime shared arena. Per request arrays use
+	 * {@link #ArrayStringTensor(SegmentAllocator, List)} with a pool scope.
+	 */
 	public ArrayStringTensor(String[] strings) {
-		this.memorySegment = getArena().allocate(strings.length * ValueLayout.ADDRESS.byteSize());  
-		this.length = strings.length;
-		this.buffers = new MemorySegment[length];
-		for (int i = 0; i < length; i++) {
-			byte[] utf8 = strings[i].getBytes(StandardCharsets.UTF_8);
-			buffers[i] = getArena().allocate(utf8.length + 1);
-			buffers[i].copyFrom(MemorySegment.ofArray(utf8));
-			buffers[i].set(ValueLayout.JAVA_BYTE, utf8.length, (byte)0);
-			memorySegment.setAtIndex(AddressLayout.ADDRESS, i, buffers[i]);
-		}
+		this(Llama3.sharedArena, Arrays.asList(strings));
 	}
 	public ArrayStringTensor(List<String> strings) {
-		this.memorySegment = getArena().allocate(strings.size() * ValueLayout.ADDRESS.byteSize());  
+		this(Llama3.sharedArena, strings);
+	}
+	/**
+	 * Pack the strings null terminated, back to back, in one data segment and point the char** array
+	 * into it, two allocations however many strings there are.
+	 * @param allocator allocator for pointer array and data, e.g. a request scope
+	 * @param strings the strings
+	 */
+	ArrayStringTensor(SegmentAllocator allocator, List<String> strings) {
 		this.length = strings.size();
 		this.buffers = new MemorySegment[length];
+		byte[][] utf8 = new byte[length][];
+		long total = 0;
 		for (int i = 0; i < length; i++) {
-			byte[] utf8 = strings.get(i).getBytes(StandardCharsets.UTF_8);
-			buffers[i] = getArena().allocate(utf8.length + 1);
-			buffers[i].copyFrom(MemorySegment.ofArray(utf8));
-			buffers[i].set(ValueLayout.JAVA_BYTE, utf8.length, (byte)0);
+			utf8[i] = strings.get(i).getBytes(StandardCharsets.UTF_8);
+			total += utf8[i].length + 1;
+		}
+		this.memorySegment = allocator.allocate(length * ValueLayout.ADDRESS.byteSize(), ValueLayout.ADDRESS.byteAlignment());
+		MemorySegment data = allocator.allocate(Math.max(1, total), 1);
+		long offset = 0;
+		for (int i = 0; i < length; i++) {
+			buffers[i] = data.asSlice(offset, utf8[i].length + 1);
+			MemorySegment.copy(utf8[i], 0, buffers[i], ValueLayout.JAVA_BYTE, 0, utf8[i].length);
+			buffers[i].set(ValueLayout.JAVA_BYTE, utf8[i].length, (byte)0);
 			memorySegment.setAtIndex(AddressLayout.ADDRESS, i, buffers[i]);
+			offset += utf8[i].length + 1;
 		}
 	}
 
+	/**
+	 * @return bytes of string data including terminators
+	 */
+	long dataBytes() {
+		long total = 0;
+		for (int i = 0; i < length; i++)
+			total += buffers[i].byteSize();
+		return total;
+	}
 	public MemorySegment asCharStarStar() {
 		return memorySegment;
 	}
@@ -0,0 +1,53 @@
+package com.llama4j;
+
+import java.lang.foreign.MemorySegment;
+import java.nio.ByteOrder;
+
+import jdk.incubator.vector.FloatVector;
+import jdk.incubator.vector.ShortVector;
+import jdk.incubator.vector.VectorOperators;
+
+/**
+ * bfloat16 values, the high 16 bits of a float32, 2 bytes each.
+ */
+final class BF16FloatTensor extends MappedFloatTensor {
+
+	BF16FloatTensor(int size, MemorySegment memorySegment) {
+		super(size, memorySegment);
+	}
+
+	@Override
+	int getFormatType() {
+		return 4;
+	}
+
+	@Override
+	public float getFloat(int index) {
+		assert 0 <= index && index < size;
+		return Float.intBitsToFloat(readShort(memorySegment, (long) index * 2) << 16);
+	}
+
+	@Override
+	public float dot(int thisOffset, FloatTensor that, int thatOffset, int size) {
+		if (USE_VECTOR_API && that instanceof ArrayFloatTensor other)
+			return vectorDot(this, thisOffset, other, thatOffset, size);
+		return scalarDot(this, thisOffset, that, thatOffset, size);
+	}
+
+	/**
+	 * Widening and shifting left by 16 is the exact conversion, the sign extension is shifted out.
+	 */
+	private static float vectorDot(BF16FloatTensor thiz, int thisOffset, ArrayFloatTensor that, int thatOffset, int size) {
+		FloatVector val = FloatVector.zero(F_SPECIES);
+		int upperBound = F_SPECIES.loopBound(size);
+		for (int i = 0; i < upperBound; i += F_SPECIES.length()) {
+			ShortVector bits16 = ShortVector.fromMemorySegment(S_SPECIES_HALF, thiz.memorySegment, (long) (thisOffset + i) * 2, ByteOrder.LITTLE_ENDIAN);
+			FloatVector thizVector = bits16.castShape(I_SPECIES, 0).reinterpretAsInts().lanewise(VectorOperators.LSHL, 16).reinterpretAsFloats();
+			val = thizVector.fma(that.getFloatVector(F_SPECIES, thatOffset + i), val);
+		}
+		float result = val.reduceLanes(VectorOperators.ADD);
+		if (upperBound < size)
+			result += scalarDot(thiz, thisOffset + upperBound, that, thatOffset + upperBound, size - upperBound);
+		return result;
+	}
+}
@@ -0,0 +1,290 @@
+package com.llama4j;
+
+import java.nio.charset.StandardCharsets;
+import java.util.Arrays;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.OptionalInt;
+import java.util.concurrent.atomic.AtomicLong;
+import java.util.regex.Matcher;
+import java.util.regex.Pattern;
+
+/**
+ * Pure Java Llama 3 byte-level BPE encoder built from the model vocabulary.<p>
+ * Llama 3 uses tiktoken style BPE, where the rank of a merge is the id of the token it produces, so the
+ * merge table follows from the vocabulary alone: for every token and every split of its bytes into two
+ * tokens (a,b), the pair maps to the token id. Pairs are packed into a long and held in an open
+ * addressing table of primitives, and encoding works on int scratch arrays, so the only per call
+ * allocations are the regex matcher and the result.<p>
+ * Instances are immutable and thread safe, and never touch the native library, so text can be tokenized
+ * on many cores at once, e.g. for token counting and budgeting.
+ */
+final class BPEEncoder {
+	public static boolean DEBUG = false;
+	static final String LLAMA3_PATTERN =
+			"(?i:'s|'t|'re|'ve|'m|'ll|'d)|[^\\r\\n\\p{L}\\p{N}]?\\p{L}+|\\p{N}{1,3}| ?[^\\s\\p{L}\\p{N}]+[\\r\\n]*|\\s*[\\r\\n]+|\\s+(?!\\S)|\\s+";
+	private static final Pattern SPECIAL_PIECE = Pattern.compile("<\\|[^|]*\\|>");
+	private static final long EMPTY = -1L;
+
+	// \s and friends must be Unicode aware like the reference regex, or e.g. U+00A0 splits differently
+	private final Pattern pretokenizer = Pattern.compile(LLAMA3_PATTERN, Pattern.UNICODE_CHARACTER_CLASS);
+	private final Pattern specialPattern; // null if no special tokens
+	private final Map<String, Integer> specialTokens;
+	private final int[] byteTokens = new int[256];
+	// open addressing (left << 32 | right) -> merged token id, which is also the merge rank
+	private final long[] mergeKeys;
+	private final int[] mergeValues;
+	private final int mergeMask;
+	private final int mergeCount;
+
+	/**
+	 * @param pieces raw bytes of every regular token, indexed by token id, null or empty for unused ids
+	 * @param specialTokens special token text to id, matched verbatim ahead of BPE
+	 */
+	BPEEncoder(byte[][] pieces, Map<String, Integer> specialTokens) {
+		this.specialTokens = Map.copyOf(specialTokens);
+		this.specialPattern = specialTokens.isEmpty() ? null : Pattern.compile(
+				specialTokens.keySet().stream().map(Pattern::quote).reduce((a, b) -> a + "|" + b).orElseThrow());
+		boolean[] special = new boolean[pieces.length];
+		for(int id : specialTokens.values())
+			if(id >= 0 && id < pieces.length)
+				special[id] = true;
+		// byte string -> id, only needed while building
+		Map<String, Integer> index = new HashMap<>(pieces.length * 2);
+		Arrays.fill(byteTokens, -1);
+		for(int id = 0; id < pieces.length; id++) {
+			byte[] p = pieces[id];
+			if(p == null || p.length == 0 || special[id])
+				continue;
+			index.putIfAbsent(new String(p, StandardCharsets.ISO_8859_1), id);
+			if(p.length == 1 && byteTokens[p[0] & 0xFF] < 0)
+				byteTokens[p[0] & 0xFF] = id;
+		}
+		for(int b = 0; b < 256; b++)
+			if(byteTokens[b] < 0)
+				throw new IllegalArgumentException("Vocabulary has no token for byte "+b+", not a byte-level BPE vocabulary");
+		int capacity = Integer.highestOneBit(Math.max(16, index.size() * 4 - 1)) << 1;
+		mergeKeys = new long[capacity];
+		mergeValues = new int[capacity];
+		mergeMask = capacity - 1;
+		Arrays.fill(mergeKeys, EMPTY);
+		int count = 0;
+		for(int id = 0; id < pieces.length; id++) {
+			byte[] p = pieces[id];
+			if(p == null || p.length < 2 || special[id])
+				continue;
+			String s = new String(p, StandardCharsets.ISO_8859_1);
+			if(index.get(s) != id)
+				continue; // duplicate piece
+			for(int k = 1; k < s.length(); k++) {
+				Integer left = index.get(s.substring(0, k));
+				Integer right = index.get(s.substring(k));
+				if(left != null && right != null && putMerge(left, right, id))
+					++count;
+			}
+		}
+		mergeCount = count;
+		if(DEBUG)
+			System.out.println("BPEEncoder vocabulary:"+index.size()+" merges:"+mergeCount+" special:"+specialTokens.size());
+	}
+
+	private static int slot(long key) {
+		key ^= key >>> 33;
+		key *= 0xff51afd7ed558ccdL;
+		key ^= key >>> 33;
+		return (int) key;
+	}
+	private boolean putMerge(int left, int right, int id) {
+		long key = ((long) left << 32) | (right & 0xFFFFFFFFL);
+		for(int i = slot(key) & mergeMask;; i = (i + 1) & mergeMask) {
+			if(mergeKeys[i] == EMPTY) {
+				mergeKeys[i] = key;
+				mergeValues[i] = id;
+				return true;
+			}
+			if(mergeKeys[i] == key) {
+				mergeValues[i] = Math.min(mergeValues[i], id);
+				return false;
+			}
+		}
+	}
+	/**
+	 * @return id of the token merging left and right, which is its rank, or -1 if they do not merge
+	 */
+	private int mergeRank(int left, int right) {
+		long key = ((long) left << 32) | (right & 0xFFFFFFFFL);
+		for(int i = slot(key) & mergeMask;; i = (i + 1) & mergeMask) {
+			long k = mergeKeys[i];
+			if(k == key)
+				return mergeValues[i];
+			if(k == EMPTY)
+				return -1;
+		}
+	}
+
+	/**
+	 * Growable int output plus the scratch used for one pre-token
+	 */
+	private static final class Buffer {
+		// null when only counting
+		int[] out;
+		int size = 0;
+		int[] work = new int[64];
+		Buffer(boolean store) {
+			out = store ? new int[64] : null;
+		}
+		void add(int token) {
+			if(out == null) {
+				size++;
+				return;
+			}
+			if(size == out.length)
+				out = Arrays.copyOf(out, size * 2);
+			out[size++] = token;
+		}
+	}
+
+	/**
+	 * Encode text, recognizing special tokens. No begin of text token is prepended.
+	 */
+	int[] encode(String text) {
+		return encode(text, true);
+	}
+	/**
+	 * @param text the text
+	 * @param allowSpecial true to map special token text to its id, false to treat it as ordinary text
+	 */
+	int[] encode(String text, boolean allowSpecial) {
+		Buffer buf = new Buffer(true);
+		encode(text, allowSpecial, buf);
+		return Arrays.copyOf(buf.out, buf.size);
+	}
+	private void encode(String text, boolean allowSpecial, Buffer buf) {
+		if(!allowSpecial || specialPattern == null) {
+			encodeOrdinary(text, 0, text.length(), buf);
+		} else {
+			Matcher m = specialPattern.matcher(text);
+			int start = 0;
+			while(m.find()) {
+				encodeOrdinary(text, start, m.start(), buf);
+				buf.add(specialTokens.get(m.group()));
+				start = m.end();
+			}
+			encodeOrdinary(text, start, text.length(), buf);
+		}
+	}
+	/**
+	 * @return number of tokens text encodes to, without materializing them
+	 */
+	int countTokens(String text) {
+		Buffer buf = new Buffer(false);
+		encode(text, true, buf);
+		return buf.size;
+	}
+	/**
+	 * Encode many texts in parallel
+	 */
+	int[][] encodeAll(List<String> texts) {
+		int[][] result = new int[texts.size()][];
+		Parallel.parallelFor(0, texts.size(), i -> result[i] = encode(texts.get(i)));
+		return result;
+	}
+	/**
+	 * Total token count of many texts, computed in parallel
+	 */
+	long countTokens(List<String> texts) {
+		AtomicLong total = new AtomicLong();
+		Parallel.parallelFor(0, texts.size(), i -> total.addAndGet(countTokens(texts.get(i))));
+		return total.get();
+	}
+
+	private void encodeOrdinary(String text, int from, int to, Buffer buf) {
+		if(from >= to)
+			return;
+		Matcher m = pretokenizer.matcher(text).region(from, to);
+		while(m.find())
+			encodeChunk(text, m.start(), m.end(), buf);
+	}
+	/**
+	 * Byte-level BPE over one pre-token: expand to UTF-8 byte tokens, then repeatedly apply the lowest
+	 * ranked merge among adjacent pairs
+	 */
+	private void encodeChunk(CharSequence text, int from, int to, Buffer buf) {
+		int[] work = buf.work;
+		int n = 0;
+		for(int i = from; i < to; ) {
+			int cp = Character.codePointAt(text, i);
+			i += Character.charCount(cp);
+			if(n + 4 > work.length)
+				work = buf.work = Arrays.copyOf(work, work.length * 2);
+			if(cp < 0x80) {
+				work[n++] = byteTokens[cp];
+			} else if(cp < 0x800) {
+				work[n++] = byteTokens[0xC0 | (cp >> 6)];
+				work[n++] = byteTokens[0x80 | (cp & 0x3F)];
+			} else if(cp < 0x10000) {
+				if(Character.isSurrogate((char) cp))
+					cp = 0xFFFD; // unpaired surrogate, encode the replacement character like String.getBytes
+				work[n++] = byteTokens[0xE0 | (cp >> 12)];
+				work[n++] = byteTokens[0x80 | ((cp >> 6) & 0x3F)];
+				work[n++] = byteTokens[0x80 | (cp & 0x3F)];
+			} else {
+				work[n++] = byteTokens[0xF0 | (cp >> 18)];
+				work[n++] = byteTokens[0x80 | ((cp >> 12) & 0x3F)];
+				work[n++] = byteTokens[0x80 | ((cp >> 6) & 0x3F)];
+				work[n++] = byteTokens[0x80 | (cp & 0x3F)];
+			}
+		}
+		while(n > 1) {
+			int best = Integer.MAX_VALUE;
+			int bestAt = -1;
+			for(int i = 0; i + 1 < n; i++) {
+				int rank = mergeRank(work[i], work[i + 1]);
+				if(rank >= 0 && rank < best) {
+					best = rank;
+					bestAt = i;
+				}
+			}
+			if(bestAt < 0)
+				break;
+			work[bestAt] = best;
+			System.arraycopy(work, bestAt + 2, work, bestAt + 1, n - bestAt - 2);
+			--n;
+		}
+		for(int i = 0; i < n; i++)
+			buf.add(work[i]);
+	}
+
+	int getMergeCount() {
+		return mergeCount;
+	}
+	OptionalInt specialToken(String text) {
+		Integer id = specialTokens.get(text);
+		return id == null ? OptionalInt.empty() : OptionalInt.of(id);
+	}
+
+	/**
+	 * Build an encoder from a vocabulary byte table, pieces of the form &lt;|...|&gt; are treated as special tokens.
+	 */
+	static BPEEncoder fromTable(TokenTable table) {
+		byte[][] pieces = table.pieces();
+		Map<String, Integer> special = new HashMap<>();
+		for(int id = 0; id < pieces.length; id++) {
+			if(pieces[id].length > 4 && pieces[id][0] == '<') {
+				String s = new String(pieces[id], StandardCharsets.UTF_8);
+				if(SPECIAL_PIECE.matcher(s).matches())
+					special.put(s, id);
+			}
+		}
+		return new BPEEncoder(pieces, special);
+	}
+	/**
+	 * Build an encoder from the vocabulary of the model loaded natively
+	 */
+	static BPEEncoder fromModel() {
+		try (TokenTable table = TokenTable.fromModel()) {
+			return fromTable(table);
+		}
+	}
+}
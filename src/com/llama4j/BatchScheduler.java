@@ -0,0 +1,213 @@
+package com.llama4j;
+
+import java.lang.foreign.Arena;
+import java.lang.foreign.MemorySegment;
+import java.lang.foreign.ValueLayout;
+import java.util.ArrayList;
+import java.util.Iterator;
+import java.util.List;
+import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.ConcurrentLinkedQueue;
+import java.util.concurrent.locks.LockSupport;
+import java.util.function.IntConsumer;
+
+import org.apache.commons.logging.Log;
+import org.apache.commons.logging.LogFactory;
+
+/**
+ * Continuous batching over concurrent {@link Session}s.<p>
+ * Decode is bound by memory bandwidth: one step streams the full weights whether it produces one token or
+ * many, so the scheduler merges the next-token decode of every active session into a single native
+ * call per step. Requests join the batch at the next step after submission and leave it as soon as they
+ * hit a stop token, their token budget, or are cancelled, so the batch composition changes at token
+ * granularity without waiting for the longest member to finish.<p>
+ * All native calls are made from the single scheduler thread, sessions handed to the scheduler must not be
+ * driven elsewhere until their request completes.
+ */
+final class BatchScheduler implements AutoCloseable {
+	private static final Log log = LogFactory.getLog(BatchScheduler.class);
+	public static boolean DEBUG = false;
+	private final int maxBatch;
+	private final ConcurrentLinkedQueue<Request> joining = new ConcurrentLinkedQueue<>();
+	private final List<Request> active = new ArrayList<>();
+	private final Arena arena = Arena.ofShared();
+	private final MemorySegment handles;
+	private final MemorySegment outTokens;
+	private final Thread worker;
+	private volatile boolean running = true;
+	// written by the scheduler thread only, read by getMeanBatchSize from any thread
+	private volatile long steps = 0;
+	private volatile long batchedTokens = 0;
+
+	/**
+	 * A generation request riding in the batch
+	 */
+	private static final class Request {
+		final Session session;
+		final StringTensor prompt;
+		final float temp, minp, topp;
+		final int maxTokens;
+		final IntConsumer consumer;
+		final CompletableFuture<Integer> result = new CompletableFuture<>();
+		int generated = 0;
+		Request(Session session, StringTensor prompt, float temp, float minp, float topp, int maxTokens, IntConsumer consumer) {
+			this.session = session;
+			this.prompt = prompt;
+			this.temp = temp;
+			this.minp = minp;
+			this.topp = topp;
+			this.maxTokens = maxTokens;
+			this.consumer = consumer;
+		}
+	}
+
+	/**
+	 * @param maxBatch maximum number of sessions decoded together in one step, further requests wait to join
+	 */
+	BatchScheduler(int maxBatch) {
+		if(maxBatch < 1)
+			throw new IllegalArgumentException("maxBatch must be positive: "+maxBatch);
+		this.maxBatch = maxBatch;
+		this.handles = arena.allocate(ValueLayout.JAVA_LONG.byteSize() * maxBatch, ValueLayout.JAVA_LONG.byteAlignment());
+		this.outTokens = arena.allocate(ValueLayout.JAVA_INT.byteSize() * maxBatch, ValueLayout.JAVA_INT.byteAlignment());
+		this.worker = Thread.ofPlatform().name("llama-batch-scheduler").daemon().start(this::run);
+	}
+
+	/**
+	 * Queue a prompt for generation in the given session.
+	 * @param session session to generate in, exclusively owned by the scheduler until the result completes
+	 * @param prompt the prompt, tokenized natively with special token parsing
+	 * @param temp temperature
+	 * @param minp min-p
+	 * @param topp top-p
+	 * @param maxTokens token budget for the completion
+	 * @param consumer receives each token on the scheduler thread as it is produced
+	 * @return future completing with the number of tokens generated, cancel it to leave the batch early
+	 */
+	CompletableFuture<Integer> submit(Session session, StringTensor prompt, float temp, float minp, float topp, int maxTokens, IntConsumer consumer) {
+		Request request = new Request(session, prompt, temp, minp, topp, maxTokens, consumer);
+		// checked and enqueued under the lock close takes, so a request either precedes the final drain or is refused
+		synchronized(joining) {
+			if(!running)
+				throw new IllegalStateException("Scheduler is closed");
+			joining.add(request);
+		}
+		LockSupport.unpark(worker);
+		return request.result;
+	}
+
+	private void run() {
+		while(running) {
+			admit();
+			if(active.isEmpty()) {
+				LockSupport.park(this);
+				continue;
+			}
+			step();
+		}
+		for(Request r : active)
+			r.result.cancel(false);
+		active.clear();
+		Request r;
+		while((r = joining.poll()) != null)
+			r.result.cancel(false);
+	}
+	/**
+	 * Move waiting requests into the batch while there is room, queuing their prompts for prefill in the next step
+	 */
+	private void admit() {
+		while(active.size() < maxBatch) {
+			Request r = joining.poll();
+			if(r == null)
+				return;
+			if(r.result.isDone())
+				continue;
+			try {
+				int promptTokens = DeviceManager.sessionBegin(r.session, r.prompt, r.temp, r.minp, r.topp);
+				if(promptTokens < 0) {
+					r.result.completeExceptionally(new IllegalStateException("Context length exceeded for "+r.session));
+					continue;
+				}
+			} catch(RuntimeException e) {
+				r.result.completeExceptionally(e);
+				continue;
+			}
+			active.add(r);
+		}
+	}
+	/**
+	 * One batched decode: every active session advances by one sampled token
+	 */
+	private void step() {
+		int n = 0;
+		for(Iterator<Request> it = active.iterator(); it.hasNext();) {
+			Request r = it.next();
+			try {
+				handles.setAtIndex(ValueLayout.JAVA_LONG, n, r.session.handle());
+				n++;
+			} catch(RuntimeException e) { // session closed under the request
+				r.result.completeExceptionally(e);
+				it.remove();
+			}
+		}
+		if(n == 0)
+			return;
+		try {
+			DeviceManager.decodeBatch(handles, n, outTokens);
+		} catch(RuntimeException e) {
+			log.error("Batched decode of "+n+" sessions failed", e);
+			for(Request r : active)
+				r.result.completeExceptionally(e);
+			active.clear();
+			return;
+		}
+		++steps;
+		batchedTokens += n;
+		int i = 0;
+		for(Iterator<Request> it = active.iterator(); it.hasNext(); i++) {
+			Request r = it.next();
+			int token = outTokens.getAtIndex(ValueLayout.JAVA_INT, i);
+			if(r.result.isDone()) { // cancelled while in flight
+				it.remove();
+				continue;
+			}
+			if(token < 0) { // stop token or context exhausted
+				r.result.complete(r.generated);
+				it.remove();
+				continue;
+			}
+			try {
+				r.consumer.accept(token);
+			} catch(RuntimeException e) {
+				r.result.completeExceptionally(e);
+				it.remove();
+				continue;
+			}
+			if(++r.generated >= r.maxTokens) {
+				r.result.complete(r.generated);
+				it.remove();
+			}
+		}
+		if(DEBUG)
+			log.info("step "+steps+" batch:"+n+" mean batch:"+(float)batchedTokens/steps);
+	}
+	/**
+	 * @return mean number of sessions decoded per step since creation
+	 */
+	float getMeanBatchSize() {
+		return steps == 0 ? 0f : (float)batchedTokens / steps;
+	}
+	@Override
+	public void close() {
+		synchronized(joining) {
+			running = false;
+		}
+		LockSupport.unpark(worker);
+		try {
+			worker.join();
+		} catch (InterruptedException e) {
+			Thread.currentThread().interrupt();
+		}
+		arena.close();
+	}
+}
@@ -0,0 +1,174 @@
+package com.llama4j;
+
+import java.lang.foreign.Arena;
+import java.lang.foreign.MemorySegment;
+import java.lang.foreign.SegmentAllocator;
+import java.util.ArrayList;
+import java.util.concurrent.ConcurrentLinkedDeque;
+import java.util.concurrent.atomic.AtomicLong;
+import java.util.concurrent.atomic.LongAdder;
+
+/**
+ * Size-classed pool of off-heap buffers.<p>
+ * Buffers are powers of two from 64 bytes to 64 MB, aligned to 64 bytes so vector loads from their start
+ * never straddle a cache line. Released buffers go back on their class free list and are handed out again,
+ * so once the working set is warm a request allocates nothing off-heap. The free lists together retain at
+ * most a fixed number of bytes, a buffer released beyond that is dropped, and since each buffer has its own
+ * automatic arena the garbage collector frees it. Callers normally borrow through a {@link Scope}, which is
+ * a confined {@link SegmentAllocator} returning everything it handed out when closed, e.g. at the end of a
+ * chat turn. A scope allocates anything larger than the largest class from its own confined arena, freed
+ * when it closes, so one oversized request cannot pin memory in the pool.
+ */
+final class BufferPool implements AutoCloseable {
+	public static final long ALIGNMENT = 64;
+	private static final int MIN_CLASS = 6; // 64 bytes
+	static final int MAX_CLASS = 26; // 64 MB
+	static final long DEFAULT_RETAINED_BYTES = 256L << 20;
+	private final long maxRetainedBytes;
+	private final ConcurrentLinkedDeque<MemorySegment>[] free;
+	private final AtomicLong retainedBytes = new AtomicLong();
+	private final LongAdder acquired = new LongAdder();
+	private final LongAdder reused = new LongAdder();
+	private final LongAdder dropped = new LongAdder();
+	private final LongAdder reservedBytes = new LongAdder();
+
+	BufferPool() {
+		this(Long.getLong("llama.PoolRetainBytes", DEFAULT_RETAINED_BYTES));
+	}
+	/**
+	 * @param maxRetainedBytes bytes of free buffers kept for reuse across all size classes
+	 */
+	@SuppressWarnings("unchecked")
+	BufferPool(long maxRetainedBytes) {
+		if(maxRetainedBytes < 0)
+			throw new IllegalArgumentException("maxRetainedBytes must be non-negative: "+maxRetainedBytes);
+		this.maxRetainedBytes = maxRetainedBytes;
+		free = new ConcurrentLinkedDeque[MAX_CLASS + 1];
+		for(int i = MIN_CLASS; i <= MAX_CLASS; i++)
+			free[i] = new ConcurrentLinkedDeque<>();
+	}
+
+	private static int sizeClass(long bytes) {
+		if(bytes > (1L << MAX_CLASS))
+			throw new IllegalArgumentException("Buffer of "+bytes+" bytes exceeds largest pooled size "+(1L << MAX_CLASS));
+		return Math.max(MIN_CLASS, 64 - Long.numberOfLeadingZeros(Math.max(1L, bytes) - 1));
+	}
+	/**
+	 * Take a buffer of at least the given size from the pool. The returned segment spans the whole size
+	 * class, pass it unchanged to {@link #release}.
+	 * @param bytes minimum size
+	 * @return 64 byte aligned buffer, contents undefined
+	 */
+	MemorySegment acquire(long bytes) {
+		int cls = sizeClass(bytes);
+		acquired.increment();
+		MemorySegment seg = free[cls].pollFirst();
+		if(seg != null) {
+			retainedBytes.addAndGet(-seg.byteSize());
+			reused.increment();
+			return seg;
+		}
+		reservedBytes.add(1L << cls);
+		return Arena.ofAuto().allocate(1L << cls, ALIGNMENT);
+	}
+	/**
+	 * Return a buffer obtained from {@link #acquire}
+	 */
+	void release(MemorySegment seg) {
+		int cls = sizeClass(seg.byteSize());
+		if(seg.byteSize() != (1L << cls))
+			throw new IllegalArgumentException("Not a pooled buffer: "+seg);
+		if(retainedBytes.addAndGet(seg.byteSize()) > maxRetainedBytes) {
+			// over the retention limit, unreachable once the caller lets go and freed by the collector
+			retainedBytes.addAndGet(-seg.byteSize());
+			reservedBytes.add(-seg.byteSize());
+			dropped.increment();
+			return;
+		}
+		free[cls].offerFirst(seg); // LIFO keeps recently touched buffers cache warm
+	}
+	/**
+	 * @return a new confined allocation scope over this pool
+	 */
+	Scope scope() {
+		return new Scope();
+	}
+	public long getAcquired() {
+		return acquired.sum();
+	}
+	public long getReused() {
+		return reused.sum();
+	}
+	/**
+	 * @return buffers released beyond the retention limit and left to the collector
+	 */
+	public long getDropped() {
+		return dropped.sum();
+	}
+	/**
+	 * @return bytes of free buffers waiting for reuse
+	 */
+	public long getRetainedBytes() {
+		return retainedBytes.get();
+	}
+	/**
+	 * @return off-heap bytes held by the pool, in use or free
+	 */
+	public long getReservedBytes() {
+		return reservedBytes.sum();
+	}
+	@Override
+	public void close() {
+		// the buffers are freed by the collector once no scope refers to them
+		for(int i = MIN_CLASS; i <= MAX_CLASS; i++)
+			free[i].clear();
+		retainedBytes.set(0);
+	}
+	@Override
+	public String toString() {
+		return "BufferPool reserved:"+getReservedBytes()+" retained:"+getRetainedBytes()+" acquired:"+getAcquired()+" reused:"+getReused()+" dropped:"+getDropped();
+	}
+
+	/**
+	 * Thread confined allocator lending pooled buffers for the duration of one request. Allocations are
+	 * zeroed over their requested size, like arena allocations, and all of them go back to the pool on close.
+	 */
+	final class Scope implements SegmentAllocator, AutoCloseable {
+		private final Thread owner = Thread.currentThread();
+		private final ArrayList<MemorySegment> leased = new ArrayList<>();
+		// buffers too large to pool, created on first need
+		private Arena oversized;
+		private boolean closed = false;
+		private Scope() {}
+		@Override
+		public MemorySegment allocate(long byteSize, long byteAlignment) {
+			checkOwner();
+			if(byteAlignment > ALIGNMENT || Long.bitCount(byteAlignment) != 1)
+				throw new IllegalArgumentException("Unsupported alignment "+byteAlignment);
+			if(byteSize > (1L << MAX_CLASS)) {
+				if(oversized == null)
+					oversized = Arena.ofConfined();
+				return oversized.allocate(byteSize, ALIGNMENT);
+			}
+			MemorySegment seg = acquire(byteSize);
+			leased.add(seg);
+			return seg.asSlice(0, byteSize).fill((byte)0);
+		}
+		@Override
+		public void close() {
+			checkOwner();
+			for(int i = leased.size() - 1; i >= 0; i--)
+				release(leased.get(i));
+			leased.clear();
+			if(oversized != null)
+				oversized.close();
+			closed = true;
+		}
+		private void checkOwner() {
+			if(Thread.currentThread() != owner)
+				throw new WrongThreadException("Scope is confined to "+owner);
+			if(closed)
+				throw new IllegalStateException("Scope is closed");
+		}
+	}
+}
@@ -1,19 +1,17 @@
 package com.llama4j;
 
+import java.lang.foreign.SegmentAllocator;
+import java.lang.foreign.ValueLayout;
 import java.nio.charset.StandardCharsets;
 import java.util.ArrayList;
 import java.util.Arrays;
 import java.util.Collection;
 import java.util.Comparator;
-import java.util.HashMap;
 import java.util.HexFormat;
 import java.util.List;
-import java.util.Map;
 import java.util.Set;
 import java.util.regex.Matcher;
 import java.util.regex.Pattern;
-import java.util.stream.Collectors;
-import java.util.stream.IntStream;
 
 /**
  * Utility tailored for Llama 3 instruct prompt format.
@@ -116,6 +114,15 @@ class ChatFormat {
 	}
 	
 	public StringTensor extractDialogPrompt(boolean appendAssistantTurn, List<Message> dialog) {
+		return new StringTensor(dialogPrompt(appendAssistantTurn, dialog));
+	}
+	/**
+	 * @param allocator request scoped allocator for the prompt buffer
+	 */
+	public StringTensor extractDialogPrompt(boolean appendAssistantTurn, List<Message> dialog, SegmentAllocator allocator) {
+		return StringTensor.of(allocator, dialogPrompt(appendAssistantTurn, dialog));
+	}
+	private String dialogPrompt(boolean appendAssistantTurn, List<Message> dialog) {
 		StringBuilder sb = new StringBuilder();
 		for (ChatFormat.Message message : dialog) {
 			sb.append(startHeaderStr);
@@ -129,7 +136,7 @@ class ChatFormat {
 			sb.append(ChatFormat.Role.ASSISTANT.getRole());
 			sb.append(endHeaderStr);
 		}
-		return new StringTensor(sb.toString());
+		return sb.toString();
 	}
 	
 	public String stripFormatting(String input) {
@@ -171,68 +178,6 @@ class ChatFormat {
 	        return allMatches;
 	    }
 
-	    private Map<Pair<Integer, Integer>, Integer> getStats(List<Integer> ids) {
-	        Map<Pair<Integer, Integer>, Integer> map = new HashMap<>();
-	        for (int i = 0; i + 1 < ids.size(); i++) {
-	            Pair<Integer, Integer> key = new Pair<>(ids.get(i), ids.get(i + 1));
-	            map.put(key, map.getOrDefault(key, 0) + 1);
-	        }
-	        return map;
-	    }
-
-	    private static List<Integer> merge(List<Integer> ids, Pair<Integer, Integer> pair, int idx) {
-	        List<Integer> newids = new ArrayList<>();
-	        int i = 0;
-	        while (i < ids.size()) {
-	            // if not at the very last position AND the pair matches, replace it
-	            if (ids.get(i).equals(pair.first()) && i < ids.size() - 1 && ids.get(i + 1).equals(pair.second())) {
-	                newids.add(idx);
-	                i += 2;
-	            } else {
-	                newids.add(ids.get(i));
-	                i += 1;
-	            }
-	        }
-	        return newids;
-	    }
-
-	    /**
-	     * Returns list of utf-8 byte and a corresponding list of unicode strings.
-	     * The reversible bpe codes work on unicode strings.
-	     * This means you need a large # of unicode characters in your vocab if you want to avoid UNKs.
-	     * When you're at something like a 10B token dataset you end up needing around 5K for decent coverage.
-	     * This is a significant percentage of your normal, say, 32K bpe vocab.
-	     * To avoid that, we want lookup tables between utf-8 bytes and unicode strings.
-	     * And avoids mapping to whitespace/control characters the bpe code barfs on.
-	     */
-	    private static Map<Integer, Integer> bytesToUnicode() {
-	        List<Integer> bs = new ArrayList<>();
-	        IntStream.rangeClosed('!', '~').forEach(bs::add);
-	        IntStream.rangeClosed('¡', '¬').forEach(bs::add);
-	        IntStream.rangeClosed('®', 'ÿ').forEach(bs::add);
-
-	        List<Integer> cs = new ArrayList<>(bs);
-	        int n = 0;
-	        for (int b = 0; b < 256; ++b) {
-	            if (!bs.contains(b)) {
-	                bs.add(b);
-	                cs.add(256 + n);
-	                n += 1;
-	            }
-	        }
-
-	        // return dict(zip(bs, cs))
-	        return IntStream.range(0, bs.size())
-	                .boxed()
-	                .collect(Collectors.toMap(bs::get, cs::get));
-	    }
-
-	    static final Map<Integer, Integer> BYTE_ENCODER = bytesToUnicode();
-	    static final Map<Integer, Integer> BYTE_DECODER = BYTE_ENCODER.entrySet()
-	            .stream()
-	            .collect(Collectors.toMap(Map.Entry::getValue, Map.Entry::getKey));
-
-
 	    public static String replaceControlCharacters(int[] codePoints) {
 	        // we don't want to print control characters
 	        // which distort the output (e.g. \n or much worse)
@@ -254,11 +199,28 @@ class ChatFormat {
 	    }
 	
 	    public List<Integer> encodeAsList(String text) {
-	    	StringTensor st = new StringTensor(text);
-			IntTensor it = IntTensor.allocate(2048);
-			int toks = DeviceManager.stringToToken(st, it);
-			IntTensor trimToks = new IntTensor(it, toks);
-	        return Arrays.stream(trimToks.toArray()).boxed().toList();
+	        return Arrays.stream(encode(text)).boxed().toList();
+	    }
+
+	    /**
+	     * Tokenize through the shared tokenization cache
+	     * @param text the text
+	     * @return the tokens, shared with other callers and not to be modified
+	     */
+	    public int[] encode(String text) {
+	    	return TOKEN_CACHE.encode(text);
+	    }
+
+	    static final TokenCache TOKEN_CACHE = new TokenCache(ChatFormat::encodeNative);
+
+	    private static int[] encodeNative(byte[] utf8) {
+	    	try (BufferPool.Scope scope = Llama3.bufferPool.scope()) {
+	    		StringTensor st = StringTensor.of(scope, utf8);
+	    		// every token covers at least one byte, plus room for begin/end of text
+	    		IntTensor it = IntTensor.allocate(scope, st.size() + 8);
+	    		int toks = DeviceManager.stringToToken(st, it);
+	    		return it.getSegment().asSlice(0, (long) toks * Integer.BYTES).toArray(ValueLayout.JAVA_INT);
+	    	}
 	    }
 	    
 	    public Collection<? extends Integer> encodeAsCollection(String text) {
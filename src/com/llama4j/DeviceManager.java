@@ -1,15 +1,56 @@
 package com.llama4j;
 
+import java.io.ByteArrayInputStream;
+import java.io.ByteArrayOutputStream;
+import java.io.DataInputStream;
+import java.io.DataOutputStream;
+import java.io.EOFException;
+import java.io.IOException;
+import java.lang.foreign.Arena;
+import java.lang.foreign.FunctionDescriptor;
+import java.lang.foreign.Linker;
 import java.lang.foreign.MemorySegment;
+import java.lang.foreign.SegmentAllocator;
+import java.lang.foreign.ValueLayout;
+import java.lang.invoke.MethodHandle;
+import java.lang.invoke.MethodHandles;
+import java.lang.invoke.MethodType;
+import java.nio.channels.FileChannel;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.Path;
+import java.nio.file.StandardOpenOption;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.Set;
+import java.util.function.IntConsumer;
+
+import com.llama4j.ffi.NativeMethods;
 
 public final class DeviceManager {
 	private static boolean DEBUG = false;
+	// saved session file layout: magic, version, context size, token count, state bytes, tokens, padding to 8, state
+	private static final int SESSION_MAGIC = 0x4C475353; // LGSS
+	// 2 adds the chat dialog after the token history
+	private static final int SESSION_VERSION = 2;
+	private static final long SESSION_HEADER_BYTES = 32;
+	// text per batched tokenizer call, the token buffer is four times this
+	static final long TOKENIZE_CHUNK_BYTES = 4L << 20;
+	// void (*)(int token) callback signature handed to the streaming native runners
+	private static final FunctionDescriptor TOKEN_CALLBACK = FunctionDescriptor.ofVoid(ValueLayout.JAVA_INT);
+	private static final MethodHandle TOKEN_CALLBACK_MH;
+	static {
+		try {
+			TOKEN_CALLBACK_MH = MethodHandles.lookup().findVirtual(TokenCallback.class, "accept", MethodType.methodType(void.class, int.class));
+		} catch (NoSuchMethodException | IllegalAccessException e) {
+			throw new ExceptionInInitializerError(e);
+		}
+	}
 
 	static void loadModel(StringTensor model, int contextSize) {
 		MemorySegment hostSeg = model.getSegment();
 		long addr = hostSeg.address();
 		try {
-			Llama3.loadModelMH.invokeExact(addr, contextSize);
+			NativeMethods.Model.loadModelMH.invokeExact(addr, contextSize);
 		} catch (Throwable e) {
 			throw new RuntimeException(e);
 		}
@@ -20,7 +61,7 @@ public final class DeviceManager {
 		MemorySegment tokSegment = returnTokens.getSegment();
 		long addr2 = tokSegment.address();
 		try {
-			return (int) Llama3.runModelMH.invokeExact(addr, temp, min_p, top_p, addr2);
+			return (int) NativeMethods.Model.runModelMH.invokeExact(addr, temp, min_p, top_p, addr2);
 		} catch (Throwable e) {
 			throw new RuntimeException(e);
 		}
@@ -31,21 +72,128 @@ public final class DeviceManager {
 		MemorySegment tokSegment = returnTokens.getSegment();
 		long addr2 = tokSegment.address();
 		try {
-			return (int) Llama3.runModelTokenizeMH.invokeExact(addr, temp, min_p, top_p, addr2);
+			return (int) NativeMethods.Model.runModelTokenizeMH.invokeExact(addr, temp, min_p, top_p, addr2);
 		} catch (Throwable e) {
 			throw new RuntimeException(e);
 		}
 	}
+	/**
+	 * Tokenize a prompt without writing past retToken.
+	 * @return number of tokens, -1 if the prompt needs more tokens than retToken holds
+	 */
 	static int stringToToken(StringTensor inStr, IntTensor retToken) {
 		MemorySegment hostSeg = inStr.getSegment();
 		long addr = hostSeg.address();
-		MemorySegment tokSegment = retToken.getSegment();
-		long addr2 = tokSegment.address();
+		if (NativeMethods.exports("string_to_token_n")) {
+			try {
+				int n = (int) NativeMethods.Tokenizer.stringToTokenNMH.invokeExact(addr, retToken.getSegment().address(), retToken.size());
+				return n < 0 ? -1 : n;
+			} catch (Throwable e) {
+				throw new RuntimeException(e);
+			}
+		}
+		// string_to_token takes no capacity, tokenize into a buffer no prompt can overflow, one token
+		// per byte plus BOS and EOS, and copy out only what fits
+		try (Arena arena = Arena.ofConfined()) {
+			IntTensor scratch = IntTensor.allocate(arena, inStr.size() + 2);
+			int n = (int) NativeMethods.Tokenizer.stringToTokenMH.invokeExact(addr, scratch.getSegment().address());
+			if (n > retToken.size())
+				return -1;
+			MemorySegment.copy(scratch.getSegment(), 0, retToken.getSegment(), 0, (long) n * Integer.BYTES);
+			return n;
+		} catch (Throwable e) {
+			throw new RuntimeException(e);
+		}
+	}
+	/**
+	 * Tokenize many strings in one downcall.
+	 * @param inStrs the strings, passed as their char** array
+	 * @param retTokens receives the tokens of all strings back to back
+	 * @param offsets receives inStrs.length()+1 offsets, tokens of string i are [offsets[i], offsets[i+1])
+	 * @return total number of tokens, -1 if retTokens is too small
+	 */
+	static int stringToTokenBatch(ArrayStringTensor inStrs, IntTensor retTokens, IntTensor offsets) {
+		if(offsets.size() < inStrs.length() + 1)
+			throw new IllegalArgumentException("offsets needs "+(inStrs.length() + 1)+" entries, has "+offsets.size());
+		long addr = inStrs.asCharStarStar().address();
+		long addr2 = retTokens.getSegment().address();
+		long addr3 = offsets.getSegment().address();
 		try {
-			return (int) Llama3.stringToTokenMH.invokeExact(addr, addr2);
+			return (int) NativeMethods.Tokenizer.stringToTokenBatchMH.invokeExact(addr, inStrs.length(), addr2, retTokens.size(), addr3);
 		} catch (Throwable e) {
 			throw new RuntimeException(e);
-		}	
+		}
+	}
+	/**
+	 * Tokenize a batch of texts, one downcall per chunk of about {@link #TOKENIZE_CHUNK_BYTES} of text,
+	 * staging through pooled buffers so a large batch neither pins huge buffers nor overflows an int capacity.
+	 * @param texts the texts
+	 * @return tokens of each text
+	 */
+	static int[][] stringToTokenBatch(List<String> texts) {
+		int[][] result = new int[texts.size()][];
+		int from = 0;
+		while(from < texts.size()) {
+			// a text longer than a chunk goes alone
+			int to = from;
+			long bytes = 0;
+			do {
+				bytes += texts.get(to).length() * 3L + 1; // UTF-8 upper bound
+				to++;
+			} while(to < texts.size() && bytes + texts.get(to).length() * 3L + 1 <= TOKENIZE_CHUNK_BYTES);
+			stringToTokenBatch(texts.subList(from, to), result, from);
+			from = to;
+		}
+		return result;
+	}
+	private static void stringToTokenBatch(List<String> texts, int[][] result, int first) {
+		try (BufferPool.Scope scope = Llama3.bufferPool.scope()) {
+			ArrayStringTensor strs = new ArrayStringTensor(scope, texts);
+			// every token covers at least one byte, plus room for begin/end of text per string
+			long capacity = strs.dataBytes() + 8L * texts.size();
+			if(capacity > Integer.MAX_VALUE)
+				throw new IllegalArgumentException("Text of "+strs.dataBytes()+" bytes is too large to tokenize in one call");
+			IntTensor tokens = IntTensor.allocate(scope, (int) capacity);
+			IntTensor offsets = IntTensor.allocate(scope, texts.size() + 1);
+			if(stringToTokenBatch(strs, tokens, offsets) < 0)
+				throw new IllegalStateException("Batch tokenization overflowed "+capacity+" tokens");
+			for(int i = 0; i < texts.size(); i++) {
+				int start = offsets.getInt(i);
+				result[first + i] = tokens.getSegment().asSlice((long) start * Integer.BYTES, (long) (offsets.getInt(i + 1) - start) * Integer.BYTES).toArray(ValueLayout.JAVA_INT);
+			}
+		}
+	}
+	/**
+	 * Detokenize many token runs in one downcall.
+	 * @param inTokens packed tokens
+	 * @param offsets n+1 offsets into inTokens delimiting each run
+	 * @param n number of runs
+	 * @param retStrings receives the UTF-8 text of all runs back to back, not null terminated
+	 * @param retOffsets receives n+1 byte offsets into retStrings delimiting each run's text
+	 * @return total number of bytes, -1 if retStrings is too small
+	 */
+	static int tokenToStringBatch(IntTensor inTokens, IntTensor offsets, int n, StringTensor retStrings, IntTensor retOffsets) {
+		if(offsets.size() < n + 1 || retOffsets.size() < n + 1)
+			throw new IllegalArgumentException("offsets need "+(n + 1)+" entries");
+		long addr = inTokens.getSegment().address();
+		long addr2 = offsets.getSegment().address();
+		long addr3 = retStrings.getSegment().address();
+		long addr4 = retOffsets.getSegment().address();
+		try {
+			return (int) NativeMethods.Tokenizer.tokenToStringBatchMH.invokeExact(addr, addr2, n, addr3, retStrings.size(), addr4);
+		} catch (Throwable e) {
+			throw new RuntimeException(e);
+		}
+	}
+	/**
+	 * @return number of tokens in the loaded model vocabulary
+	 */
+	static int vocabSize() {
+		try {
+			return (int) NativeMethods.Tokenizer.vocabSizeMH.invokeExact();
+		} catch (Throwable e) {
+			throw new RuntimeException(e);
+		}
 	}
 	static int tokenToString(IntTensor inTokens, int size, StringTensor retStrings) {
 		MemorySegment hostSeg = inTokens.getSegment();
@@ -53,10 +201,600 @@ public final class DeviceManager {
 		MemorySegment tokSegment = retStrings.getSegment();
 		long addr2 = tokSegment.address();
 		try {
-			return (int) Llama3.tokenToStringMH.invokeExact(addr, size, addr2);
+			return (int) NativeMethods.Tokenizer.tokenToStringMH.invokeExact(addr, size, addr2);
 		} catch (Throwable e) {
 			throw new RuntimeException(e);
 		}	
 	}
-
+	/**
+	 * Run the model on the prompt, delivering each sampled token to the consumer as soon as the native
+	 * sampler produces it rather than after the whole completion is done. A library without run_model_stream
+	 * falls back to {@link #runModel} and delivers the tokens once it returns.
+	 * @param prompt the prompt
+	 * @param temp temperature
+	 * @param min_p min-p
+	 * @param top_p top-p
+	 * @param returnTokens receives the complete completion as in {@link #runModel}
+	 * @param tokenConsumer called on the invoking thread with each token as it is sampled
+	 * @return number of tokens generated, -1 if context length exceeded
+	 */
+	static int runModelStream(StringTensor prompt, float temp, float min_p, float top_p, IntTensor returnTokens, IntConsumer tokenConsumer) {
+		if (!NativeMethods.exports("run_model_stream"))
+			return deliver(runModel(prompt, temp, min_p, top_p, returnTokens), returnTokens, tokenConsumer);
+		return runStream(NativeMethods.Model.runModelStreamMH, prompt, temp, min_p, top_p, returnTokens, tokenConsumer);
+	}
+	/**
+	 * Streaming form of {@link #runModelTokenize}, see {@link #runModelStream}
+	 */
+	static int runModelTokenizeStream(StringTensor prompt, float temp, float min_p, float top_p, IntTensor returnTokens, IntConsumer tokenConsumer) {
+		if (!NativeMethods.exports("run_model_tokenize_stream"))
+			return deliver(runModelTokenize(prompt, temp, min_p, top_p, returnTokens), returnTokens, tokenConsumer);
+		return runStream(NativeMethods.Model.runModelTokenizeStreamMH, prompt, temp, min_p, top_p, returnTokens, tokenConsumer);
+	}
+	/**
+	 * Hand a completed run to a stream consumer, for libraries without the streaming runners.
+	 */
+	private static int deliver(int count, IntTensor returnTokens, IntConsumer tokenConsumer) {
+		for (int i = 0; i < count; i++)
+			tokenConsumer.accept(returnTokens.getInt(i));
+		return count;
+	}
+	private static int runStream(MethodHandle runner, StringTensor prompt, float temp, float min_p, float top_p, IntTensor returnTokens, IntConsumer tokenConsumer) {
+		MemorySegment hostSeg = prompt.getSegment();
+		long addr = hostSeg.address();
+		MemorySegment tokSegment = returnTokens.getSegment();
+		long addr2 = tokSegment.address();
+		return withTokenCallback(tokenConsumer, callback -> (int) runner.invokeExact(addr, temp, min_p, top_p, addr2, callback));
+	}
+	/**
+	 * Open an independent inference session over the loaded model. Each session owns its own native
+	 * context and KV cache of contextSize tokens while sharing the model weights mapped by {@link #loadModel}.
+	 * @param contextSize context length of the new session
+	 * @return the session, close it to release the native context
+	 */
+	static Session openSession(int contextSize) {
+		long handle;
+		try {
+			handle = (long) NativeMethods.Sessions.openSessionMH.invokeExact(contextSize);
+		} catch (Throwable e) {
+			throw new RuntimeException(e);
+		}
+		if(handle == 0L)
+			throw new IllegalStateException("Unable to open session of context size "+contextSize+", is a model loaded?");
+		return new Session(handle, contextSize);
+	}
+	static void closeSession(Session session) {
+		try {
+			NativeMethods.Sessions.closeSessionMH.invokeExact(session.handle());
+		} catch (Throwable e) {
+			throw new RuntimeException(e);
+		}
+	}
+	static int runModel(Session session, StringTensor prompt, float temp, float min_p, float top_p, IntTensor returnTokens) {
+		return runSession(NativeMethods.Sessions.runModelSessionMH, session, prompt, temp, min_p, top_p, returnTokens, 0L);
+	}
+	static int runModelTokenize(Session session, StringTensor prompt, float temp, float min_p, float top_p, IntTensor returnTokens) {
+		return runSession(NativeMethods.Sessions.runModelTokenizeSessionMH, session, prompt, temp, min_p, top_p, returnTokens, 0L);
+	}
+	static int runModelStream(Session session, StringTensor prompt, float temp, float min_p, float top_p, IntTensor returnTokens, IntConsumer tokenConsumer) {
+		return withTokenCallback(tokenConsumer, callback -> runSession(NativeMethods.Sessions.runModelSessionMH, session, prompt, temp, min_p, top_p, returnTokens, callback));
+	}
+	static int runModelTokenizeStream(Session session, StringTensor prompt, float temp, float min_p, float top_p, IntTensor returnTokens, IntConsumer tokenConsumer) {
+		return withTokenCallback(tokenConsumer, callback -> runSession(NativeMethods.Sessions.runModelTokenizeSessionMH, session, prompt, temp, min_p, top_p, returnTokens, callback));
+	}
+	private static int runSession(MethodHandle runner, Session session, StringTensor prompt, float temp, float min_p, float top_p, IntTensor returnTokens, long callback) {
+		MemorySegment hostSeg = prompt.getSegment();
+		long addr = hostSeg.address();
+		MemorySegment tokSegment = returnTokens.getSegment();
+		long addr2 = tokSegment.address();
+		// the string runners tokenize natively, so the cached tokens are no longer known
+		session.truncate(0);
+		try {
+			return (int) runner.invokeExact(session.handle(), addr, temp, min_p, top_p, addr2, callback);
+		} catch (Throwable e) {
+			throw new RuntimeException(e);
+		}
+	}
+	/**
+	 * Tokenize the prompt into the session and set up its sampler, the prompt is prefilled by the next
+	 * {@link #decodeBatch} that includes the session. The session token history is cleared, as the
+	 * batched decode does not report what it evaluates.
+	 * @return number of prompt tokens queued, -1 if the prompt exceeds the session context
+	 */
+	static int sessionBegin(Session session, StringTensor prompt, float temp, float min_p, float top_p) {
+		MemorySegment hostSeg = prompt.getSegment();
+		long addr = hostSeg.address();
+		session.truncate(0);
+		try {
+			return (int) NativeMethods.Sessions.sessionBeginMH.invokeExact(session.handle(), addr, temp, min_p, top_p);
+		} catch (Throwable e) {
+			throw new RuntimeException(e);
+		}
+	}
+	/**
+	 * Decode the pending tokens of n sessions in a single batched evaluation and sample one token for each.
+	 * @param sessions n session handles as uint64_t
+	 * @param n number of sessions
+	 * @param outTokens receives n sampled tokens, -1 where a session reached a stop token or its context limit
+	 * @return number of tokens evaluated in the batch
+	 */
+	static int decodeBatch(MemorySegment sessions, int n, MemorySegment outTokens) {
+		try {
+			return (int) NativeMethods.Sessions.decodeBatchMH.invokeExact(sessions.address(), n, outTokens.address());
+		} catch (Throwable e) {
+			throw new RuntimeException(e);
+		}
+	}
+	/**
+	 * Run a tokenized prompt in the session, reusing the KV cache left by earlier calls. Only the tokens
+	 * past the longest common prefix with what the session already holds are evaluated, so a chat turn
+	 * costs the new message rather than the whole dialog.
+	 * @param session the session whose KV cache is kept between calls
+	 * @param promptTokens the complete tokenized prompt, e.g. the whole dialog
+	 * @param nPrompt number of valid tokens in promptTokens
+	 * @param temp temperature
+	 * @param min_p min-p
+	 * @param top_p top-p
+	 * @param returnTokens receives the completion
+	 * @param tokenConsumer receives each token as it is sampled, null to not stream
+	 * @return number of tokens generated, -1 if context length exceeded
+	 */
+	static int runModelIncremental(Session session, IntTensor promptTokens, int nPrompt, float temp, float min_p, float top_p, IntTensor returnTokens, IntConsumer tokenConsumer) {
+		if(nPrompt <= 0)
+			throw new IllegalArgumentException("Empty prompt");
+		// at least the last prompt token is evaluated so the sampler has fresh logits
+		int reuse = Math.min(session.commonPrefix(promptTokens, nPrompt), nPrompt - 1);
+		keepSession(session, reuse);
+		long addr = promptTokens.getSegment().address() + (long) reuse * Integer.BYTES;
+		int count = nPrompt - reuse;
+		long addr2 = returnTokens.getSegment().address();
+		if(DEBUG)
+			System.out.println("Reusing "+reuse+" cached tokens, evaluating "+count);
+		int ret;
+		if(tokenConsumer == null)
+			ret = runSessionTokens(session, addr, count, temp, min_p, top_p, addr2, 0L);
+		else
+			ret = withTokenCallback(tokenConsumer, callback -> runSessionTokens(session, addr, count, temp, min_p, top_p, addr2, callback));
+		// the sampled tokens fed back for generation are in the cache too, except the final one
+		session.append(promptTokens, reuse, count);
+		if(ret > 0)
+			session.append(returnTokens, 0, ret);
+		session.truncate(sessionPosition(session));
+		return ret;
+	}
+	private static int runSessionTokens(Session session, long tokens, int count, float temp, float min_p, float top_p, long returnTokens, long callback) {
+		try {
+			return (int) NativeMethods.Sessions.runModelSessionTokensMH.invokeExact(session.handle(), tokens, count, temp, min_p, top_p, returnTokens, callback);
+		} catch (Throwable e) {
+			throw new RuntimeException(e);
+		}
+	}
+	/**
+	 * Drop KV cache entries from position nKeep onward
+	 */
+	static void keepSession(Session session, int nKeep) {
+		try {
+			NativeMethods.Sessions.sessionKeepMH.invokeExact(session.handle(), nKeep);
+		} catch (Throwable e) {
+			throw new RuntimeException(e);
+		}
+		session.truncate(nKeep);
+	}
+	/**
+	 * @return number of positions held in the session KV cache
+	 */
+	static int sessionPosition(Session session) {
+		try {
+			return (int) NativeMethods.Sessions.sessionNPastMH.invokeExact(session.handle());
+		} catch (Throwable e) {
+			throw new RuntimeException(e);
+		}
+	}
+	/**
+	 * Write the session KV cache, its token history and the chat dialog it was built from to a file. The file
+	 * is memory mapped and the native state is serialized straight into the mapping, so no intermediate heap
+	 * copy is made.
+	 * @param session the session to save, it remains open and usable
+	 * @param dialog the messages whose prompt the session holds, restored with it
+	 * @param file destination, replaced if it exists
+	 * @return number of bytes written
+	 * @throws IOException if the file cannot be written
+	 */
+	static long saveSession(Session session, List<ChatFormat.Message> dialog, Path file) throws IOException {
+		long stateBytes = sessionStateSize(session);
+		int[] tokens = session.getHistory();
+		byte[] messages = encodeDialog(dialog);
+		long stateOffset = stateOffset(tokens.length, messages.length);
+		long total = stateOffset + stateBytes;
+		try (FileChannel channel = FileChannel.open(file, StandardOpenOption.CREATE, StandardOpenOption.TRUNCATE_EXISTING,
+				StandardOpenOption.READ, StandardOpenOption.WRITE);
+				Arena arena = Arena.ofConfined()) {
+			MemorySegment mapped = channel.map(FileChannel.MapMode.READ_WRITE, 0, total, arena);
+			mapped.set(ValueLayout.JAVA_INT, 0, SESSION_MAGIC);
+			mapped.set(ValueLayout.JAVA_INT, 4, SESSION_VERSION);
+			mapped.set(ValueLayout.JAVA_INT, 8, session.getContextSize());
+			mapped.set(ValueLayout.JAVA_INT, 12, tokens.length);
+			mapped.set(ValueLayout.JAVA_LONG, 16, stateBytes);
+			mapped.set(ValueLayout.JAVA_LONG, 24, messages.length);
+			MemorySegment.copy(tokens, 0, mapped, ValueLayout.JAVA_INT, SESSION_HEADER_BYTES, tokens.length);
+			MemorySegment.copy(messages, 0, mapped, ValueLayout.JAVA_BYTE, SESSION_HEADER_BYTES + (long) tokens.length * Integer.BYTES, messages.length);
+			long written = getSessionState(session, mapped.asSlice(stateOffset, stateBytes));
+			if(written != stateBytes)
+				throw new IOException("Session state serialized "+written+" of "+stateBytes+" bytes to "+file);
+			mapped.force();
+		}
+		return total;
+	}
+	/**
+	 * Open a new session and restore KV cache, token history and dialog saved by {@link #saveSession}.
+	 * The native state is read directly out of the read-only file mapping.
+	 * @param file file written by saveSession against the same model
+	 * @param dialog replaced by the saved messages once the session is restored
+	 * @return the restored session, with the context size it was saved with
+	 * @throws IOException if the file cannot be read or is not a saved session
+	 */
+	static Session restoreSession(Path file, List<ChatFormat.Message> dialog) throws IOException {
+		try (FileChannel channel = FileChannel.open(file, StandardOpenOption.READ);
+				Arena arena = Arena.ofConfined()) {
+			MemorySegment mapped = channel.map(FileChannel.MapMode.READ_ONLY, 0, channel.size(), arena);
+			if(mapped.byteSize() < SESSION_HEADER_BYTES || mapped.get(ValueLayout.JAVA_INT, 0) != SESSION_MAGIC)
+				throw new IOException("Not a saved session: "+file);
+			int version = mapped.get(ValueLayout.JAVA_INT, 4);
+			if(version != SESSION_VERSION)
+				throw new IOException("Unsupported saved session version "+version+" in "+file);
+			int contextSize = mapped.get(ValueLayout.JAVA_INT, 8);
+			int nTokens = mapped.get(ValueLayout.JAVA_INT, 12);
+			long stateBytes = mapped.get(ValueLayout.JAVA_LONG, 16);
+			long messageBytes = mapped.get(ValueLayout.JAVA_LONG, 24);
+			if(contextSize <= 0 || nTokens < 0 || nTokens > contextSize)
+				throw new IOException("Corrupt saved session, "+nTokens+" tokens in context "+contextSize+": "+file);
+			if(stateBytes < 0 || messageBytes < 0 || messageBytes > Integer.MAX_VALUE)
+				throw new IOException("Corrupt saved session, state "+stateBytes+" dialog "+messageBytes+" bytes: "+file);
+			long stateOffset = stateOffset(nTokens, messageBytes);
+			if(stateOffset + stateBytes > mapped.byteSize())
+				throw new IOException("Truncated saved session: "+file);
+			int[] tokens = mapped.asSlice(SESSION_HEADER_BYTES, (long) nTokens * Integer.BYTES).toArray(ValueLayout.JAVA_INT);
+			List<ChatFormat.Message> messages = decodeDialog(mapped.asSlice(SESSION_HEADER_BYTES + (long) nTokens * Integer.BYTES, messageBytes)
+					.toArray(ValueLayout.JAVA_BYTE), file);
+			Session session = openSession(contextSize);
+			long read;
+			try {
+				read = setSessionState(session, mapped.asSlice(stateOffset, stateBytes));
+			} catch (RuntimeException e) {
+				session.close();
+				throw e;
+			}
+			if(read != stateBytes) {
+				session.close();
+				throw new IOException("Session state restored "+read+" of "+stateBytes+" bytes from "+file);
+			}
+			session.setHistory(tokens);
+			dialog.clear();
+			dialog.addAll(messages);
+			return session;
+		}
+	}
+	/**
+	 * Message count, then role ordinal, UTF-8 length and bytes of each message
+	 */
+	private static byte[] encodeDialog(List<ChatFormat.Message> dialog) throws IOException {
+		ByteArrayOutputStream bytes = new ByteArrayOutputStream();
+		try (DataOutputStream out = new DataOutputStream(bytes)) {
+			out.writeInt(dialog.size());
+			for (ChatFormat.Message message : dialog) {
+				byte[] content = message.content().getBytes(StandardCharsets.UTF_8);
+				out.writeInt(message.role().ordinal());
+				out.writeInt(content.length);
+				out.write(content);
+			}
+		}
+		return bytes.toByteArray();
+	}
+	private static List<ChatFormat.Message> decodeDialog(byte[] bytes, Path file) throws IOException {
+		ChatFormat.Role[] roles = ChatFormat.Role.values();
+		try (DataInputStream in = new DataInputStream(new ByteArrayInputStream(bytes))) {
+			int count = in.readInt();
+			if (count < 0 || count > bytes.length / 8)
+				throw new IOException("Corrupt saved dialog of "+count+" messages: "+file);
+			List<ChatFormat.Message> dialog = new ArrayList<>(count);
+			for (int i = 0; i < count; i++) {
+				int role = in.readInt();
+				int length = in.readInt();
+				if (role < 0 || role >= roles.length || length < 0 || length > in.available())
+					throw new IOException("Corrupt saved dialog message "+i+": "+file);
+				dialog.add(new ChatFormat.Message(roles[role], new String(in.readNBytes(length), StandardCharsets.UTF_8)));
+			}
+			return dialog;
+		} catch (EOFException e) {
+			throw new IOException("Truncated saved dialog: "+file, e);
+		}
+	}
+	/**
+	 * @return bytes needed to hold the session KV state
+	 */
+	static long sessionStateSize(Session session) {
+		try {
+			return (long) NativeMethods.Sessions.sessionStateSizeMH.invokeExact(session.handle());
+		} catch (Throwable e) {
+			throw new RuntimeException(e);
+		}
+	}
+	/**
+	 * Serialize the session KV state into dst
+	 * @return bytes written
+	 */
+	static long getSessionState(Session session, MemorySegment dst) {
+		try {
+			return (long) NativeMethods.Sessions.sessionStateGetMH.invokeExact(session.handle(), dst.address(), dst.byteSize());
+		} catch (Throwable e) {
+			throw new RuntimeException(e);
+		}
+	}
+	/**
+	 * Replace the session KV state with one serialized by {@link #getSessionState}, the caller
+	 * is responsible for the matching {@link Session#setHistory}
+	 * @return bytes read, 0 on failure
+	 */
+	static long setSessionState(Session session, MemorySegment src) {
+		try {
+			return (long) NativeMethods.Sessions.sessionStateSetMH.invokeExact(session.handle(), src.address(), src.byteSize());
+		} catch (Throwable e) {
+			throw new RuntimeException(e);
+		}
+	}
+	/**
+	 * Load a small model sharing the main model's vocabulary to propose tokens for {@link SpeculativeDecoder}.
+	 * @param model path of the draft GGUF
+	 * @param contextSize context size of the draft
+	 */
+	static void loadDraftModel(StringTensor model, int contextSize) {
+		int ret;
+		try {
+			ret = (int) NativeMethods.Speculative.loadDraftModelMH.invokeExact(model.getSegment().address(), contextSize);
+		} catch (Throwable e) {
+			throw new RuntimeException(e);
+		}
+		if(ret == -2)
+			throw new IllegalArgumentException("Draft model vocabulary differs from the model: "+model);
+		if(ret != 0)
+			throw new IllegalStateException("Failed to load draft model: "+model);
+	}
+	/**
+	 * Open a session over the draft model.
+	 * @param contextSize number of positions, the same as the target session's
+	 * @return the session, close it when done
+	 */
+	static Session openDraftSession(int contextSize) {
+		long handle;
+		try {
+			handle = (long) NativeMethods.Speculative.openDraftSessionMH.invokeExact(contextSize);
+		} catch (Throwable e) {
+			throw new RuntimeException(e);
+		}
+		if(handle == 0L)
+			throw new IllegalStateException("Failed to open draft session of "+contextSize+" tokens");
+		return new Session(handle, contextSize);
+	}
+	/**
+	 * Evaluate tokens at the session's KV position and return the logits of each, rather than sampling.
+	 * @param session the session
+	 * @param tokens token buffer
+	 * @param offset index of the first token to evaluate
+	 * @param count number of tokens
+	 * @param logits receives count rows of {@link #vocabSize()} floats
+	 * @return 0, or -1 if the context length would be exceeded
+	 */
+	static int decodeSession(Session session, IntTensor tokens, int offset, int count, MemorySegment logits) {
+		long addr = tokens.getSegment().address() + (long) offset * Integer.BYTES;
+		int ret;
+		try {
+			ret = (int) NativeMethods.Speculative.sessionDecodeMH.invokeExact(session.handle(), addr, count, logits.address());
+		} catch (Throwable e) {
+			throw new RuntimeException(e);
+		}
+		if(ret == 0)
+			session.append(tokens, offset, count);
+		return ret;
+	}
+	/**
+	 * Allocate device memory not backed by a host tensor, e.g. a KV cache. Host memory on a CPU build.
+	 * @return device pointer, free with {@link #freeDevice(long)}
+	 */
+	static long allocDevice(long bytes) {
+		long ptr;
+		try {
+			ptr = (long) NativeMethods.Device.allocDevicePtr.invokeExact(bytes);
+		} catch (Throwable e) {
+			throw new RuntimeException(e);
+		}
+		if(ptr == 0L)
+			throw new IllegalStateException("Device allocation of "+bytes+" bytes failed");
+		return ptr;
+	}
+	static void freeDevice(long ptr) {
+		try {
+			NativeMethods.Device.freeDevicePtr.invokeExact(ptr);
+		} catch (Throwable e) {
+			throw new RuntimeException(e);
+		}
+	}
+	/**
+	 * View the logits of the session's last evaluated token in place, no copy is made.
+	 * @param session the session
+	 * @return {@link #vocabSize()} floats, valid until the session next evaluates or is closed
+	 */
+	static ArrayFloatTensor logits(Session session) {
+		long addr;
+		try {
+			addr = (long) NativeMethods.Sampling.sessionLogitsMH.invokeExact(session.handle());
+		} catch (Throwable e) {
+			throw new RuntimeException(e);
+		}
+		if(addr == 0L)
+			throw new IllegalStateException("Session has no logits, nothing evaluated yet");
+		return new ArrayFloatTensor(MemorySegment.ofAddress(addr).reinterpret((long) vocabSize() * Float.BYTES));
+	}
+	/**
+	 * Like {@link #runModelIncremental} but each token is chosen in Java from the logits view of the last
+	 * step, so custom samplers, penalties and top-k can be used and their cost measured.
+	 * @param session the session whose KV cache is kept between calls
+	 * @param promptTokens the complete tokenized prompt
+	 * @param nPrompt number of valid tokens in promptTokens
+	 * @param sampler chooses each token, begun with the prompt
+	 * @param stopTokens tokens that end generation, not emitted
+	 * @param returnTokens receives the completion, its size bounds the completion length
+	 * @param tokenConsumer receives each token as it is sampled, null to not stream
+	 * @return number of tokens generated, -1 if context length exceeded
+	 */
+	static int runModelSampled(Session session, IntTensor promptTokens, int nPrompt, TokenSampler sampler, Set<Integer> stopTokens, IntTensor returnTokens, IntConsumer tokenConsumer) {
+		if(nPrompt <= 0)
+			throw new IllegalArgumentException("Empty prompt");
+		// at least the last prompt token is evaluated so there are fresh logits
+		int reuse = Math.min(session.commonPrefix(promptTokens, nPrompt), nPrompt - 1);
+		keepSession(session, reuse);
+		if(DEBUG)
+			System.out.println("Reusing "+reuse+" cached tokens, evaluating "+(nPrompt - reuse));
+		if(evalSession(session, promptTokens, reuse, nPrompt - reuse) < 0)
+			return -1;
+		sampler.begin(promptTokens, nPrompt);
+		int max = returnTokens.size();
+		int produced = 0;
+		while(produced < max) {
+			int token = sampler.sample(logits(session));
+			if(stopTokens.contains(token))
+				break;
+			returnTokens.setInt(produced++, token);
+			sampler.accept(token);
+			if(tokenConsumer != null)
+				tokenConsumer.accept(token);
+			// as with the native loop the final token is not evaluated
+			if(produced < max && evalSession(session, returnTokens, produced - 1, 1) < 0)
+				break;
+		}
+		return produced;
+	}
+	/**
+	 * Pooling of token embeddings into one vector per input, values match llama_pooling_type.
+	 */
+	enum Pooling {
+		MEAN(1), CLS(2), LAST(3);
+		final int type;
+		Pooling(int type) {
+			this.type = type;
+		}
+	}
+	/**
+	 * @return embedding width of the loaded model
+	 */
+	static int embeddingDim() {
+		try {
+			return (int) NativeMethods.Embeddings.embeddingDimMH.invokeExact();
+		} catch (Throwable e) {
+			throw new RuntimeException(e);
+		}
+	}
+	/**
+	 * Embed many inputs with one native evaluation rather than one model run each.
+	 * @param inputs texts to embed
+	 * @param pooling how token embeddings are pooled per input
+	 * @param normalize L2 normalize each row so dot product is cosine similarity
+	 * @param allocator where the result lives
+	 * @return inputs.length() x {@link #embeddingDim()} row major contiguous tensor
+	 */
+	static ArrayFloatTensor embed(ArrayStringTensor inputs, Pooling pooling, boolean normalize, SegmentAllocator allocator) {
+		int n = inputs.length();
+		int dim = embeddingDim();
+		ArrayFloatTensor out = ArrayFloatTensor.allocate(allocator, n, dim);
+		if(n == 0)
+			return out;
+		long addr = inputs.asCharStarStar().address();
+		long addr2 = out.getSegment().address();
+		int ret;
+		try {
+			ret = (int) NativeMethods.Embeddings.embedBatchMH.invokeExact(addr, n, pooling.type, addr2, dim);
+		} catch (Throwable e) {
+			throw new RuntimeException(e);
+		}
+		if(ret < 0)
+			throw new IllegalArgumentException("Input "+(-ret - 1)+" exceeds the embedding context");
+		if(normalize)
+			out.normalizeRows(n, dim);
+		return out;
+	}
+	/**
+	 * Mean pooled, normalized embeddings of the texts.
+	 * @param texts texts to embed
+	 * @param allocator where the result lives, e.g. a confined arena the caller closes
+	 * @return texts.size() x {@link #embeddingDim()} tensor
+	 */
+	static ArrayFloatTensor embed(List<String> texts, SegmentAllocator allocator) {
+		try (BufferPool.Scope scope = Llama3.bufferPool.scope()) {
+			return embed(new ArrayStringTensor(scope, texts), Pooling.MEAN, true, allocator);
+		}
+	}
+	/**
+	 * Prefill tokens at the current session position without sampling
+	 * @param session the session
+	 * @param tokens token buffer
+	 * @param offset first token to evaluate
+	 * @param count number of tokens to evaluate
+	 * @return 0 on success, -1 if context length exceeded
+	 */
+	static int evalSession(Session session, IntTensor tokens, int offset, int count) {
+		int ret;
+		try {
+			ret = (int) NativeMethods.Sessions.sessionEvalMH.invokeExact(session.handle(), tokens.getSegment().address() + (long) offset * Integer.BYTES, count);
+		} catch (Throwable e) {
+			throw new RuntimeException(e);
+		}
+		if(ret == 0)
+			session.append(tokens, offset, count);
+		return ret;
+	}
+	private static long stateOffset(int nTokens, long messageBytes) {
+		return (SESSION_HEADER_BYTES + (long) nTokens * Integer.BYTES + messageBytes + 7) & ~7L;
+	}
+	@FunctionalInterface
+	private interface CallbackRun {
+		int run(long callback) throws Throwable;
+	}
+	/**
+	 * Create an upcall stub delivering tokens to the consumer, valid for the duration of the native run.
+	 */
+	private static int withTokenCallback(IntConsumer tokenConsumer, CallbackRun run) {
+		TokenCallback callback = new TokenCallback(tokenConsumer);
+		int ret;
+		try (Arena arena = Arena.ofConfined()) {
+			MemorySegment stub = Linker.nativeLinker().upcallStub(TOKEN_CALLBACK_MH.bindTo(callback), TOKEN_CALLBACK, arena);
+			ret = run.run(stub.address());
+		} catch (RuntimeException e) {
+			throw e;
+		} catch (Throwable e) {
+			throw new RuntimeException(e);
+		}
+		if(callback.failure != null)
+			throw new RuntimeException("Token consumer failed during streaming", callback.failure);
+		return ret;
+	}
+	/**
+	 * Upcall target. An exception escaping an upcall terminates the JVM, so consumer failures are held
+	 * here and rethrown once control is back in Java; tokens after a failure are dropped.
+	 */
+	private static final class TokenCallback {
+		private final IntConsumer consumer;
+		private Throwable failure;
+		TokenCallback(IntConsumer consumer) {
+			this.consumer = consumer;
+		}
+		@SuppressWarnings("unused")
+		void accept(int token) {
+			if(failure != null)
+				return;
+			try {
+				consumer.accept(token);
+			} catch (Throwable t) {
+				failure = t;
+			}
+		}
+	}
 }
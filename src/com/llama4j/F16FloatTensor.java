@@ -0,0 +1,61 @@
+package com.llama4j;
+
+import java.lang.foreign.MemorySegment;
+import java.nio.ByteOrder;
+
+import jdk.incubator.vector.FloatVector;
+import jdk.incubator.vector.IntVector;
+import jdk.incubator.vector.ShortVector;
+import jdk.incubator.vector.VectorOperators;
+
+/**
+ * IEEE half precision values, 2 bytes each.
+ */
+final class F16FloatTensor extends MappedFloatTensor {
+
+	F16FloatTensor(int size, MemorySegment memorySegment) {
+		super(size, memorySegment);
+	}
+
+	@Override
+	int getFormatType() {
+		return 3;
+	}
+
+	@Override
+	public float getFloat(int index) {
+		assert 0 <= index && index < size;
+		return Float.float16ToFloat(readShort(memorySegment, (long) index * 2));
+	}
+
+	@Override
+	public float dot(int thisOffset, FloatTensor that, int thatOffset, int size) {
+		if (USE_VECTOR_API && that instanceof ArrayFloatTensor other)
+			return vectorDot(this, thisOffset, other, thatOffset, size);
+		return scalarDot(this, thisOffset, that, thatOffset, size);
+	}
+
+	/**
+	 * Converts in registers by moving the sign, rebiasing the exponent and shifting the mantissa into
+	 * float32 position. Infinities and NaNs are not handled and subnormals flush to zero, which suits
+	 * well formed weights.
+	 */
+	private static float vectorDot(F16FloatTensor thiz, int thisOffset, ArrayFloatTensor that, int thatOffset, int size) {
+		FloatVector val = FloatVector.zero(F_SPECIES);
+		int upperBound = F_SPECIES.loopBound(size);
+		for (int i = 0; i < upperBound; i += F_SPECIES.length()) {
+			ShortVector bits16 = ShortVector.fromMemorySegment(S_SPECIES_HALF, thiz.memorySegment, (long) (thisOffset + i) * 2, ByteOrder.LITTLE_ENDIAN);
+			// sign extended, the masks below only look at the low 16 bits
+			IntVector bits32 = bits16.castShape(I_SPECIES, 0).reinterpretAsInts();
+			// all ones unless the exponent is zero
+			IntVector nonZeroExponent = bits32.and(0x7C00).neg().lanewise(VectorOperators.ASHR, 31);
+			bits32 = bits32.and(0x8000).lanewise(VectorOperators.LSHL, 16)
+					.or(bits32.and(0x7FFF).add(0x1C000).lanewise(VectorOperators.LSHL, 13).and(nonZeroExponent));
+			val = bits32.reinterpretAsFloats().fma(that.getFloatVector(F_SPECIES, thatOffset + i), val);
+		}
+		float result = val.reduceLanes(VectorOperators.ADD);
+		if (upperBound < size)
+			result += scalarDot(thiz, thisOffset + upperBound, that, thatOffset + upperBound, size - upperBound);
+		return result;
+	}
+}
@@ -14,6 +14,8 @@ import jdk.incubator.vector.FloatVector;
 import jdk.incubator.vector.VectorShape;
 import jdk.incubator.vector.VectorSpecies;
 
+import com.llama4j.ffi.NativeMethods;
+
 /**
  * Over-simplified, shapeless, float tensor.
  * <p>
@@ -27,6 +29,7 @@ public abstract class FloatTensor implements Externalizable, Comparable {
 	
     private long devicePtr; // 0 if not uploaded
     private boolean uploaded = false;
+    private boolean hostShared = false; // devicePtr is the host segment itself
 	public static int dontMatch = 0;
 	public static int totalSdot = 0;
 	//public static Object mutex = new Object();
@@ -71,6 +74,28 @@ public abstract class FloatTensor implements Externalizable, Comparable {
  
   
     abstract int getFormatType(); // for GPU side quantized conversion
+    // kernel format parameters indexed by format type 1-5 = Q8_0, Q4_0, F16, BF16, F32
+    private static final int[] BLOCK_SIZE = {0, 32, 32, 1, 1, 1};
+    private static final int[] TYPE_SIZE = {0, 34, 18, 2, 2, 4};
+    private static final int[] HEADER_BYTES = {0, 2, 2, 0, 0, 0};
+    /**
+     * @return elements per quantization block, as passed to the kernels
+     */
+    int getBlockSize() {
+    	return BLOCK_SIZE[getFormatType()];
+    }
+    /**
+     * @return bytes per quantization block, as passed to the kernels
+     */
+    int getTypeSize() {
+    	return TYPE_SIZE[getFormatType()];
+    }
+    /**
+     * @return bytes of block scale preceding the quants, as passed to the kernels
+     */
+    int getHeaderBytes() {
+    	return HEADER_BYTES[getFormatType()];
+    }
     // Explicit byte count vs element count
     protected abstract long totalBytes();
 
@@ -103,14 +128,84 @@ public abstract class FloatTensor implements Externalizable, Comparable {
     public void setModified() {
     	uploaded = false;
     }
+    /**
+     * Allocate device memory for this tensor's bytes if not already done. Host memory on a CPU build.
+     */
+    public void allocateDevice() {
+    	if (isAllocated())
+    		return;
+    	try {
+    		devicePtr = (long) NativeMethods.Device.allocDevicePtr.invokeExact(totalBytes());
+    	} catch (Throwable e) {
+    		throw new RuntimeException(e);
+    	}
+    	if (devicePtr == 0L)
+    		throw new IllegalStateException("Device allocation of "+totalBytes()+" bytes failed");
+    	uploaded = false;
+    }
+    public void freeDevice() {
+    	if (!isAllocated())
+    		return;
+    	if (hostShared) {
+    		devicePtr = 0L;
+    		hostShared = false;
+    		uploaded = false;
+    		return;
+    	}
+    	try {
+    		NativeMethods.Device.freeDevicePtr.invokeExact(devicePtr);
+    	} catch (Throwable e) {
+    		throw new RuntimeException(e);
+    	}
+    	devicePtr = 0L;
+    	uploaded = false;
+    }
+    /**
+     * Hand the kernels the host segment itself instead of a copy, for a kernel library built for the CPU
+     * where device pointers are host addresses. Nothing is allocated or copied, so a weight mapped from a
+     * file stays in the page cache only once. The segment must be native and outlive the kernels' use of it.
+     */
+    public void shareHost() {
+    	if (isAllocated())
+    		return;
+    	if (!getSegment().isNative())
+    		throw new IllegalStateException("Heap tensor cannot be shared with the kernels: "+this);
+    	devicePtr = getSegment().address();
+    	hostShared = true;
+    	uploaded = true;
+    }
+    /**
+     * Allocate and upload once, the device copy then stays resident until {@link #freeDevice()}
+     */
+    public void makeResident(String id) {
+    	allocateDevice();
+    	if (!uploaded)
+    		copyHostToDevice(id);
+    }
+    public void copyDeviceToHost(String id) {
+        if (!isAllocated())
+            throw new RuntimeException("Device "+id+" is not initialized for DeviceToHost transfer: " + this.getSegment());
+        if (hostShared)
+            return;
+        try {
+            NativeMethods.Device.copyDeviceToHostMH.invokeExact(devicePtr, getSegment().address(), totalBytes());
+        } catch (Throwable e) {
+            throw new RuntimeException("DeviceToHost transfer failed for id:"+id+", "+this, e);
+        }
+        uploaded = true;
+    }
     public void copyHostToDevice(String id) {
         MemorySegment hostSeg = getSegment();
         long bytes = totalBytes();
         if (!isAllocated())
             throw new RuntimeException("Device "+id+" is not initialized for HostToDevice transfer: " + this.getSegment());
+        if (hostShared) {
+            uploaded = true;
+            return;
+        }
         try {
             // Signature should be (hostSeg, devicePtr, bytes)
-            Llama3.copyHostToDeviceMH.invokeExact(hostSeg, devicePtr, bytes);
+            NativeMethods.Device.copyHostToDeviceMH.invokeExact(hostSeg, devicePtr, bytes);
             uploaded = true;
         } catch (Throwable e) {
             throw new RuntimeException("HostToDevice transfer failed for id:"+id+", "+this, e);
@@ -130,26 +225,41 @@ public abstract class FloatTensor implements Externalizable, Comparable {
     	// CPU implementation for vector processing if available
    		Parallel.parallelFor(0, dim0, i -> out.setFloat(i, dot(i * dim1, that, 0, dim1)));
     }
+    // rows of this sharing one matmul task, the token batch runs against them while they are in cache
+    static final int MATMUL_ROW_TILE = 16;
+
     /**
-     * Matrix multiply array of tensors
-     * @param context
-     * @param that
-     * @param out
-     * @param dim0
-     * @param dim1
+     * Matrix multiply array of tensors, out[t] = this (dim0 x dim1) . that[t] for each of context tokens.
+     * Tasks own tiles of {@link #MATMUL_ROW_TILE} rows and run every token against a row before moving on,
+     * so a weight row is streamed from memory once per batch rather than once per token.
+     * @param context number of tokens
+     * @param that input vectors, dim1 each
+     * @param out output vectors, dim0 each
+     * @param dim0 rows
+     * @param dim1 columns
      */
     void matmul(int context, FloatTensor[] that, FloatTensor[] out, int dim0, int dim1) {
+    	checkBatch(context, that, out);
+    	int tiles = (dim0 + MATMUL_ROW_TILE - 1) / MATMUL_ROW_TILE;
+    	Parallel.parallelFor(0, tiles, tile -> {
+    		int end = Math.min(dim0, (tile + 1) * MATMUL_ROW_TILE);
+    		for (int i = tile * MATMUL_ROW_TILE; i < end; i++) {
+    			for (int t = 0; t < context; t++)
+    				out[t].setFloat(i, dot(i * dim1, that[t], 0, dim1));
+    		}
+    	});
+    }
+
+    /**
+     * Reject a batch whose input and output arrays differ in length or hold fewer than context vectors.
+     */
+    static void checkBatch(int context, FloatTensor[] that, FloatTensor[] out) {
     	if (that.length != out.length) {
     		throw new IllegalArgumentException(String.format("that.len=%d, out.len=%d", that.length, out.length));
     	}
-    	//
-    	// matrix multiply using scalar dot product with vector processing if available, CPU otherwise
-    	//
-    	Parallel.parallelForLong(0, dim0 * context, ti -> {
-    		int idxArr = (int) (ti / dim0);
-    		int i = (int) (ti % dim0);
-    		out[idxArr].setFloat(i, dot(i * dim1, that[idxArr], 0, dim1)); 
-    	});
+    	if (context < 0 || context > that.length) {
+    		throw new IllegalArgumentException(String.format("context=%d, that.len=%d", context, that.length));
+    	}
     }
 
     @FunctionalInterface
@@ -244,16 +354,76 @@ public abstract class FloatTensor implements Externalizable, Comparable {
         return mapInPlace(thisOffset, size, unused -> value);
     }
     
+    /**
+     * Online softmax: one read pass keeps a running max and rescales the running sum whenever the max grows,
+     * one pass writes exp(x - max) times 1 / sum. Agrees with the row softmax kernel to rounding only, the sum is
+     * accumulated in another order and the reciprocal multiply can differ from a divide in the last bit.
+     */
     FloatTensor softmaxInPlace(int thisOffset, int size) {
-    	// CPU implementation for vector processing if available
-    	//try (Timer timer = Timer.log("CPU SoftMax:"+String.valueOf(size),TimeUnit.MICROSECONDS)) {
-    	// find max value (for numerical stability)
-    	float maxVal = max(thisOffset, size);
-    	// exp and sum
-    	mapInPlace(thisOffset, size, f -> (float) Math.exp(f - maxVal));
-    	float sum = sum(thisOffset, size);
-    	// normalize
-    	return divideInPlace(thisOffset, size, sum);	
+    	float max = Float.NEGATIVE_INFINITY;
+    	float sum = 0f;
+    	for (int i = 0; i < size; i++) {
+    		float v = getFloat(thisOffset + i);
+    		if (v > max) {
+    			sum = sum * (float) Math.exp(max - v) + 1f;
+    			max = v;
+    		} else if (v != Float.NEGATIVE_INFINITY) {
+    			sum += (float) Math.exp(v - max);
+    		}
+    	}
+    	float scale = 1f / sum;
+    	for (int i = 0; i < size; i++)
+    		setFloat(thisOffset + i, (float) Math.exp(getFloat(thisOffset + i) - max) * scale);
+    	return this;
+    }
+
+    /**
+     * @return 1 / sqrt(mean square + eps), the rmsnorm scale
+     */
+    static float rmsScale(float sumOfSquares, int size, float eps) {
+    	return (float) (1.0 / Math.sqrt(sumOfSquares / size + eps));
+    }
+
+    /**
+     * out = weight * this / rms(this), the rmsnorm kernel on the host: a sum of squares pass, then one pass
+     * that scales, weights and writes.
+     * @return out
+     */
+    FloatTensor rmsnormTo(int thisOffset, FloatTensor weight, int weightOffset, FloatTensor out, int outOffset, int size, float eps) {
+    	float ss = 0f;
+    	for (int i = 0; i < size; i++) {
+    		float v = getFloat(thisOffset + i);
+    		ss += v * v;
+    	}
+    	float scale = rmsScale(ss, size, eps);
+    	for (int i = 0; i < size; i++)
+    		out.setFloat(outOffset + i, weight.getFloat(weightOffset + i) * (scale * getFloat(thisOffset + i)));
+    	return out;
+    }
+    FloatTensor rmsnormTo(FloatTensor weight, FloatTensor out, float eps) {
+    	return rmsnormTo(0, weight, 0, out, 0, size(), eps);
+    }
+
+    /**
+     * Residual step of a transformer block: this += that, then out = rmsnorm(this) with weight. The sum of
+     * squares accumulates during the add, so this is read twice instead of three times.
+     * @return out
+     */
+    FloatTensor addRmsnormTo(int thisOffset, FloatTensor that, int thatOffset, FloatTensor weight, int weightOffset,
+    		FloatTensor out, int outOffset, int size, float eps) {
+    	float ss = 0f;
+    	for (int i = 0; i < size; i++) {
+    		float v = getFloat(thisOffset + i) + that.getFloat(thatOffset + i);
+    		setFloat(thisOffset + i, v);
+    		ss += v * v;
+    	}
+    	float scale = rmsScale(ss, size, eps);
+    	for (int i = 0; i < size; i++)
+    		out.setFloat(outOffset + i, weight.getFloat(weightOffset + i) * (scale * getFloat(thisOffset + i)));
+    	return out;
+    }
+    FloatTensor addRmsnormTo(FloatTensor that, FloatTensor weight, FloatTensor out, float eps) {
+    	return addRmsnormTo(0, that, 0, weight, 0, out, 0, size(), eps);
     }
     /**
      * ax + y (get it? single prec. ax, plus y is saxpy)
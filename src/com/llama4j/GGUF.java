@@ -0,0 +1,335 @@
+package com.llama4j;
+
+import java.io.IOException;
+import java.lang.foreign.Arena;
+import java.lang.foreign.MemorySegment;
+import java.lang.foreign.ValueLayout;
+import java.nio.ByteOrder;
+import java.nio.channels.FileChannel;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.Path;
+import java.nio.file.StandardOpenOption;
+import java.util.Collections;
+import java.util.LinkedHashMap;
+import java.util.Map;
+import java.util.TreeMap;
+
+/**
+ * Memory mapped GGUF file. The header, metadata and tensor directory are parsed straight from the mapping,
+ * large metadata arrays such as the vocabulary stay as views into it, and each tensor is exposed as a
+ * zero-copy {@link FloatTensor} over its bytes, so opening a model costs page faults on the directory only.
+ * The native library maps the same file, so the mapping itself is shared rather than doubled. Anything that
+ * copies the tensors out, such as the device upload of {@link LlamaForward}, costs their full size again.<p>
+ * -Dllama.PreloadGGUF=path parses that file at class initialization, ahead of time in a native image build.
+ * @see <a href="https://github.com/ggerganov/ggml/blob/master/docs/gguf.md">GGUF format</a>
+ */
+final class GGUF implements AutoCloseable {
+	public static boolean DEBUG = false;
+	private static final int MAGIC = 0x46554747; // "GGUF" little endian
+	private static final int DEFAULT_ALIGNMENT = 32;
+	private static final ValueLayout.OfByte U8 = ValueLayout.JAVA_BYTE;
+	private static final ValueLayout.OfShort U16 = ValueLayout.JAVA_SHORT_UNALIGNED.withOrder(ByteOrder.LITTLE_ENDIAN);
+	private static final ValueLayout.OfInt U32 = ValueLayout.JAVA_INT_UNALIGNED.withOrder(ByteOrder.LITTLE_ENDIAN);
+	private static final ValueLayout.OfLong U64 = ValueLayout.JAVA_LONG_UNALIGNED.withOrder(ByteOrder.LITTLE_ENDIAN);
+	private static final ValueLayout.OfFloat F32 = ValueLayout.JAVA_FLOAT_UNALIGNED.withOrder(ByteOrder.LITTLE_ENDIAN);
+	private static final ValueLayout.OfDouble F64 = ValueLayout.JAVA_DOUBLE_UNALIGNED.withOrder(ByteOrder.LITTLE_ENDIAN);
+	// metadata value types
+	private static final int UINT8 = 0, INT8 = 1, UINT16 = 2, INT16 = 3, UINT32 = 4, INT32 = 5, FLOAT32 = 6,
+			BOOL = 7, STRING = 8, ARRAY = 9, UINT64 = 10, INT64 = 11, FLOAT64 = 12;
+	// ggml tensor types: name, elements per block, bytes per block
+	private static final String[] TYPE_NAMES = {"F32", "F16", "Q4_0", "Q4_1", null, null, "Q5_0", "Q5_1", "Q8_0", "Q8_1",
+			"Q2_K", "Q3_K", "Q4_K", "Q5_K", "Q6_K", "Q8_K", "IQ2_XXS", "IQ2_XS", "IQ3_XXS", "IQ1_S", "IQ4_NL", "IQ3_S",
+			"IQ2_S", "IQ4_XS", "I8", "I16", "I32", "I64", "F64", "IQ1_M", "BF16"};
+	private static final int[] TYPE_BLOCK = {1, 1, 32, 32, 0, 0, 32, 32, 32, 32,
+			256, 256, 256, 256, 256, 256, 256, 256, 256, 256, 32, 256,
+			256, 256, 1, 1, 1, 1, 1, 256, 1};
+	private static final int[] TYPE_BYTES = {4, 2, 18, 20, 0, 0, 22, 24, 34, 36,
+			84, 110, 144, 176, 210, 292, 66, 74, 98, 50, 18, 110,
+			82, 136, 1, 2, 4, 8, 8, 56, 2};
+	private static final String PRELOAD = System.getProperty("llama.PreloadGGUF");
+	private static final GGUF PRELOADED;
+
+	static {
+		GGUF preloaded = null;
+		if (PRELOAD != null && !PRELOAD.isEmpty()) {
+			try {
+				preloaded = new GGUF(Path.of(PRELOAD).toAbsolutePath(), Arena.global());
+			} catch (IOException e) {
+				throw new ExceptionInInitializerError(e);
+			}
+		}
+		PRELOADED = preloaded;
+	}
+
+	/**
+	 * A metadata array left in the mapping.
+	 * @param type element value type
+	 * @param count number of elements
+	 * @param offset file offset of the first element
+	 */
+	record ArrayValue(int type, long count, long offset) {}
+
+	/**
+	 * One entry of the tensor directory.
+	 * @param shape dimensions, innermost first as stored
+	 * @param type ggml type id
+	 * @param offset relative to the start of tensor data
+	 */
+	record TensorInfo(String name, long[] shape, int type, long offset) {
+		long elements() {
+			long n = 1;
+			for (long d : shape)
+				n *= d;
+			return n;
+		}
+		long byteSize() {
+			return type < TYPE_BLOCK.length && TYPE_BLOCK[type] > 0 ? elements() / TYPE_BLOCK[type] * TYPE_BYTES[type] : 0L;
+		}
+		String typeName() {
+			return GGUF.typeName(type);
+		}
+	}
+
+	private final Path path;
+	private final Arena arena;
+	private final MemorySegment file;
+	private final int version;
+	private final Map<String, Object> metadata;
+	private final Map<String, TensorInfo> tensors;
+	private final long dataStart;
+	private long pos;
+
+	private GGUF(Path path, Arena arena) throws IOException {
+		this.path = path;
+		this.arena = arena;
+		try (FileChannel channel = FileChannel.open(path, StandardOpenOption.READ)) {
+			this.file = channel.map(FileChannel.MapMode.READ_ONLY, 0, channel.size(), arena);
+		}
+		if (file.byteSize() < 24 || file.get(U32, 0) != MAGIC)
+			throw new IOException("Not a GGUF file: "+path);
+		version = file.get(U32, 4);
+		if (version < 2)
+			throw new IOException("GGUF version "+version+" unsupported, 2 or later needed: "+path);
+		long tensorCount = file.get(U64, 8);
+		long kvCount = file.get(U64, 16);
+		pos = 24;
+		Map<String, Object> kv = new LinkedHashMap<>();
+		for (long i = 0; i < kvCount; i++) {
+			String key = readString();
+			kv.put(key, readValue(file.get(U32, advance(4))));
+		}
+		metadata = Collections.unmodifiableMap(kv);
+		Map<String, TensorInfo> infos = new LinkedHashMap<>();
+		for (long i = 0; i < tensorCount; i++) {
+			String name = readString();
+			int nDims = file.get(U32, advance(4));
+			long[] shape = new long[nDims];
+			for (int d = 0; d < nDims; d++)
+				shape[d] = file.get(U64, advance(8));
+			int type = file.get(U32, advance(4));
+			long offset = file.get(U64, advance(8));
+			infos.put(name, new TensorInfo(name, shape, type, offset));
+		}
+		tensors = Collections.unmodifiableMap(infos);
+		int alignment = metadata.get("general.alignment") instanceof Number n ? n.intValue() : DEFAULT_ALIGNMENT;
+		dataStart = (pos + alignment - 1) / alignment * alignment;
+		if (DEBUG)
+			System.out.println(this);
+	}
+
+	/**
+	 * Map a GGUF file, or return the preloaded one for the same path.
+	 * @return the mapping, close it to unmap
+	 */
+	static GGUF open(Path path) throws IOException {
+		Path absolute = path.toAbsolutePath();
+		if (PRELOADED != null && PRELOADED.path.equals(absolute))
+			return PRELOADED;
+		return new GGUF(absolute, Arena.ofShared());
+	}
+
+	private long advance(long bytes) {
+		long at = pos;
+		pos += bytes;
+		return at;
+	}
+
+	private String readString() {
+		long length = file.get(U64, advance(8));
+		long at = advance(length);
+		return new String(file.asSlice(at, length).toArray(U8), StandardCharsets.UTF_8);
+	}
+
+	private Object readValue(int type) throws IOException {
+		return switch (type) {
+		case UINT8, INT8 -> file.get(U8, advance(1));
+		case UINT16, INT16 -> file.get(U16, advance(2));
+		case UINT32, INT32 -> file.get(U32, advance(4));
+		case UINT64, INT64 -> file.get(U64, advance(8));
+		case FLOAT32 -> file.get(F32, advance(4));
+		case FLOAT64 -> file.get(F64, advance(8));
+		case BOOL -> file.get(U8, advance(1)) != 0;
+		case STRING -> readString();
+		case ARRAY -> {
+			int elementType = file.get(U32, advance(4));
+			long count = file.get(U64, advance(8));
+			long start = pos;
+			skipArray(elementType, count);
+			yield new ArrayValue(elementType, count, start);
+		}
+		default -> throw new IOException("Unknown GGUF metadata type "+type+" at "+pos+" in "+path);
+		};
+	}
+
+	/**
+	 * Step over array elements, fixed width ones in one jump, strings by their lengths only.
+	 */
+	private void skipArray(int type, long count) throws IOException {
+		switch (type) {
+		case UINT8, INT8, BOOL -> pos += count;
+		case UINT16, INT16 -> pos += count * 2;
+		case UINT32, INT32, FLOAT32 -> pos += count * 4;
+		case UINT64, INT64, FLOAT64 -> pos += count * 8;
+		case STRING -> {
+			for (long i = 0; i < count; i++)
+				pos += 8 + file.get(U64, pos);
+		}
+		case ARRAY -> {
+			for (long i = 0; i < count; i++) {
+				int elementType = file.get(U32, advance(4));
+				skipArray(elementType, file.get(U64, advance(8)));
+			}
+		}
+		default -> throw new IOException("Unknown GGUF array type "+type+" in "+path);
+		}
+	}
+
+	/**
+	 * Decode the strings of a string array, e.g. the vocabulary.
+	 */
+	String[] strings(ArrayValue array) {
+		if (array.type() != STRING)
+			throw new IllegalArgumentException("Not a string array: "+array);
+		String[] out = new String[Math.toIntExact(array.count())];
+		long at = array.offset();
+		for (int i = 0; i < out.length; i++) {
+			long length = file.get(U64, at);
+			out[i] = new String(file.asSlice(at + 8, length).toArray(U8), StandardCharsets.UTF_8);
+			at += 8 + length;
+		}
+		return out;
+	}
+
+	Path path() {
+		return path;
+	}
+
+	int version() {
+		return version;
+	}
+
+	/**
+	 * @return key value metadata in file order, scalars boxed, arrays as {@link ArrayValue}
+	 */
+	Map<String, Object> metadata() {
+		return metadata;
+	}
+
+	/**
+	 * @return tensor directory in file order
+	 */
+	Map<String, TensorInfo> tensors() {
+		return tensors;
+	}
+
+	/**
+	 * @return the bytes of a tensor, null if absent
+	 */
+	MemorySegment tensorSegment(String name) {
+		TensorInfo info = tensors.get(name);
+		if (info == null)
+			return null;
+		return file.asSlice(dataStart + info.offset(), info.byteSize());
+	}
+
+	/**
+	 * @return a zero-copy view of a tensor, null if absent
+	 * @throws UnsupportedOperationException if its type has no tensor class
+	 */
+	FloatTensor tensor(String name) {
+		TensorInfo info = tensors.get(name);
+		if (info == null)
+			return null;
+		return MappedFloatTensor.of(info.type(), file.asSlice(dataStart + info.offset()), Math.toIntExact(info.elements()));
+	}
+
+	String architecture() {
+		return metadata.get("general.architecture") instanceof String s ? s : "unknown";
+	}
+
+	/**
+	 * @return trained context length, 0 if not recorded
+	 */
+	int contextLength() {
+		return metadata.get(architecture()+".context_length") instanceof Number n ? n.intValue() : 0;
+	}
+
+	/**
+	 * @return number of vocabulary entries, 0 if not recorded
+	 */
+	int vocabSize() {
+		return metadata.get("tokenizer.ggml.tokens") instanceof ArrayValue a ? Math.toIntExact(a.count()) : 0;
+	}
+
+	/**
+	 * @return tensor count and bytes per ggml type name
+	 */
+	Map<String, long[]> quantizationMix() {
+		Map<String, long[]> mix = new TreeMap<>();
+		for (TensorInfo info : tensors.values()) {
+			long[] countBytes = mix.computeIfAbsent(info.typeName(), k -> new long[2]);
+			countBytes[0]++;
+			countBytes[1] += info.byteSize();
+		}
+		return mix;
+	}
+
+	static String typeName(int type) {
+		return type >= 0 && type < TYPE_NAMES.length && TYPE_NAMES[type] != null ? TYPE_NAMES[type] : "type "+type;
+	}
+
+	/**
+	 * One screen summary: architecture, shape, context, vocabulary and quantization mix.
+	 */
+	String describe() {
+		String arch = architecture();
+		StringBuilder sb = new StringBuilder();
+		sb.append(path).append('\n');
+		sb.append("  GGUF v").append(version).append(", ").append(metadata.size()).append(" metadata keys, ")
+			.append(tensors.size()).append(" tensors, ").append(file.byteSize() >> 20).append(" MB\n");
+		sb.append("  name: ").append(metadata.getOrDefault("general.name", "?")).append(", architecture: ").append(arch).append('\n');
+		sb.append("  context: ").append(contextLength()).append(", vocab: ").append(vocabSize())
+			.append(", embedding: ").append(metadata.getOrDefault(arch+".embedding_length", "?"))
+			.append(", layers: ").append(metadata.getOrDefault(arch+".block_count", "?"))
+			.append(", heads: ").append(metadata.getOrDefault(arch+".attention.head_count", "?"))
+			.append('/').append(metadata.getOrDefault(arch+".attention.head_count_kv", "?")).append('\n');
+		sb.append("  quantization:");
+		for (Map.Entry<String, long[]> e : quantizationMix().entrySet())
+			sb.append(' ').append(e.getKey()).append(" x").append(e.getValue()[0]).append(" (").append(e.getValue()[1] >> 20).append(" MB)");
+		return sb.toString();
+	}
+
+	/**
+	 * Unmap, every tensor view becomes invalid. The preloaded mapping stays.
+	 */
+	@Override
+	public void close() {
+		if (this != PRELOADED)
+			arena.close();
+	}
+
+	@Override
+	public String toString() {
+		return "GGUF "+path+" v"+version+" keys:"+metadata.size()+" tensors:"+tensors.size()+" data:"+dataStart;
+	}
+}
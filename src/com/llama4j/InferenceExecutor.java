@@ -0,0 +1,256 @@
+package com.llama4j;
+
+import java.lang.foreign.Arena;
+import java.lang.foreign.MemorySegment;
+import java.lang.foreign.ValueLayout;
+import java.util.Arrays;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.concurrent.atomic.AtomicReference;
+import java.util.concurrent.locks.LockSupport;
+import java.util.concurrent.locks.ReentrantLock;
+import java.util.function.IntConsumer;
+import java.util.function.LongConsumer;
+import java.util.stream.IntStream;
+
+import org.apache.commons.logging.Log;
+import org.apache.commons.logging.LogFactory;
+
+import com.llama4j.ffi.NativeMethods;
+
+/**
+ * Dedicated worker pool behind {@link Parallel}, so inference no longer shares the common ForkJoinPool with
+ * every other parallel stream in the JVM.<p>
+ * A range is split statically into one contiguous chunk per thread. The caller runs the first chunk unless pinned and
+ * waits for the rest at a spin-then-park barrier, workers spin briefly for the next job before parking,
+ * so the per-layer fan-out and join cost neither queueing nor task objects per index. The same chunk of
+ * a weight matrix lands on the same worker every layer and token, which keeps it in that core's cache.<p>
+ * -Dllama.Threads=n threads computing a job, counting the caller, default the affinity list length or available processors.<br>
+ * -Dllama.Affinity=0-7,16-23 pins worker i to the i-th CPU of the list with sched_setaffinity (Linux),
+ * the in-process equivalent of taskset on a single CCD that leaves the rest of the JVM unpinned.
+ * The calling thread is not pinned, so with a list every chunk goes to a pinned worker, one per listed CPU
+ * by default, and the caller only waits at the barrier.<p>
+ * One job runs at a time, other threads wait their turn and calls nested inside a job run inline.
+ */
+final class InferenceExecutor {
+	public static boolean DEBUG = false;
+	private static final Log log = LogFactory.getLog(InferenceExecutor.class);
+	// Thread.onSpinWait iterations before parking, some tens of microseconds
+	private static final int SPINS = 1 << 14;
+	// bytes of a glibc cpu_set_t, 1024 CPUs
+	private static final int CPU_SET_BYTES = 128;
+	private static final InferenceExecutor INSTANCE = create();
+
+	/**
+	 * Work on the index range [from, to) of a job.
+	 */
+	@FunctionalInterface
+	interface Chunk {
+		void run(long from, long to);
+	}
+
+	/**
+	 * One fan-out, published whole through {@link #job} so a late worker never mixes two jobs.
+	 */
+	private static final class Job {
+		final long id;
+		final Chunk chunk;
+		final long start;
+		final long length;
+		final int chunks;
+		final Thread caller;
+		final AtomicInteger pending;
+		final AtomicReference<Throwable> failure = new AtomicReference<>();
+		Job(long id, Chunk chunk, long start, long length, int chunks, int pending, Thread caller) {
+			this.id = id;
+			this.chunk = chunk;
+			this.start = start;
+			this.length = length;
+			this.chunks = chunks;
+			this.caller = caller;
+			this.pending = new AtomicInteger(pending);
+		}
+		/**
+		 * Run chunk i, recording rather than throwing a failure so the barrier still completes.
+		 */
+		void run(int i) {
+			try {
+				chunk.run(start + length * i / chunks, start + length * (i + 1) / chunks);
+			} catch (Throwable t) {
+				failure.compareAndSet(null, t);
+			}
+		}
+	}
+
+	private final int threads;
+	private final int[] cpus;
+	// the caller runs chunk 0 unless the workers are pinned, then worker i runs chunk i
+	private final boolean callerRuns;
+	private final Worker[] workers;
+	// spinning only pays when every thread has a core, oversubscribed threads would spin on each other's time
+	private final int spins;
+	private final ReentrantLock lock = new ReentrantLock();
+	private volatile Job job;
+	private long jobs;
+
+	private InferenceExecutor(int threads, int[] cpus) {
+		this.threads = threads;
+		this.cpus = cpus;
+		this.callerRuns = cpus.length == 0;
+		this.workers = new Worker[callerRuns ? threads - 1 : threads];
+		// a waiting caller that does not compute still spins on a core of its own
+		this.spins = workers.length + 1 <= Runtime.getRuntime().availableProcessors() ? SPINS : 0;
+		for (int w = 0; w < workers.length; w++) {
+			workers[w] = new Worker(callerRuns ? w + 1 : w, cpus.length > 0 ? cpus[w % cpus.length] : -1);
+			workers[w].start();
+		}
+		if (DEBUG)
+			log.info(this);
+	}
+
+	private static InferenceExecutor create() {
+		int[] cpus = parseCpus(System.getProperty("llama.Affinity", ""));
+		int threads = Integer.getInteger("llama.Threads", cpus.length > 0 ? cpus.length : Runtime.getRuntime().availableProcessors());
+		if (threads < 1)
+			throw new IllegalArgumentException("llama.Threads must be positive: "+threads);
+		return new InferenceExecutor(threads, cpus);
+	}
+
+	/**
+	 * @return the process wide pool
+	 */
+	static InferenceExecutor get() {
+		return INSTANCE;
+	}
+
+	/**
+	 * @param list CPU numbers and inclusive ranges separated by commas, e.g. 0-7,16-23
+	 * @return the CPUs in list order, empty for an empty list
+	 */
+	static int[] parseCpus(String list) {
+		if (list.isBlank())
+			return new int[0];
+		return Arrays.stream(list.split(","))
+				.map(String::strip)
+				.flatMapToInt(range -> {
+					int dash = range.indexOf('-');
+					if (dash < 0)
+						return IntStream.of(Integer.parseInt(range));
+					return IntStream.rangeClosed(Integer.parseInt(range.substring(0, dash).strip()),
+							Integer.parseInt(range.substring(dash + 1).strip()));
+				})
+				.toArray();
+	}
+
+	int threads() {
+		return threads;
+	}
+
+	void parallelFor(int startInclusive, int endExclusive, IntConsumer action) {
+		run(startInclusive, endExclusive, (from, to) -> {
+			for (int i = (int) from; i < to; i++)
+				action.accept(i);
+		});
+	}
+
+	void parallelForLong(long startInclusive, long endExclusive, LongConsumer action) {
+		run(startInclusive, endExclusive, (from, to) -> {
+			for (long i = from; i < to; i++)
+				action.accept(i);
+		});
+	}
+
+	/**
+	 * Split [startInclusive, endExclusive) into at most one chunk per thread and return when all have run.
+	 * @throws RuntimeException wrapping the first failure of any chunk, errors are rethrown as is
+	 */
+	void run(long startInclusive, long endExclusive, Chunk chunk) {
+		long length = endExclusive - startInclusive;
+		if (length <= 0)
+			return;
+		int chunks = (int) Math.min(threads, length);
+		if ((chunks == 1 && callerRuns) || Thread.currentThread() instanceof Worker || lock.isHeldByCurrentThread()) {
+			chunk.run(startInclusive, endExclusive);
+			return;
+		}
+		lock.lock();
+		try {
+			int offloaded = callerRuns ? chunks - 1 : chunks;
+			Job j = new Job(++jobs, chunk, startInclusive, length, chunks, offloaded, Thread.currentThread());
+			job = j;
+			for (int w = 0; w < offloaded; w++)
+				LockSupport.unpark(workers[w]);
+			if (callerRuns)
+				j.run(0);
+			for (int spin = 0; j.pending.get() > 0 && spin < spins; spin++)
+				Thread.onSpinWait();
+			while (j.pending.get() > 0)
+				LockSupport.park(this);
+			Throwable failure = j.failure.get();
+			if (failure instanceof Error e)
+				throw e;
+			if (failure instanceof RuntimeException e)
+				throw e;
+			if (failure != null)
+				throw new RuntimeException(failure);
+		} finally {
+			lock.unlock();
+		}
+	}
+
+	/**
+	 * Restrict the calling thread to one CPU.
+	 * @return whether the kernel accepted the mask
+	 */
+	static boolean pinCurrentThread(int cpu) {
+		if (!System.getProperty("os.name", "").toLowerCase().contains("linux") || cpu < 0 || cpu >= CPU_SET_BYTES * 8)
+			return false;
+		try (Arena arena = Arena.ofConfined()) {
+			MemorySegment mask = arena.allocate(CPU_SET_BYTES);
+			mask.set(ValueLayout.JAVA_BYTE, cpu / 8, (byte) (1 << (cpu % 8)));
+			return (int) NativeMethods.Affinity.schedSetaffinityMH.invokeExact(0, (long) CPU_SET_BYTES, mask) == 0;
+		} catch (Throwable e) {
+			log.warn("sched_setaffinity unavailable: "+e);
+			return false;
+		}
+	}
+
+	private final class Worker extends Thread {
+		private final int index;
+		private final int cpu;
+		Worker(int index, int cpu) {
+			super("llama-worker-"+index);
+			this.index = index;
+			this.cpu = cpu;
+			setDaemon(true);
+		}
+		@Override
+		public void run() {
+			if (cpu >= 0 && !pinCurrentThread(cpu))
+				log.warn(getName()+" could not be pinned to CPU "+cpu);
+			long seen = 0;
+			while (true) {
+				Job j = job;
+				for (int spin = 0; (j == null || j.id == seen) && spin < spins; spin++) {
+					Thread.onSpinWait();
+					j = job;
+				}
+				while (j == null || j.id == seen) {
+					LockSupport.park(this);
+					j = job;
+				}
+				seen = j.id;
+				// the job may need fewer chunks than there are workers
+				if (index < j.chunks) {
+					j.run(index);
+					if (j.pending.decrementAndGet() == 0)
+						LockSupport.unpark(j.caller);
+				}
+			}
+		}
+	}
+
+	@Override
+	public String toString() {
+		return "InferenceExecutor threads:"+threads+" spins:"+spins+(cpus.length > 0 ? " cpus:"+Arrays.toString(cpus) : "")+" jobs:"+jobs;
+	}
+}
@@ -7,6 +7,7 @@ import java.io.ObjectOutput;
 
 import java.lang.foreign.Arena;
 import java.lang.foreign.MemorySegment;
+import java.lang.foreign.SegmentAllocator;
 import java.lang.foreign.ValueLayout;
 import java.nio.ByteOrder;
 import java.util.ArrayList;
@@ -44,6 +45,20 @@ final class IntTensor implements Externalizable, Comparable {
 			setInt(i,(int)o[i]);
 	}
 	
+	/**
+	 * Wrap an existing segment, e.g. a pooled buffer or a slice of one
+	 */
+	IntTensor(MemorySegment memorySegment) {
+		this.memorySegment = memorySegment;
+	}
+	/**
+	 * Allocate a zeroed, vector aligned tensor from a request scoped allocator such as a confined arena
+	 * or a {@link BufferPool.Scope}, instead of the process lifetime shared arena
+	 */
+	static IntTensor allocate(SegmentAllocator allocator, int size) {
+		return new IntTensor(allocator.allocate((long) size * Integer.BYTES, BufferPool.ALIGNMENT));
+	}
+
 	public static IntTensor allocate(int... dims) {
 		int numberOfElements = FloatTensor.numberOfElements(dims);
 		return new IntTensor(new int[numberOfElements]);
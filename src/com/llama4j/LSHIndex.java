@@ -0,0 +1,439 @@
+package com.llama4j;
+
+import java.lang.foreign.Arena;
+import java.lang.foreign.MemorySegment;
+import java.lang.foreign.ValueLayout;
+import java.nio.ByteOrder;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.Collections;
+import java.util.List;
+import java.util.PriorityQueue;
+import java.util.SplittableRandom;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.concurrent.atomic.AtomicReferenceArray;
+import java.util.concurrent.atomic.LongAdder;
+import java.util.concurrent.locks.ReentrantReadWriteLock;
+
+import jdk.incubator.vector.FloatVector;
+import jdk.incubator.vector.VectorOperators;
+
+/**
+ * Approximate nearest neighbour index over embedding vectors, each carrying the {@link TimestampRole}
+ * of the turn it came from.<p>
+ * Random hyperplane LSH: each of {@code tables} hash tables assigns a vector a {@code bits} wide signature,
+ * one bit per hyperplane side, so vectors at a small angle tend to share buckets. A query visits its own bucket
+ * in every table and then the buckets reached by flipping the bits whose hyperplanes it lies closest to, and
+ * reranks the union by exact dot product. Vectors should be normalized so that is cosine similarity.<p>
+ * Vectors, payloads and bucket chains live off-heap in fixed size chunks, the heap holds only the per table
+ * signature to chain head maps, so millions of entries cost no objects. Buckets are striped with a read/write
+ * lock per stripe, inserts and queries from many threads only contend when they hit the same stripe.
+ */
+final class LSHIndex implements AutoCloseable {
+	public static boolean DEBUG = false;
+	private static final int CHUNK_SHIFT = 14;
+	private static final int CHUNK = 1 << CHUNK_SHIFT;
+	private static final int STRIPES = 64;
+	// bits considered for two bit probes, pairs grow quadratically
+	private static final int PAIR_BITS = 8;
+	private static final int NONE = -1;
+	private static final ChatFormat.Role[] ROLES = ChatFormat.Role.values();
+	private final int dim;
+	private final int tables;
+	private final int bits;
+	private final int probes;
+	private final int capacity;
+	private final Arena arena = Arena.ofShared();
+	// tables * bits hyperplanes of dim floats
+	private final MemorySegment planes;
+	private final AtomicReferenceArray<Chunk> chunks;
+	private final Stripe[] stripes;
+	private final AtomicInteger nextId = new AtomicInteger();
+	private final LongAdder size = new LongAdder();
+	private final LongAdder queries = new LongAdder();
+	private final LongAdder candidates = new LongAdder();
+
+	/**
+	 * Search result, score is the dot product with the query.
+	 */
+	record Hit(int id, float score, TimestampRole role) {}
+
+	private static final class Chunk {
+		final MemorySegment vectors;
+		final MemorySegment timestamps;
+		final MemorySegment roles;
+		// per table link to the previous entry in the same bucket
+		final MemorySegment next;
+		Chunk(Arena arena, int dim, int tables) {
+			vectors = arena.allocate((long) CHUNK * dim * Float.BYTES, BufferPool.ALIGNMENT);
+			timestamps = arena.allocate((long) CHUNK * Long.BYTES, Long.BYTES);
+			roles = arena.allocate(CHUNK);
+			next = arena.allocate((long) CHUNK * tables * Integer.BYTES, Integer.BYTES);
+		}
+	}
+
+	/**
+	 * Open addressing signature to newest entry map for a slice of one table's buckets.
+	 */
+	private static final class Stripe {
+		final ReentrantReadWriteLock lock = new ReentrantReadWriteLock();
+		long[] keys = new long[16];
+		int[] heads = new int[16];
+		int used;
+		Stripe() {
+			Arrays.fill(heads, NONE);
+		}
+		private int slot(long key) {
+			int mask = keys.length - 1;
+			int i = (int) mix(key) & mask;
+			while (heads[i] != NONE && keys[i] != key)
+				i = (i + 1) & mask;
+			return i;
+		}
+		int head(long key) {
+			lock.readLock().lock();
+			try {
+				return heads[slot(key)];
+			} finally {
+				lock.readLock().unlock();
+			}
+		}
+		/**
+		 * Make id the bucket head, linking it to the previous head. The link is written under the lock,
+		 * so a reader that sees id in heads also sees the rest of its chain.
+		 */
+		void push(long key, int id, MemorySegment next, long linkIndex) {
+			lock.writeLock().lock();
+			try {
+				int s = slot(key);
+				int prev = heads[s];
+				next.setAtIndex(ValueLayout.JAVA_INT, linkIndex, prev);
+				if (prev == NONE) {
+					keys[s] = key;
+					heads[s] = id;
+					if (++used * 4 > keys.length * 3)
+						grow();
+				} else {
+					heads[s] = id;
+				}
+			} finally {
+				lock.writeLock().unlock();
+			}
+		}
+		private void grow() {
+			long[] oldKeys = keys;
+			int[] oldHeads = heads;
+			keys = new long[oldKeys.length * 2];
+			heads = new int[oldHeads.length * 2];
+			Arrays.fill(heads, NONE);
+			for (int i = 0; i < oldKeys.length; i++) {
+				if (oldHeads[i] != NONE) {
+					int s = slot(oldKeys[i]);
+					keys[s] = oldKeys[i];
+					heads[s] = oldHeads[i];
+				}
+			}
+		}
+	}
+
+	/**
+	 * @param dim vector width
+	 * @param tables number of hash tables, more raises recall and memory
+	 * @param bits signature bits per table, at most 64, more makes buckets smaller
+	 * @param probes extra buckets visited per table beyond the query's own
+	 * @param capacity maximum number of entries
+	 * @param seed hyperplane seed, indexes that are to agree must share it
+	 */
+	LSHIndex(int dim, int tables, int bits, int probes, int capacity, long seed) {
+		if (bits < 1 || bits > Long.SIZE)
+			throw new IllegalArgumentException("bits must be 1.."+Long.SIZE+": "+bits);
+		if (dim < 1 || tables < 1 || probes < 0 || capacity < 1)
+			throw new IllegalArgumentException("dim:"+dim+" tables:"+tables+" probes:"+probes+" capacity:"+capacity);
+		this.dim = dim;
+		this.tables = tables;
+		this.bits = bits;
+		this.probes = probes;
+		this.capacity = capacity;
+		this.chunks = new AtomicReferenceArray<>((capacity + CHUNK - 1) >>> CHUNK_SHIFT);
+		this.stripes = new Stripe[tables * STRIPES];
+		for (int i = 0; i < stripes.length; i++)
+			stripes[i] = new Stripe();
+		planes = arena.allocate((long) tables * bits * dim * Float.BYTES, BufferPool.ALIGNMENT);
+		SplittableRandom random = new SplittableRandom(seed);
+		for (long i = 0; i < (long) tables * bits * dim; i++)
+			planes.setAtIndex(ValueLayout.JAVA_FLOAT, i, (float) random.nextGaussian());
+	}
+
+	/**
+	 * 8 tables of 16 bits with 8 probes, a reasonable start for a few million entries.
+	 */
+	LSHIndex(int dim, int capacity) {
+		this(dim, 8, 16, 8, capacity, 0x4C534849L);
+	}
+
+	/**
+	 * Insert a vector, safe to call from many threads.
+	 * @param vector segment holding the vector
+	 * @param offset byte offset of the vector in the segment
+	 * @param payload turn the vector came from, with a timestamp and role
+	 * @return entry id
+	 * @throws IllegalArgumentException if the payload has no timestamp or role, they are stored unboxed
+	 */
+	int add(MemorySegment vector, long offset, TimestampRole payload) {
+		if (payload.getTimestamp() == null || payload.getRole() == null)
+			throw new IllegalArgumentException("LSHIndex payload needs a timestamp and role: "+payload.getTimestamp()+" "+payload.getRole());
+		int id = nextId.getAndIncrement();
+		if (id >= capacity)
+			throw new IllegalStateException("LSHIndex full at "+capacity+" entries");
+		Chunk c = chunk(id);
+		int local = id & (CHUNK - 1);
+		long base = (long) local * dim * Float.BYTES;
+		MemorySegment.copy(vector, offset, c.vectors, base, (long) dim * Float.BYTES);
+		c.timestamps.setAtIndex(ValueLayout.JAVA_LONG, local, payload.getTimestamp());
+		c.roles.set(ValueLayout.JAVA_BYTE, local, (byte) payload.getRole().ordinal());
+		float[] proj = project(c.vectors, base);
+		for (int t = 0; t < tables; t++) {
+			long sig = signature(proj, t);
+			stripe(t, sig).push(sig, id, c.next, (long) local * tables + t);
+		}
+		size.increment();
+		return id;
+	}
+
+	/**
+	 * Insert rows of a contiguous rows x dim tensor, such as {@link DeviceManager#embed}, in parallel.
+	 * @param vectors the rows
+	 * @param payloads one per row
+	 */
+	void addAll(FloatTensor vectors, TimestampRole[] payloads) {
+		MemorySegment seg = vectors.getSegment();
+		if (seg.byteSize() < (long) payloads.length * dim * Float.BYTES)
+			throw new IllegalArgumentException("Tensor holds fewer than "+payloads.length+" rows of "+dim);
+		Parallel.parallelFor(0, payloads.length, i -> add(seg, (long) i * dim * Float.BYTES, payloads[i]));
+	}
+
+	/**
+	 * Approximate k nearest entries by dot product, safe to call from many threads.
+	 * @param vector segment holding the query
+	 * @param offset byte offset of the query in the segment
+	 * @param k number of results
+	 * @return up to k hits, best first
+	 * @throws IllegalArgumentException if k is less than 1
+	 */
+	List<Hit> query(MemorySegment vector, long offset, int k) {
+		if (k < 1)
+			throw new IllegalArgumentException("k must be positive: "+k);
+		float[] proj = project(vector, offset);
+		int[] found = new int[64];
+		int n = 0;
+		long[] masks = new long[Math.min(bits, PAIR_BITS) * (Math.min(bits, PAIR_BITS) + 1) / 2];
+		for (int t = 0; t < tables; t++) {
+			long sig = signature(proj, t);
+			int nMasks = probeMasks(proj, t, masks);
+			for (int p = -1; p < nMasks; p++) {
+				long key = p < 0 ? sig : sig ^ masks[p];
+				int id = stripe(t, key).head(key);
+				while (id != NONE) {
+					if (n == found.length)
+						found = Arrays.copyOf(found, n * 2);
+					found[n++] = id;
+					Chunk c = chunks.get(id >>> CHUNK_SHIFT);
+					id = c.next.getAtIndex(ValueLayout.JAVA_INT, (long) (id & (CHUNK - 1)) * tables + t);
+				}
+			}
+		}
+		Arrays.sort(found, 0, n);
+		queries.increment();
+		PriorityQueue<Hit> top = new PriorityQueue<>(k + 1, (a, b) -> Float.compare(a.score(), b.score()));
+		int unique = 0;
+		for (int i = 0; i < n; i++) {
+			int id = found[i];
+			if (i > 0 && found[i - 1] == id)
+				continue;
+			unique++;
+			Chunk c = chunks.get(id >>> CHUNK_SHIFT);
+			float score = dot(vector, offset, c.vectors, (long) (id & (CHUNK - 1)) * dim * Float.BYTES, dim);
+			if (top.size() < k || score > top.peek().score()) {
+				top.add(new Hit(id, score, null));
+				if (top.size() > k)
+					top.poll();
+			}
+		}
+		candidates.add(unique);
+		List<Hit> hits = new ArrayList<>(top.size());
+		for (Hit h : top)
+			hits.add(new Hit(h.id(), h.score(), payload(h.id())));
+		hits.sort(Collections.reverseOrder((a, b) -> Float.compare(a.score(), b.score())));
+		return hits;
+	}
+
+	/**
+	 * Query each row of a rows x dim tensor in parallel.
+	 */
+	List<List<Hit>> queryAll(FloatTensor queries, int rows, int k) {
+		MemorySegment seg = queries.getSegment();
+		List<List<Hit>> results = new ArrayList<>(Collections.nCopies(rows, null));
+		Parallel.parallelFor(0, rows, i -> results.set(i, query(seg, (long) i * dim * Float.BYTES, k)));
+		return results;
+	}
+
+	/**
+	 * @return the turn an entry came from
+	 */
+	TimestampRole payload(int id) {
+		Chunk c = chunks.get(id >>> CHUNK_SHIFT);
+		int local = id & (CHUNK - 1);
+		return new TimestampRole(c.timestamps.getAtIndex(ValueLayout.JAVA_LONG, local), ROLES[c.roles.get(ValueLayout.JAVA_BYTE, local)]);
+	}
+
+	/**
+	 * @return read only view of an entry's vector
+	 */
+	MemorySegment vector(int id) {
+		Chunk c = chunks.get(id >>> CHUNK_SHIFT);
+		return c.vectors.asSlice((long) (id & (CHUNK - 1)) * dim * Float.BYTES, (long) dim * Float.BYTES).asReadOnly();
+	}
+
+	private Chunk chunk(int id) {
+		int i = id >>> CHUNK_SHIFT;
+		Chunk c = chunks.get(i);
+		if (c == null) {
+			synchronized (chunks) {
+				c = chunks.get(i);
+				if (c == null) {
+					c = new Chunk(arena, dim, tables);
+					chunks.set(i, c);
+				}
+			}
+		}
+		return c;
+	}
+
+	private Stripe stripe(int table, long key) {
+		return stripes[table * STRIPES + (int) (mix(key) >>> 58)];
+	}
+
+	/**
+	 * Projection of a vector on every hyperplane, sign gives the signature bits and magnitude the margin.
+	 */
+	private float[] project(MemorySegment vector, long offset) {
+		float[] proj = new float[tables * bits];
+		for (int i = 0; i < proj.length; i++)
+			proj[i] = dot(planes, (long) i * dim * Float.BYTES, vector, offset, dim);
+		return proj;
+	}
+
+	private long signature(float[] proj, int table) {
+		long sig = 0;
+		int base = table * bits;
+		for (int b = 0; b < bits; b++) {
+			if (proj[base + b] >= 0f)
+				sig |= 1L << b;
+		}
+		return sig;
+	}
+
+	/**
+	 * Query directed probes: single and double bit flips among the bits with the smallest margins,
+	 * ordered by the squared distance the query would have to move to land in that bucket.
+	 * @return number of masks written, at most {@code probes}
+	 */
+	private int probeMasks(float[] proj, int table, long[] masks) {
+		if (probes == 0)
+			return 0;
+		int base = table * bits;
+		int m = Math.min(bits, PAIR_BITS);
+		// indexes of the m smallest margins
+		int[] near = new int[m];
+		float[] cost = new float[m];
+		int filled = 0;
+		for (int b = 0; b < bits; b++) {
+			float c = proj[base + b] * proj[base + b];
+			if (filled < m || c < cost[filled - 1]) {
+				int j = filled < m ? filled++ : m - 1;
+				while (j > 0 && cost[j - 1] > c) {
+					cost[j] = cost[j - 1];
+					near[j] = near[j - 1];
+					j--;
+				}
+				cost[j] = c;
+				near[j] = b;
+			}
+		}
+		float[] score = new float[masks.length];
+		int n = 0;
+		for (int i = 0; i < m; i++) {
+			masks[n] = 1L << near[i];
+			score[n++] = cost[i];
+			for (int j = i + 1; j < m; j++) {
+				masks[n] = (1L << near[i]) | (1L << near[j]);
+				score[n++] = cost[i] + cost[j];
+			}
+		}
+		// partial selection sort, only the first probes are needed
+		int limit = Math.min(probes, n);
+		for (int i = 0; i < limit; i++) {
+			int best = i;
+			for (int j = i + 1; j < n; j++) {
+				if (score[j] < score[best])
+					best = j;
+			}
+			float s = score[i]; score[i] = score[best]; score[best] = s;
+			long mk = masks[i]; masks[i] = masks[best]; masks[best] = mk;
+		}
+		return limit;
+	}
+
+	private static float dot(MemorySegment a, long aOffset, MemorySegment b, long bOffset, int n) {
+		float sum = 0f;
+		int j = 0;
+		if (FloatTensor.USE_VECTOR_API) {
+			FloatVector acc = FloatVector.zero(FloatTensor.F_SPECIES);
+			int upper = FloatTensor.F_SPECIES.loopBound(n);
+			for (; j < upper; j += FloatTensor.F_SPECIES.length()) {
+				long o = (long) j * Float.BYTES;
+				FloatVector va = FloatVector.fromMemorySegment(FloatTensor.F_SPECIES, a, aOffset + o, ByteOrder.nativeOrder());
+				FloatVector vb = FloatVector.fromMemorySegment(FloatTensor.F_SPECIES, b, bOffset + o, ByteOrder.nativeOrder());
+				acc = va.fma(vb, acc);
+			}
+			sum = acc.reduceLanes(VectorOperators.ADD);
+		}
+		for (; j < n; j++)
+			sum += a.get(ValueLayout.JAVA_FLOAT, aOffset + (long) j * Float.BYTES) * b.get(ValueLayout.JAVA_FLOAT, bOffset + (long) j * Float.BYTES);
+		return sum;
+	}
+
+	private static long mix(long key) {
+		key ^= key >>> 33;
+		key *= 0xff51afd7ed558ccdL;
+		key ^= key >>> 33;
+		key *= 0xc4ceb9fe1a85ec53L;
+		return key ^ (key >>> 33);
+	}
+
+	int size() {
+		return size.intValue();
+	}
+
+	/**
+	 * @return mean number of distinct candidates reranked per query
+	 */
+	float getMeanCandidates() {
+		long q = queries.sum();
+		return q == 0 ? 0f : (float) candidates.sum() / q;
+	}
+
+	/**
+	 * Release all off-heap memory, no add or query may be running or follow.
+	 */
+	@Override
+	public void close() {
+		arena.close();
+	}
+
+	@Override
+	public String toString() {
+		return "LSHIndex entries:"+size()+"/"+capacity+" dim:"+dim+" tables:"+tables+" bits:"+bits+" probes:"+probes+
+				" queries:"+queries.sum()+" mean candidates:"+getMeanCandidates();
+	}
+}
@@ -1,11 +1,15 @@
 package com.llama4j;
 
+import java.io.ByteArrayOutputStream;
 import java.io.IOException;
+import java.io.UncheckedIOException;
 import java.io.PrintStream;
 import java.io.PrintWriter;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.Paths;
 
 import java.lang.foreign.Arena;
-import java.lang.invoke.MethodHandle;
+import java.lang.foreign.ValueLayout;
 
 import java.time.LocalDateTime;
 import java.time.ZoneId;
@@ -19,7 +23,6 @@ import java.util.function.IntConsumer;
 import java.util.function.LongConsumer;
 import java.util.stream.Collectors;
 import java.util.stream.IntStream;
-import java.util.stream.LongStream;
 import java.util.stream.Stream;
 
 import org.apache.commons.logging.Log;
@@ -30,6 +33,7 @@ import org.jsoup.nodes.Element;
 import org.jsoup.select.Elements;
 
 import com.llama4j.ffi.NativeLoader;
+import com.llama4j.ffi.NativeMethods;
 /**
  * Foreign Function Interface to Llama.cpp model runner to take full advantage to GPU enabled platforms.
  * Most of the internal machinery of inference is abstracted away behind the Llama.cpp native runtime,
@@ -44,29 +48,8 @@ public class Llama3 {
 	// Arena
 	public static Arena autoArena = Arena.ofAuto();
 	public static Arena sharedArena = Arena.ofShared();
-	//
-	public static MethodHandle getFloatQ8;
-	public static MethodHandle getFloat;
-	public static MethodHandle sdotSliceDeviceHandle;
-    public static MethodHandle cudaGetMemInfo;
-    public static MethodHandle sdotSimple;
-    public static MethodHandle launchRmsnorm;
-    public static MethodHandle launchQK;
-	public static MethodHandle launchSoftmaxInplace;
-    public static MethodHandle launchAV;
-	public static MethodHandle launchMatmul;
-	public static MethodHandle launchRope;
-	public static MethodHandle copyHostToDeviceMH;
-	public static MethodHandle copyFromNativeMH;
-	public static MethodHandle freeDevicePtr;
-	public static MethodHandle allocDevicePtr;
-	public static MethodHandle cudaInit;
-	public static MethodHandle copyDeviceToHostMH;
-	public static MethodHandle runModelMH;
-	public static MethodHandle runModelTokenizeMH;
-	public static MethodHandle loadModelMH;
-	public static MethodHandle stringToTokenMH;
-	public static MethodHandle tokenToStringMH;
+	// recycled per-request buffers
+	static final BufferPool bufferPool = new BufferPool();
 	
 	static Options options = null;
 	
@@ -115,18 +98,95 @@ public class Llama3 {
     }
 	
     public static void main(String[] args) throws IOException {
-        NativeLoader.loadMethods();
         options = Options.parseOptions(args);
-	    NativeLoader.loadMethods();
+        if (options.inspect()) {
+        	// metadata only, no native library or weights touched
+        	try(GGUF gguf = GGUF.open(options.modelPath())) {
+        		System.out.println(gguf.describe());
+        	}
+        	return;
+        }
+        if (Boolean.getBoolean("llama.EagerBind")) {
+        	try(Timer _ = Timer.phase("bind all")) {
+        		NativeMethods.bindAll();
+        	}
+        }
 		StringTensor s = new StringTensor(options.modelPath().toString());
-		try(Timer _ = Timer.log("load model")) {
+		try(Timer _ = Timer.phase("load model")) {
 			DeviceManager.loadModel(s, options.getMaxTokens());
 		}
+		if (options.draftModel() != null) {
+			try(Timer _ = Timer.phase("load draft model")) {
+				DeviceManager.loadDraftModel(new StringTensor(options.draftModel().toString()), options.getMaxTokens());
+			}
+		}
+		// without the batched exports tokens are rendered one downcall at a time
+		TokenTable tokenTable = null;
+		if (TokenTable.canRender()) {
+			try(Timer _ = Timer.phase("load vocabulary")) {
+				tokenTable = TokenTable.fromModel();
+			}
+		}
+		System.err.println(NativeLoader.startupReport());
 
         if (options.interactive()) {
             ChatFormat chatFormat = new ChatFormat();
             List<ChatFormat.Message> dialog = new ArrayList<ChatFormat.Message>();
             Scanner in = new Scanner(System.in);
+            // one session for the whole chat so the KV cache of earlier turns is reused
+            Session session = DeviceManager.openSession(options.getMaxTokens());
+            IntTensor promptTokens = IntTensor.allocate(options.getMaxTokens());
+            // reused every turn, per turn buffers come from the pool
+            IntTensor retTokens = IntTensor.allocate(options.getMaxTokens());
+            TokenPrinter printer = new TokenPrinter(tokenTable);
+            // turns are generated speculatively, from a draft model kept in step in a second session or from
+            // n-gram matches against the prompt, /speculate switches per request
+            Session draftSession = null;
+            SpeculativeDecoder.Mode speculation = options.speculation();
+            if (options.draftModel() != null)
+            	draftSession = DeviceManager.openDraftSession(options.getMaxTokens());
+            // top-k and penalties need sampling in Java over the logits of each step
+            Sampler javaSampler = options.javaSampling() ?
+            		new Sampler(DeviceManager.vocabSize(), options.temperature(), options.minp(), options.topp(), options.topK(), options.penalties(), options.seed()) : null;
+            // --backend kernels runs the forward pass from Java over views of the mapped GGUF weights, the
+            // native model is still loaded for its tokenizer and maps the same file. The matrices are copied to
+            // the kernels' device memory, on a CPU build -Dllama.KernelsOnHost=true hands over the mapping instead
+            GGUF gguf = null;
+            LlamaForward forward = null;
+            if (options.kernels()) {
+            	try(Timer _ = Timer.log("map weights")) {
+            		gguf = GGUF.open(options.modelPath());
+            		LlamaForward.Config config = LlamaForward.Config.fromMetadata(gguf.metadata(), DeviceManager.vocabSize(), options.getMaxTokens());
+            		List<String> unsupported = LlamaForward.Weights.unsupported(gguf.tensors(), config);
+            		if (!unsupported.isEmpty()) {
+            			log.error("--backend kernels reads Q8_0, Q4_0, F16, BF16 and F32 weights only, this model has "
+            					+String.join(", ", unsupported)+". Use --backend native");
+            			gguf.close();
+            			session.close();
+            			return;
+            		}
+            		forward = new LlamaForward(config, LlamaForward.Weights.load(gguf::tensor, config));
+            	}
+            }
+            Sampler forwardSampler = forward == null ? null : javaSampler != null ? javaSampler :
+            		new Sampler(DeviceManager.vocabSize(), options.temperature(), options.minp(), options.topp());
+            // built when a mode is first selected, its buffers are k+1 vocabulary rows
+            SpeculativeDecoder speculative = speculation != null ? speculativeDecoder(options, draftSession, chatFormat) : null;
+            PrefixCache prefixCache = null;
+            if (options.systemPrompt() != null) {
+            	dialog.add(new ChatFormat.Message(ChatFormat.Role.SYSTEM, options.systemPrompt()));
+            	if (options.prefixCacheMB() > 0) {
+            		prefixCache = new PrefixCache(options.prefixCacheMB() * 1024L * 1024L);
+            		int nHead = DeviceManager.stringToToken(chatFormat.extractDialogPrompt(false, dialog), promptTokens);
+            		if (nHead < 0 || nHead > promptTokens.size()) {
+            			log.error("System prompt exceeds context length "+promptTokens.size()+", exiting");
+            			return;
+            		}
+            		try(Timer _ = Timer.log("prime system prompt")) {
+            			prefixCache.prime(session, promptTokens, nHead);
+            		}
+            	}
+            }
             loop: while (true) {
             	//boolean storeDb = true;
                 System.out.print("> ");
@@ -136,42 +196,217 @@ public class Llama3 {
                     case "/quit":
                     case "/exit": break loop;
                 }
+                if (userText.startsWith("/save ")) {
+                	try(Timer _ = Timer.log("save session")) {
+                		long bytes = DeviceManager.saveSession(session, dialog, Paths.get(userText.substring(6).strip()));
+                		System.out.println("Saved "+session.getCachedTokens()+" tokens, "+bytes+" bytes");
+                	} catch (IOException e) {
+                		System.out.println("Save failed: "+e.getMessage());
+                	}
+                	continue;
+                }
+                if (userText.startsWith("/speculate ")) {
+                	String name = userText.substring(11).strip();
+                	SpeculativeDecoder.Mode mode = Options.parseSpeculation(name);
+                	if (mode == null && !name.equals("none"))
+                		System.out.println("Usage: /speculate <none|draft|lookup>");
+                	else if (mode != null && forward != null)
+                		System.out.println("--backend kernels does not support speculation");
+                	else if (mode != null && options.penalties().active())
+                		System.out.println("Repetition penalties are not applied to speculative decoding, restart without them");
+                	else if (mode == SpeculativeDecoder.Mode.DRAFT && draftSession == null)
+                		System.out.println("No draft model, start with --draft-model");
+                	else {
+                		if (mode != null && speculative == null)
+                			speculative = speculativeDecoder(options, draftSession, chatFormat);
+                		speculation = mode;
+                	}
+                	continue;
+                }
+                if (userText.startsWith("/load ")) {
+                	try(Timer _ = Timer.log("restore session")) {
+                		Session restored = DeviceManager.restoreSession(Paths.get(userText.substring(6).strip()), dialog);
+                		session.close();
+                		session = restored;
+                		System.out.println("Restored "+session.getCachedTokens()+" tokens, "+dialog.size()+" messages");
+                	} catch (IOException e) {
+                		System.out.println("Load failed: "+e.getMessage());
+                	}
+                	continue;
+                }
                 ChatFormat.Message responseMessage = new ChatFormat.Message(ChatFormat.Role.USER, userText);
                 dialog.add(responseMessage);
                 //List<Integer> dialogTokens = chatFormat.encodeDialogPrompt(true, dialog);
                 //IntTensor it = new IntTensor(dialogTokens);
                 //StringTensor p = new StringTensor(new byte[dialogTokens.size()+2]);
                 //DeviceManager.tokenToString(it, dialogTokens.size(), p);
-                StringTensor p = chatFormat.extractDialogPrompt(true, dialog);
-        		System.out.println("prompt:"+p);
-        		int tokNum = 0;
-        		IntTensor retTokens = IntTensor.allocate(options.getMaxTokens());
+                int tokNum = 0;
+                int nPrompt = 0;
+                try (BufferPool.Scope turn = bufferPool.scope()) {
+                	StringTensor p = chatFormat.extractDialogPrompt(true, dialog, turn);
+                	System.out.println("prompt:"+p);
+                	nPrompt = DeviceManager.stringToToken(p, promptTokens);
+                }
+                if (nPrompt < 0 || nPrompt > promptTokens.size()) {
+                	log.error("Prompt exceeds context length "+promptTokens.size()+", exiting");
+                	break;
+                }
+        		if(DEBUG)
+        			System.out.println("Prompt tokens="+nPrompt+" cached="+session.getCachedTokens());
         		try(Timer _ = Timer.log("run model interactive")) {
-        			tokNum = DeviceManager.runModelTokenize(p, options.temperature(), options.minp(), options.topp(), retTokens);
+        			IntConsumer sink = options.stream() ? printer.restart() : null;
+        			tokNum = forward != null ?
+        				forward.generate(promptTokens, nPrompt, forwardSampler, chatFormat.getStopTokens(), retTokens, sink) :
+        				speculation != null ?
+        				speculative.generate(session, speculation, promptTokens, nPrompt, retTokens, sink) :
+        				javaSampler != null ?
+        				DeviceManager.runModelSampled(session, promptTokens, nPrompt, javaSampler, chatFormat.getStopTokens(), retTokens, sink) :
+        				DeviceManager.runModelIncremental(session, promptTokens, nPrompt, options.temperature(), options.minp(), options.topp(), retTokens, sink);
+        			if(options.stream())
+        				printer.finish();
         			System.out.println("Returned Tokens="+tokNum);
         		}
+        		if(speculation != null)
+        			System.out.println("Acceptance rate "+speculation+"="+speculative.getAcceptanceRate(speculation));
         		if(tokNum == -1) {
         			log.error("Context length exceeded, exiting");
         			break;
         		}
-        		StringTensor toks = new StringTensor(new byte[options.getMaxTokens()]);
-        		int strLen = DeviceManager.tokenToString(retTokens, tokNum, toks);
-        		System.out.println("returned prompt len="+strLen);
-        		System.out.println(toks.toString().substring(0,strLen));
-                responseMessage = new ChatFormat.Message(ChatFormat.Role.ASSISTANT, toks.toString().substring(0,strLen));
+        		String reply = printer.decode(retTokens, tokNum);
+        		if(!options.stream()) {
+        			System.out.println("returned prompt len="+StringTensor.getUTF8(reply).length);
+        			System.out.println(reply);
+        		}
+                responseMessage = new ChatFormat.Message(ChatFormat.Role.ASSISTANT, reply);
                 dialog.add(responseMessage);
             }
             in.close();
+            if (speculative != null) {
+            	System.err.println(speculative);
+            	speculative.close();
+            }
+            if (javaSampler != null)
+            	System.err.println(javaSampler);
+            if (draftSession != null)
+            	draftSession.close();
+            if (forward != null) {
+            	System.err.println(forward.profile());
+            	forward.close();
+            	forward.releaseWeights();
+            	gguf.close();
+            }
+            session.close();
+            if (DEBUG)
+            	System.err.println(ChatFormat.TOKEN_CACHE);
+            if (prefixCache != null) {
+            	System.err.println(prefixCache);
+            	prefixCache.clear();
+            }
         } else {
         	StringTensor p = new StringTensor(options.prompt());
     		System.out.println("prompt:"+p);
     		IntTensor it = IntTensor.allocate(2048);
     		try(Timer _ = Timer.log("run model")) {
-    			int tokNum = DeviceManager.runModel(p, options.temperature(), options.minp(), options.topp(), it);
+    			TokenPrinter printer = new TokenPrinter(tokenTable);
+    			int tokNum = options.stream() ?
+    				DeviceManager.runModelStream(p, options.temperature(), options.minp(), options.topp(), it, printer) :
+    				DeviceManager.runModel(p, options.temperature(), options.minp(), options.topp(), it);
+    			if(options.stream())
+    				printer.finish();
     			System.out.println("Tokens="+tokNum);
     		}
         }
     }
+
+    /**
+     * Speculative decoding for the chat loop, over the draft session if there is one. Top-k applies to
+     * both models' distributions, penalties depend on the history and are rejected with speculation.
+     */
+    private static SpeculativeDecoder speculativeDecoder(Options options, Session draftSession, ChatFormat chatFormat) {
+    	Sampler sampler = new Sampler(DeviceManager.vocabSize(), options.temperature(), options.minp(), options.topp(),
+    			options.topK(), Sampler.Penalties.NONE, options.seed());
+    	return new SpeculativeDecoder(draftSession, options.draftK(), options.ngram(), sampler, chatFormat.getStopTokens(), options.seed());
+    }
+}
+
+/**
+ * Streaming token sink for the CLI. Writes the UTF-8 bytes of each token to stdout as it arrives, looked
+ * up in the vocabulary table rather than through a downcall, holding back characters split across tokens,
+ * and reports time to first token.
+ */
+final class TokenPrinter implements IntConsumer {
+	private static final int MAX_PIECE = 256;
+	private final TokenTable tokenTable;
+	private final TokenTable.Decoder decoder;
+	// token_to_string per token when there is no table, raw bytes with no holding back
+	private final IntTensor token;
+	private final StringTensor piece;
+	private long startNanos = System.nanoTime();
+	private boolean first = true;
+	/**
+	 * @param tokenTable vocabulary table, null to render each token through the native library
+	 */
+	TokenPrinter(TokenTable tokenTable) {
+		this.tokenTable = tokenTable;
+		this.decoder = tokenTable != null ? tokenTable.decoder() : null;
+		this.token = tokenTable != null ? null : IntTensor.allocate(1);
+		this.piece = tokenTable != null ? null : new StringTensor(new byte[MAX_PIECE]);
+	}
+	/**
+	 * @return the text of count tokens
+	 */
+	String decode(IntTensor tokens, int count) {
+		if(tokenTable != null)
+			return tokenTable.decode(tokens, count);
+		ByteArrayOutputStream text = new ByteArrayOutputStream();
+		for(int i = 0; i < count; i++)
+			text.writeBytes(render(tokens.getInt(i)));
+		return text.toString(StandardCharsets.UTF_8);
+	}
+	private byte[] render(int tok) {
+		token.setInt(0, tok);
+		int len = DeviceManager.tokenToString(token, 1, piece);
+		return piece.getSegment().asSlice(0, Math.clamp(len, 0, MAX_PIECE)).toArray(ValueLayout.JAVA_BYTE);
+	}
+	/**
+	 * Reset the time to first token clock and decoder state for the next completion
+	 * @return this
+	 */
+	TokenPrinter restart() {
+		startNanos = System.nanoTime();
+		first = true;
+		if(decoder != null)
+			decoder.reset();
+		return this;
+	}
+	/**
+	 * Write out anything held back at the end of the completion
+	 */
+	void finish() {
+		try {
+			if(decoder != null)
+				decoder.flush(System.out);
+		} catch (IOException e) {
+			throw new UncheckedIOException(e);
+		}
+		System.out.println();
+	}
+	@Override
+	public void accept(int tok) {
+		if(first) {
+			first = false;
+			System.err.println("time to first token: " + TimeUnit.NANOSECONDS.toMillis(System.nanoTime() - startNanos) + " milliseconds");
+		}
+		try {
+			if(decoder != null)
+				decoder.write(tok, System.out);
+			else
+				System.out.write(render(tok));
+		} catch (IOException e) {
+			throw new UncheckedIOException(e);
+		}
+		System.out.flush();
+	}
 }
 
 interface Timer extends AutoCloseable {
@@ -190,23 +425,31 @@ interface Timer extends AutoCloseable {
             }
         };
     }
+    /**
+     * Time a startup phase into {@link NativeLoader#startupReport()} rather than printing it.
+     */
+    static Timer phase(String label) {
+        return new Timer() {
+            final long startNanos = System.nanoTime();
+            @Override
+            public void close() {
+                NativeLoader.recordPhase(label, System.nanoTime() - startNanos);
+            }
+        };
+    }
 }
 
+/**
+ * Parallel loops over index ranges, run in static chunks on the dedicated {@link InferenceExecutor}
+ * rather than as parallel streams on the common pool.
+ */
 final class Parallel {
     public static void parallelFor(int startInclusive, int endExclusive, IntConsumer action) {
-        if (startInclusive == 0 && endExclusive == 1) {
-            action.accept(0);
-            return;
-        }
-        IntStream.range(startInclusive, endExclusive).parallel().forEach(action);
+        InferenceExecutor.get().parallelFor(startInclusive, endExclusive, action);
     }
 
     public static void parallelForLong(long startInclusive, long endExclusive, LongConsumer action) {
-        if (startInclusive == 0 && endExclusive == 1) {
-            action.accept(0);
-            return;
-        }
-        LongStream.range(startInclusive, endExclusive).parallel().forEach(action);
+        InferenceExecutor.get().parallelForLong(startInclusive, endExclusive, action);
     }
 }
 
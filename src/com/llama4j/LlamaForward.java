@@ -0,0 +1,485 @@
+package com.llama4j;
+
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.List;
+import java.util.Map;
+import java.util.Set;
+import java.util.function.Function;
+import java.util.function.IntConsumer;
+import java.util.stream.Stream;
+
+import com.llama4j.ffi.NativeMethods;
+
+/**
+ * Llama forward pass driven layer by layer from Java over the llamagpu launch_* kernels, an alternative
+ * to the monolithic run_model that exposes every stage for profiling and scheduling.<p>
+ * Weights are uploaded once and stay resident behind their {@link FloatTensor#devicePtrOr0()}, the key and
+ * value projections are written straight into their KV cache slots, and attention runs per head with
+ * grouped-query heads sharing a cache row (kvMul query heads per KV head). The residual adds, fused with the
+ * following RMSNorm, and SwiGLU run on the host over small activation vectors, so only those cross the bus
+ * each layer and the norm weights never leave the host. -Dllama.NativeNorm=true keeps the residual add on the
+ * host but runs the norm with the launch_rmsnorm_fp32_rowmajor kernel instead, with x and the norm weights
+ * resident on the device.
+ * On a CPU build of the kernel library device pointers are host memory. The upload would then be a second
+ * resident copy of every matrix next to the mapped file, so with -Dllama.KernelsOnHost=true the kernels
+ * are handed the mapped weights directly instead.<p>
+ * One sequence with its own KV cache, not thread safe.
+ */
+final class LlamaForward implements AutoCloseable {
+	public static boolean DEBUG = false;
+	// format type of the KV caches
+	private static final int F32 = 5;
+	// the kernel library is a CPU build, device pointers are host addresses
+	static final boolean KERNELS_ON_HOST = Boolean.getBoolean("llama.KernelsOnHost");
+	// RMSNorm with the native kernel rather than fused with the residual add on the host
+	static final boolean NATIVE_NORM = Boolean.getBoolean("llama.NativeNorm");
+
+	/**
+	 * Hyperparameters, GGUF llama.* metadata names.
+	 */
+	record Config(int dim, int hiddenDim, int nLayers, int nHeads, int nKvHeads, int vocab, int contextLength,
+			float rmsEps, float ropeTheta) {
+		int headSize() {
+			return dim / nHeads;
+		}
+		int kvDim() {
+			return dim * nKvHeads / nHeads;
+		}
+		int kvMul() {
+			return nHeads / nKvHeads;
+		}
+
+		/**
+		 * @param metadata GGUF key value metadata
+		 * @param contextLength positions to allocate, 0 for the model's trained length
+		 */
+		static Config fromMetadata(Map<String, Object> metadata, int vocab, int contextLength) {
+			int nHeads = number(metadata, "llama.attention.head_count", null).intValue();
+			int trained = number(metadata, "llama.context_length", null).intValue();
+			return new Config(number(metadata, "llama.embedding_length", null).intValue(),
+					number(metadata, "llama.feed_forward_length", null).intValue(),
+					number(metadata, "llama.block_count", null).intValue(),
+					nHeads,
+					number(metadata, "llama.attention.head_count_kv", nHeads).intValue(),
+					vocab,
+					contextLength > 0 ? Math.min(contextLength, trained) : trained,
+					number(metadata, "llama.attention.layer_norm_rms_epsilon", 1e-5f).floatValue(),
+					number(metadata, "llama.rope.freq_base", 10000f).floatValue());
+		}
+
+		private static Number number(Map<String, Object> metadata, String key, Number missing) {
+			Object v = metadata.get(key);
+			if (v instanceof Number n)
+				return n;
+			if (missing == null)
+				throw new IllegalArgumentException("Model metadata lacks "+key);
+			return missing;
+		}
+	}
+
+	/**
+	 * Weights by GGUF tensor name. Layer arrays are indexed by block.
+	 */
+	record Weights(FloatTensor tokenEmbedding, FloatTensor[] attnNorm, FloatTensor[] wq, FloatTensor[] wk,
+			FloatTensor[] wv, FloatTensor[] wo, FloatTensor[] ffnNorm, FloatTensor[] w1, FloatTensor[] w2,
+			FloatTensor[] w3, FloatTensor outputNorm, FloatTensor output, FloatTensor ropeFreqs) {
+
+		/**
+		 * @param tensors tensor by name, null when absent
+		 */
+		static Weights load(Function<String, FloatTensor> tensors, Config config) {
+			int n = config.nLayers();
+			FloatTensor embedding = require(tensors, "token_embd.weight");
+			FloatTensor output = tensors.apply("output.weight");
+			return new Weights(embedding,
+					layers(tensors, n, "attn_norm"), layers(tensors, n, "attn_q"), layers(tensors, n, "attn_k"),
+					layers(tensors, n, "attn_v"), layers(tensors, n, "attn_output"), layers(tensors, n, "ffn_norm"),
+					layers(tensors, n, "ffn_gate"), layers(tensors, n, "ffn_down"), layers(tensors, n, "ffn_up"),
+					require(tensors, "output_norm.weight"),
+					// tied embeddings reuse the input table
+					output != null ? output : embedding,
+					tensors.apply("rope_freqs.weight"));
+		}
+
+		/**
+		 * @param tensors tensor info by name, as in the GGUF header
+		 * @return "name type" of every tensor {@link #load} reads whose storage type has no tensor view, e.g. K quants
+		 */
+		static List<String> unsupported(Map<String, GGUF.TensorInfo> tensors, Config config) {
+			List<String> names = new ArrayList<>(List.of("token_embd.weight", "output.weight", "output_norm.weight", "rope_freqs.weight"));
+			for (int i = 0; i < config.nLayers(); i++) {
+				for (String name : List.of("attn_norm", "attn_q", "attn_k", "attn_v", "attn_output", "ffn_norm", "ffn_gate", "ffn_down", "ffn_up"))
+					names.add("blk."+i+"."+name+".weight");
+			}
+			List<String> unsupported = new ArrayList<>();
+			for (String name : names) {
+				GGUF.TensorInfo info = tensors.get(name);
+				if (info != null && MappedFloatTensor.byteSize(info.type(), info.elements()) < 0)
+					unsupported.add(name+" "+info.typeName());
+			}
+			return unsupported;
+		}
+
+		private static FloatTensor[] layers(Function<String, FloatTensor> tensors, int n, String name) {
+			FloatTensor[] layers = new FloatTensor[n];
+			for (int i = 0; i < n; i++)
+				layers[i] = require(tensors, "blk."+i+"."+name+".weight");
+			return layers;
+		}
+
+		private static FloatTensor require(Function<String, FloatTensor> tensors, String name) {
+			FloatTensor t = tensors.apply(name);
+			if (t == null)
+				throw new IllegalArgumentException("Model lacks tensor "+name);
+			return t;
+		}
+	}
+
+	/**
+	 * Stages timed by the profile, device work is attributed to the stage that next synchronizes.
+	 */
+	enum Stage {
+		// the norms include the residual add before them
+		EMBED, ATTN_NORM, QKV, ROPE, ATTENTION, ATTN_OUT, FFN_NORM, FFN_UP, SWIGLU, FFN_DOWN, OUTPUT
+	}
+
+	private final Config config;
+	private final Weights weights;
+	// host and device activations
+	private final ArrayFloatTensor x, xb, xb2, q, hb, hb2, logits;
+	// RoPE tables, contextLength x headSize/2
+	private final ArrayFloatTensor freqReal, freqImag;
+	// device only, per layer contextLength x kvDim, and nHeads x contextLength scores
+	private final long[] keyCache, valueCache;
+	private final long att;
+	private final int[] cached;
+	private int position;
+	private final long[] stageNanos = new long[Stage.values().length];
+	private final long[] layerNanos;
+	private long tokens;
+	private boolean closed;
+
+	LlamaForward(Config config, Weights weights) {
+		this.config = config;
+		this.weights = weights;
+		int dim = config.dim();
+		int hidden = config.hiddenDim();
+		// the residual stream stays on the host unless the native norm reads it
+		this.x = NATIVE_NORM ? device(dim) : new ArrayFloatTensor(new float[dim]);
+		this.xb = device(dim);
+		this.xb2 = device(dim);
+		this.q = device(dim);
+		this.hb = device(hidden);
+		this.hb2 = device(hidden);
+		this.logits = device(config.vocab());
+		int half = config.headSize() / 2;
+		this.freqReal = new ArrayFloatTensor(new float[config.contextLength() * half]);
+		this.freqImag = new ArrayFloatTensor(new float[config.contextLength() * half]);
+		precomputeFreqs();
+		freqReal.makeResident("rope real");
+		freqImag.makeResident("rope imag");
+		long cacheBytes = (long) config.contextLength() * config.kvDim() * Float.BYTES;
+		this.keyCache = new long[config.nLayers()];
+		this.valueCache = new long[config.nLayers()];
+		for (int l = 0; l < config.nLayers(); l++) {
+			keyCache[l] = DeviceManager.allocDevice(cacheBytes);
+			valueCache[l] = DeviceManager.allocDevice(cacheBytes);
+		}
+		this.att = DeviceManager.allocDevice((long) config.nHeads() * config.contextLength() * Float.BYTES);
+		this.cached = new int[config.contextLength()];
+		this.layerNanos = new long[config.nLayers()];
+		upload();
+	}
+
+	private static ArrayFloatTensor device(int size) {
+		ArrayFloatTensor t = new ArrayFloatTensor(new float[size]);
+		t.allocateDevice();
+		return t;
+	}
+
+	/**
+	 * Make every matrix resident on the device, the embedding table and the norm weights stay on the host
+	 * where they are read unless {@link #NATIVE_NORM}. With {@link #KERNELS_ON_HOST} they are shared rather than copied.
+	 */
+	private void upload() {
+		try (Timer _ = Timer.log(KERNELS_ON_HOST ? "share weights" : "upload weights")) {
+			for (FloatTensor w : resident()) {
+				if (KERNELS_ON_HOST)
+					w.shareHost();
+				else
+					w.makeResident("weight");
+			}
+		}
+	}
+
+	/**
+	 * @return the weights the kernels read
+	 */
+	private FloatTensor[] resident() {
+		Stream<FloatTensor> matrices = Stream.concat(Stream.of(weights.wq(), weights.wk(), weights.wv(), weights.wo(), weights.w1(), weights.w2(), weights.w3())
+				.flatMap(Arrays::stream), Stream.of(weights.output()));
+		if (NATIVE_NORM)
+			matrices = Stream.concat(matrices, Stream.concat(Stream.of(weights.attnNorm(), weights.ffnNorm()).flatMap(Arrays::stream), Stream.of(weights.outputNorm())));
+		return matrices.toArray(FloatTensor[]::new);
+	}
+
+	/**
+	 * cos and sin of position * theta^(-2i/headSize), frequencies divided by rope_freqs when the model has them.
+	 */
+	private void precomputeFreqs() {
+		int headSize = config.headSize();
+		int half = headSize / 2;
+		for (int i = 0; i < half; i++) {
+			double freq = 1.0 / Math.pow(config.ropeTheta(), (2.0 * i) / headSize);
+			if (weights.ropeFreqs() != null)
+				freq /= weights.ropeFreqs().getFloat(i);
+			for (int p = 0; p < config.contextLength(); p++) {
+				double angle = p * freq;
+				freqReal.setFloat(p * half + i, (float) Math.cos(angle));
+				freqImag.setFloat(p * half + i, (float) Math.sin(angle));
+			}
+		}
+	}
+
+	Config config() {
+		return config;
+	}
+
+	/**
+	 * @return number of positions in the KV cache
+	 */
+	int position() {
+		return position;
+	}
+
+	/**
+	 * Drop KV cache positions from nKeep onward.
+	 */
+	void keep(int nKeep) {
+		position = Math.min(position, nKeep);
+	}
+
+	/**
+	 * Evaluate one token at the current position.
+	 * @return the logits, valid until the next call
+	 */
+	ArrayFloatTensor forward(int token) {
+		if (position >= config.contextLength())
+			throw new IllegalStateException("Context length "+config.contextLength()+" exceeded");
+		int dim = config.dim();
+		int hidden = config.hiddenDim();
+		int kvDim = config.kvDim();
+		int pos = position;
+		long slot = (long) pos * kvDim * Float.BYTES;
+		long t0 = System.nanoTime();
+		float eps = config.rmsEps();
+		weights.tokenEmbedding().copyTo(token * dim, x, 0, dim);
+		long t = mark(Stage.EMBED, t0);
+		// each block's residual add is fused with the norm after it, the first norm has no residual
+		norm(null, weights.attnNorm()[0], eps);
+		t = mark(Stage.ATTN_NORM, t);
+		for (int l = 0; l < config.nLayers(); l++) {
+			long layerStart = t;
+			matmul(weights.wq()[l], xb, q.devicePtrOr0(), dim, dim);
+			// k and v land directly in this position's cache rows
+			matmul(weights.wk()[l], xb, keyCache[l] + slot, kvDim, dim);
+			matmul(weights.wv()[l], xb, valueCache[l] + slot, kvDim, dim);
+			t = mark(Stage.QKV, t);
+			rope(keyCache[l] + slot, pos);
+			t = mark(Stage.ROPE, t);
+			for (int h = 0; h < config.nHeads(); h++)
+				attention(l, h, pos);
+			t = mark(Stage.ATTENTION, t);
+			matmul(weights.wo()[l], xb, xb2.devicePtrOr0(), dim, dim);
+			xb2.copyDeviceToHost("attention out");
+			t = mark(Stage.ATTN_OUT, t);
+			norm(xb2, weights.ffnNorm()[l], eps);
+			t = mark(Stage.FFN_NORM, t);
+			matmul(weights.w1()[l], xb, hb.devicePtrOr0(), hidden, dim);
+			matmul(weights.w3()[l], xb, hb2.devicePtrOr0(), hidden, dim);
+			hb.copyDeviceToHost("gate");
+			hb2.copyDeviceToHost("up");
+			t = mark(Stage.FFN_UP, t);
+			// SwiGLU: silu(gate) * up
+			hb.mapInPlace(v -> v / (1f + (float) Math.exp(-v)));
+			hb.multiplyInPlace(hb2);
+			hb.copyHostToDevice("hidden");
+			t = mark(Stage.SWIGLU, t);
+			matmul(weights.w2()[l], hb, xb2.devicePtrOr0(), dim, hidden);
+			xb2.copyDeviceToHost("ffn out");
+			t = mark(Stage.FFN_DOWN, t);
+			boolean last = l == config.nLayers() - 1;
+			norm(xb2, last ? weights.outputNorm() : weights.attnNorm()[l + 1], eps);
+			t = mark(last ? Stage.OUTPUT : Stage.ATTN_NORM, t);
+			layerNanos[l] += t - layerStart;
+		}
+		matmul(weights.output(), xb, logits.devicePtrOr0(), config.vocab(), dim);
+		logits.copyDeviceToHost("logits");
+		mark(Stage.OUTPUT, t);
+		cached[pos] = token;
+		position = pos + 1;
+		tokens++;
+		return logits;
+	}
+
+	/**
+	 * x += residual if given, then xb = RMSNorm(x) * weight, leaving xb on the device for the next matmul.
+	 */
+	private void norm(FloatTensor residual, FloatTensor weight, float eps) {
+		if (!NATIVE_NORM) {
+			if (residual == null)
+				x.rmsnormTo(weight, xb, eps);
+			else
+				x.addRmsnormTo(residual, weight, xb, eps);
+			xb.copyHostToDevice("xb");
+			return;
+		}
+		if (residual != null)
+			x.addInPlace(residual);
+		x.copyHostToDevice("x");
+		try {
+			NativeMethods.Kernels.launchRmsnorm.invokeExact(x.devicePtrOr0(), 0, x.getFormatType(), x.getBlockSize(), x.getTypeSize(), x.getHeaderBytes(),
+					weight.devicePtrOr0(), 0, weight.getFormatType(), weight.getBlockSize(), weight.getTypeSize(), weight.getHeaderBytes(),
+					xb.devicePtrOr0(), config.dim(), eps);
+		} catch (Throwable e) {
+			throw new RuntimeException(e);
+		}
+	}
+
+	/**
+	 * Scores, softmax and weighted sum of values for one query head, written to its slice of xb.
+	 * Query heads h .. h + kvMul - 1 share KV head h / kvMul, the kernels index the cache with it.
+	 */
+	private void attention(int layer, int h, int pos) {
+		int headSize = config.headSize();
+		int ctx = config.contextLength();
+		int attOffset = h * ctx;
+		try {
+			NativeMethods.Kernels.launchQK.invokeExact(q.devicePtrOr0(), h * headSize, q.getFormatType(), q.getBlockSize(), q.getTypeSize(), q.getHeaderBytes(),
+					keyCache[layer], F32, 1, Float.BYTES, 0,
+					att, attOffset, pos, 0, h, headSize, config.nHeads(), ctx, config.kvDim(), config.kvMul());
+			NativeMethods.Kernels.launchSoftmaxInplace.invokeExact(att, attOffset, pos + 1);
+			NativeMethods.Kernels.launchAV.invokeExact(att, xb.devicePtrOr0(), valueCache[layer],
+					h, headSize, attOffset, h * headSize, config.kvDim(), config.kvMul(), pos, 0);
+		} catch (Throwable e) {
+			throw new RuntimeException(e);
+		}
+	}
+
+	/**
+	 * out[i] = weights row i . in, for i < rows.
+	 */
+	private static void matmul(FloatTensor weights, FloatTensor in, long out, int rows, int cols) {
+		try {
+			NativeMethods.Kernels.launchMatmul.invokeExact(weights.devicePtrOr0(), 0, weights.getFormatType(), weights.getBlockSize(), weights.getTypeSize(), weights.getHeaderBytes(),
+					in.devicePtrOr0(), 0, in.getFormatType(), in.getBlockSize(), in.getTypeSize(), in.getHeaderBytes(),
+					out, rows, cols);
+		} catch (Throwable e) {
+			throw new RuntimeException(e);
+		}
+	}
+
+	/**
+	 * Rotate q and the key just written at pos.
+	 */
+	private void rope(long key, int pos) {
+		try {
+			NativeMethods.Kernels.launchRope.invokeExact(freqReal.devicePtrOr0(), 0, freqReal.getFormatType(), freqReal.getBlockSize(), freqReal.getTypeSize(), freqReal.getHeaderBytes(),
+					freqImag.devicePtrOr0(), 0, freqImag.getFormatType(), freqImag.getBlockSize(), freqImag.getTypeSize(), freqImag.getHeaderBytes(),
+					q.devicePtrOr0(), key, 1, config.dim(), pos, config.headSize(), config.kvDim());
+		} catch (Throwable e) {
+			throw new RuntimeException(e);
+		}
+	}
+
+	private long mark(Stage stage, long since) {
+		long now = System.nanoTime();
+		stageNanos[stage.ordinal()] += now - since;
+		return now;
+	}
+
+	/**
+	 * Run a tokenized prompt, same contract as {@link DeviceManager#runModelSampled}. The KV cache is reused
+	 * up to the longest common prefix with the previous sequence.
+	 * @return number of tokens generated, -1 if context length exceeded
+	 */
+	int generate(IntTensor promptTokens, int nPrompt, TokenSampler sampler, Set<Integer> stopTokens, IntTensor returnTokens, IntConsumer tokenConsumer) {
+		if (nPrompt <= 0)
+			throw new IllegalArgumentException("Empty prompt");
+		if (nPrompt >= config.contextLength())
+			return -1;
+		int reuse = 0;
+		int limit = Math.min(position, nPrompt - 1);
+		while (reuse < limit && cached[reuse] == promptTokens.getInt(reuse))
+			reuse++;
+		keep(reuse);
+		if (DEBUG)
+			System.out.println("Reusing "+reuse+" cached positions, evaluating "+(nPrompt - reuse));
+		ArrayFloatTensor out = null;
+		for (int i = reuse; i < nPrompt; i++)
+			out = forward(promptTokens.getInt(i));
+		sampler.begin(promptTokens, nPrompt);
+		int max = returnTokens.size();
+		int produced = 0;
+		while (produced < max) {
+			int token = sampler.sample(out);
+			if (stopTokens.contains(token))
+				break;
+			returnTokens.setInt(produced++, token);
+			sampler.accept(token);
+			if (tokenConsumer != null)
+				tokenConsumer.accept(token);
+			if (produced == max || position == config.contextLength())
+				break;
+			out = forward(token);
+		}
+		return produced;
+	}
+
+	/**
+	 * @return time per stage and per layer over all tokens evaluated so far
+	 */
+	String profile() {
+		StringBuilder sb = new StringBuilder("LlamaForward tokens:").append(tokens);
+		if (tokens == 0)
+			return sb.toString();
+		for (Stage stage : Stage.values())
+			sb.append(' ').append(stage.name().toLowerCase()).append(" us/token:").append(stageNanos[stage.ordinal()] / tokens / 1000);
+		sb.append(" layer us/token:");
+		for (long nanos : layerNanos)
+			sb.append(' ').append(nanos / tokens / 1000);
+		return sb.toString();
+	}
+
+	/**
+	 * Free the device copies of the weights, once no engine over them runs any more.
+	 */
+	void releaseWeights() {
+		// the output matrix may be the embedding table, freeing twice is a no-op
+		for (FloatTensor w : resident())
+			w.freeDevice();
+	}
+
+	/**
+	 * Free activations and KV caches, the weights stay resident for other engines until {@link #releaseWeights}.
+	 */
+	@Override
+	public void close() {
+		if (closed)
+			return;
+		closed = true;
+		for (ArrayFloatTensor t : Arrays.asList(x, xb, xb2, q, hb, hb2, logits, freqReal, freqImag))
+			t.freeDevice();
+		for (int l = 0; l < config.nLayers(); l++) {
+			DeviceManager.freeDevice(keyCache[l]);
+			DeviceManager.freeDevice(valueCache[l]);
+		}
+		DeviceManager.freeDevice(att);
+	}
+
+	@Override
+	public String toString() {
+		return "LlamaForward "+config+" position:"+position;
+	}
+}
@@ -0,0 +1,130 @@
+package com.llama4j;
+
+import java.io.IOException;
+import java.io.ObjectInput;
+import java.io.ObjectOutput;
+import java.lang.foreign.Arena;
+import java.lang.foreign.MemorySegment;
+
+import jdk.incubator.vector.FloatVector;
+import jdk.incubator.vector.VectorSpecies;
+
+/**
+ * Read-only tensor over a slice of memory in a GGML storage format, e.g. a weight inside a mapped GGUF file.
+ * Values are decoded on access and the Vector API dot kernels of the subclasses decode whole blocks in registers,
+ * so computing on quantized weights streams only the quantized bytes.
+ */
+abstract sealed class MappedFloatTensor extends FloatTensor
+		permits Q8_0FloatTensor, Q4_0FloatTensor, F16FloatTensor, BF16FloatTensor {
+	// GGML type ids as stored in GGUF
+	static final int GGML_F32 = 0;
+	static final int GGML_F16 = 1;
+	static final int GGML_Q4_0 = 2;
+	static final int GGML_Q8_0 = 8;
+	static final int GGML_BF16 = 30;
+
+	final int size;
+	final MemorySegment memorySegment;
+
+	MappedFloatTensor(int size, MemorySegment memorySegment) {
+		this.size = size;
+		this.memorySegment = memorySegment;
+	}
+
+	/**
+	 * View size elements of a GGML type stored in segment, no copy is made.
+	 * @param ggmlType GGML type id
+	 * @return the view, an {@link ArrayFloatTensor} for F32
+	 * @throws UnsupportedOperationException for other types, e.g. K quants
+	 */
+	static FloatTensor of(int ggmlType, MemorySegment segment, int size) {
+		return switch (ggmlType) {
+		case GGML_F32 -> new ArrayFloatTensor(segment.asSlice(0, (long) size * Float.BYTES));
+		case GGML_F16 -> new F16FloatTensor(size, segment.asSlice(0, (long) size * 2));
+		case GGML_BF16 -> new BF16FloatTensor(size, segment.asSlice(0, (long) size * 2));
+		case GGML_Q8_0 -> new Q8_0FloatTensor(size, segment.asSlice(0, (long) size / Q8_0FloatTensor.BLOCK_SIZE * Q8_0FloatTensor.TYPE_SIZE));
+		case GGML_Q4_0 -> new Q4_0FloatTensor(size, segment.asSlice(0, (long) size / Q4_0FloatTensor.BLOCK_SIZE * Q4_0FloatTensor.TYPE_SIZE));
+		default -> throw new UnsupportedOperationException("GGML type "+ggmlType+" has no tensor view");
+		};
+	}
+
+	/**
+	 * @return bytes used by size elements of a GGML type, -1 if unsupported
+	 */
+	static long byteSize(int ggmlType, long size) {
+		return switch (ggmlType) {
+		case GGML_F32 -> size * Float.BYTES;
+		case GGML_F16, GGML_BF16 -> size * 2;
+		case GGML_Q8_0 -> size / Q8_0FloatTensor.BLOCK_SIZE * Q8_0FloatTensor.TYPE_SIZE;
+		case GGML_Q4_0 -> size / Q4_0FloatTensor.BLOCK_SIZE * Q4_0FloatTensor.TYPE_SIZE;
+		default -> -1;
+		};
+	}
+
+	@Override
+	public int size() {
+		return size;
+	}
+
+	@Override
+	public boolean isImmutable() {
+		return true;
+	}
+
+	@Override
+	public void setFloat(int index, float value) {
+		throw new UnsupportedOperationException("Read-only "+getClass().getSimpleName());
+	}
+
+	@Override
+	FloatVector getFloatVector(VectorSpecies<Float> species, int offset) {
+		throw new UnsupportedOperationException("Blocks decode in the dot kernel");
+	}
+
+	@Override
+	public Arena getArena() {
+		return Llama3.sharedArena;
+	}
+
+	@Override
+	public MemorySegment getSegment() {
+		return memorySegment;
+	}
+
+	@Override
+	protected long totalBytes() {
+		return memorySegment.byteSize();
+	}
+
+	/**
+	 * The decoded values, readable as an {@link ArrayFloatTensor}.
+	 */
+	@Override
+	public void writeExternal(ObjectOutput out) throws IOException {
+		out.writeInt(size);
+		for (int i = 0; i < size; i++)
+			out.writeFloat(getFloat(i));
+	}
+
+	@Override
+	public void readExternal(ObjectInput in) throws IOException, ClassNotFoundException {
+		throw new UnsupportedOperationException("Read-only "+getClass().getSimpleName()+", read an ArrayFloatTensor");
+	}
+
+	@Override
+	public int compareTo(Object o) {
+		FloatTensor that = (FloatTensor) o;
+		int n = Math.min(size(), that.size());
+		for (int i = 0; i < n; i++) {
+			int c = Float.compare(getFloat(i), that.getFloat(i));
+			if (c != 0)
+				return c;
+		}
+		return Integer.compare(size(), that.size());
+	}
+
+	@Override
+	public String toString() {
+		return getClass().getSimpleName()+" size:"+size+" "+memorySegment;
+	}
+}
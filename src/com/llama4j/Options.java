@@ -6,15 +6,34 @@ import java.nio.file.Paths;
 
 record Options(Path modelPath, String prompt, String systemPrompt, boolean interactive,
 		float temperature, float topp, float minp, long seed, int maxTokens, boolean stream, boolean echo,
-		String localNode, String remoteNode, int remotePort) {
+		String localNode, String remoteNode, int remotePort, int prefixCacheMB, Path draftModel, int draftK,
+		SpeculativeDecoder.Mode speculation, int ngram,
+		int topK, float repeatPenalty, float frequencyPenalty, float presencePenalty, int repeatLastN,
+		boolean inspect, boolean kernels) {
 
 	static final int DEFAULT_MAX_TOKENS = 2048;
+	// the CLI opens one chat session, the cache only pays where sessions are opened repeatedly with shared prompts
+	static final int DEFAULT_PREFIX_CACHE_MB = 0;
+	static final int DEFAULT_DRAFT_K = 4;
+	static final int DEFAULT_NGRAM = 3;
+	static final int DEFAULT_REPEAT_LAST_N = 64;
 
 	Options {
 		require(modelPath != null, "Missing argument: --model <path> is required");
-		require(interactive || prompt != null, "Missing argument: --prompt is required in --instruct mode e.g. --prompt \"Why is the sky blue?\"");
+		require(interactive || inspect || prompt != null, "Missing argument: --prompt is required in --instruct mode e.g. --prompt \"Why is the sky blue?\"");
 		require(0 <= temperature, "Invalid argument: --temperature must be non-negative");
 		require(0 <= topp && topp <= 1, "Invalid argument: --top-p must be within [0, 1]");
+		require(0 <= prefixCacheMB, "Invalid argument: --prefix-cache-mb must be non-negative");
+		require(1 <= draftK, "Invalid argument: --draft-k must be positive");
+		require(speculation != SpeculativeDecoder.Mode.DRAFT || draftModel != null, "Missing argument: --speculation draft requires --draft-model");
+		require(1 <= ngram, "Invalid argument: --ngram must be positive");
+		require(0 <= topK, "Invalid argument: --top-k must be non-negative");
+		require(0 < repeatPenalty, "Invalid argument: --repeat-penalty must be positive");
+		require(0 <= repeatLastN, "Invalid argument: --repeat-last-n must be non-negative");
+		require(!kernels || interactive, "Invalid argument: --backend kernels runs in chat mode only");
+		require(!kernels || speculation == null, "Invalid argument: --backend kernels does not support --speculation");
+		// speculative acceptance scores several positions per round, a penalty history cannot follow them
+		require(speculation == null || !new Sampler.Penalties(repeatPenalty, frequencyPenalty, presencePenalty, repeatLastN).active(), "Invalid argument: repetition penalties are not applied to speculative decoding, use --speculation none");
 	}
 	
 	static void require(boolean condition, String messageFormat, Object... args) {
@@ -38,6 +57,11 @@ record Options(Path modelPath, String prompt, String systemPrompt, boolean inter
 		out.println("  --temperature, -temp <float>  temperature in [0,inf], default 0.3");
 		out.println("  --top-p <float>               use top-p unless min-p != 0. p value in top-p (nucleus) sampling in [0,1] default 0.9");
 		out.println("  --min-p <float>               if min-p != 0, use min-p else use top-p. p value in min-p sampling in [0,1] default .05");
+		out.println("  --top-k <int>                 keep only the k most likely tokens, 0 disables, default 0");
+		out.println("  --repeat-penalty <float>      divide logits of recent tokens, 1 disables, default 1");
+		out.println("  --frequency-penalty <float>   lower logits of recent tokens by this times their count, default 0");
+		out.println("  --presence-penalty <float>    lower logits of recent tokens by this once, default 0");
+		out.println("  --repeat-last-n <int>         recent tokens the penalties look at, default " + DEFAULT_REPEAT_LAST_N);
 		out.println("  --seed <long>                 random seed, default System.nanoTime()");
 		out.println("  --max-tokens, -n <int>        number of steps to run for < 0 = limited by context length, default " + DEFAULT_MAX_TOKENS);
 		out.println("  --stream <boolean>            print tokens during generation; may cause encoding artifacts for non ASCII text, default true");
@@ -45,6 +69,13 @@ record Options(Path modelPath, String prompt, String systemPrompt, boolean inter
 		out.println("  --localNode <string>          local database client node");
 		out.println("  --remoteNode <string>         remote database client node");
 		out.println("  --remotePort <int>            remote database port");
+		out.println("  --prefix-cache-mb <int>       memory budget for cached system prompt KV states, 0 disables, default " + DEFAULT_PREFIX_CACHE_MB + " (off)");
+		out.println("  --draft-model <path>          small model sharing the vocabulary used for speculative decoding in chat mode");
+		out.println("  --draft-k <int>               tokens proposed by the draft model per step, default " + DEFAULT_DRAFT_K);
+		out.println("  --speculation <string>        none, draft or lookup (prompt n-gram matches, no draft model), default draft with --draft-model else none");
+		out.println("  --ngram <int>                 trailing tokens matched by lookup speculation, default " + DEFAULT_NGRAM);
+		out.println("  --inspect                     print the model metadata and quantization mix, then exit");
+		out.println("  --backend <string>            native (library forward pass) or kernels (Java driven forward pass over the mapped weights), default native");
 		out.println();
 	}
 
@@ -64,6 +95,18 @@ record Options(Path modelPath, String prompt, String systemPrompt, boolean inter
 		String localNode = null;
 		String remoteNode = null;
 		int remotePort = 0;
+		int prefixCacheMB = DEFAULT_PREFIX_CACHE_MB;
+		Path draftModel = null;
+		int draftK = DEFAULT_DRAFT_K;
+		String speculation = null;
+		int ngram = DEFAULT_NGRAM;
+		int topK = 0;
+		float repeatPenalty = 1f;
+		float frequencyPenalty = 0f;
+		float presencePenalty = 0f;
+		int repeatLastN = DEFAULT_REPEAT_LAST_N;
+		boolean inspect = false;
+		String backend = "native";
 
 		for (int i = 0; i < args.length; i++) {
 			String optionName = args[i];
@@ -71,6 +114,7 @@ record Options(Path modelPath, String prompt, String systemPrompt, boolean inter
 			switch (optionName) {
 			case "--interactive", "--chat", "-i" -> interactive = true;
 			case "--instruct" -> interactive = false;
+			case "--inspect" -> inspect = true;
 			case "--help", "-h" -> {
 				printUsage(System.out);
 				System.exit(0);
@@ -100,14 +144,56 @@ record Options(Path modelPath, String prompt, String systemPrompt, boolean inter
 				case "--localNode" -> localNode = nextArg;
 				case "--remoteNode" -> remoteNode = nextArg;
 				case "--remotePort" -> remotePort = Integer.parseInt(nextArg);
+				case "--prefix-cache-mb" -> prefixCacheMB = Integer.parseInt(nextArg);
+				case "--draft-model" -> draftModel = Paths.get(nextArg);
+				case "--draft-k" -> draftK = Integer.parseInt(nextArg);
+				case "--speculation" -> speculation = nextArg;
+				case "--ngram" -> ngram = Integer.parseInt(nextArg);
+				case "--top-k" -> topK = Integer.parseInt(nextArg);
+				case "--repeat-penalty" -> repeatPenalty = Float.parseFloat(nextArg);
+				case "--frequency-penalty" -> frequencyPenalty = Float.parseFloat(nextArg);
+				case "--presence-penalty" -> presencePenalty = Float.parseFloat(nextArg);
+				case "--repeat-last-n" -> repeatLastN = Integer.parseInt(nextArg);
+				case "--backend" -> backend = nextArg;
 				default -> require(false, "Unknown option: %s", optionName);
 				}
 			}
 			}
 		}
-		return new Options(modelPath, prompt, systemPrompt, interactive, temperature, topp, minp, seed, maxTokens, stream, echo, localNode, remoteNode, remotePort);
+		SpeculativeDecoder.Mode mode = speculation == null ?
+				(draftModel != null ? SpeculativeDecoder.Mode.DRAFT : null) : parseSpeculation(speculation);
+		require(speculation == null || mode != null || speculation.equals("none"), "Invalid argument: --speculation must be none, draft or lookup");
+		require(backend.equals("native") || backend.equals("kernels"), "Invalid argument: --backend must be native or kernels");
+		return new Options(modelPath, prompt, systemPrompt, interactive, temperature, topp, minp, seed, maxTokens, stream, echo, localNode, remoteNode, remotePort, prefixCacheMB, draftModel, draftK, mode, ngram,
+				topK, repeatPenalty, frequencyPenalty, presencePenalty, repeatLastN,
+				inspect, backend.equals("kernels"));
+	}
+
+	/**
+	 * @return the mode, null for none or an unknown name
+	 */
+	static SpeculativeDecoder.Mode parseSpeculation(String name) {
+		return switch (name) {
+		case "draft" -> SpeculativeDecoder.Mode.DRAFT;
+		case "lookup" -> SpeculativeDecoder.Mode.LOOKUP;
+		default -> null;
+		};
 	}
 	
+	/**
+	 * @return penalties for the Java sampler
+	 */
+	Sampler.Penalties penalties() {
+		return new Sampler.Penalties(repeatPenalty, frequencyPenalty, presencePenalty, repeatLastN);
+	}
+
+	/**
+	 * @return whether a setting needs the Java sampler, the native one only has temperature, min-p and top-p
+	 */
+	boolean javaSampling() {
+		return topK > 0 || penalties().active();
+	}
+
 	public final int getMaxTokens() {
 		return maxTokens() == -1 ? DEFAULT_MAX_TOKENS : maxTokens();
 	}
@@ -0,0 +1,242 @@
+package com.llama4j;
+
+import java.lang.foreign.Arena;
+import java.lang.foreign.MemorySegment;
+import java.util.Map;
+import java.util.NavigableMap;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ConcurrentSkipListMap;
+import java.util.concurrent.atomic.AtomicLong;
+import java.util.concurrent.atomic.LongAdder;
+import java.util.concurrent.locks.ReentrantReadWriteLock;
+
+import org.apache.commons.logging.Log;
+import org.apache.commons.logging.LogFactory;
+
+/**
+ * Cache of precomputed KV states for common prompt heads such as system prompts.<p>
+ * Entries are keyed by the hash of a token prefix and hold an off-heap snapshot of the session state
+ * after that prefix was prefilled. A new session whose prompt starts with a cached prefix restores the
+ * snapshot instead of evaluating it. Total snapshot size is held under a byte budget by evicting the
+ * least recently used entries.<p>
+ * Lookups run concurrently under a read lock, so many sessions can clone the same head at once; an
+ * entry's memory is only released under the write lock once no restore can be reading it.
+ */
+final class PrefixCache {
+	private static final Log log = LogFactory.getLog(PrefixCache.class);
+	public static boolean DEBUG = false;
+	private final long budgetBytes;
+	private final Map<Key, Entry> entries = new ConcurrentHashMap<>();
+	// cached prefix length -> number of entries with that length, longest tried first
+	private final NavigableMap<Integer, Integer> lengths = new ConcurrentSkipListMap<>();
+	private final ReentrantReadWriteLock lock = new ReentrantReadWriteLock();
+	private final AtomicLong clock = new AtomicLong();
+	private final LongAdder hits = new LongAdder();
+	private final LongAdder misses = new LongAdder();
+	private final LongAdder evictions = new LongAdder();
+	private final LongAdder tokensSaved = new LongAdder();
+	private long usedBytes = 0;
+
+	private record Key(int length, long hash) {}
+
+	private static final class Entry {
+		final int[] tokens;
+		final Arena arena;
+		final MemorySegment state;
+		volatile long lastUsed;
+		Entry(int[] tokens, Arena arena, MemorySegment state, long lastUsed) {
+			this.tokens = tokens;
+			this.arena = arena;
+			this.state = state;
+			this.lastUsed = lastUsed;
+		}
+		long bytes() {
+			return state.byteSize() + (long) tokens.length * Integer.BYTES;
+		}
+	}
+
+	/**
+	 * @param budgetBytes upper bound on total snapshot bytes held
+	 */
+	PrefixCache(long budgetBytes) {
+		this.budgetBytes = budgetBytes;
+	}
+
+	/**
+	 * Bring a session up to date with the given prompt head, cloning a cached state when one matches
+	 * and otherwise prefilling the head and caching the resulting state for later sessions.
+	 * @param session freshly opened session, or one whose history is to be replaced
+	 * @param tokens the prompt head tokens
+	 * @param size number of valid tokens
+	 * @return number of tokens taken from the cache rather than evaluated
+	 */
+	int prime(Session session, IntTensor tokens, int size) {
+		int restored = restore(session, tokens, size);
+		if(restored == size)
+			return restored;
+		if(restored == 0)
+			DeviceManager.keepSession(session, 0);
+		if(DeviceManager.evalSession(session, tokens, restored, size - restored) != 0)
+			throw new IllegalStateException("Prompt head of "+size+" tokens exceeds context of "+session);
+		put(session);
+		return restored;
+	}
+
+	/**
+	 * Restore the longest cached prefix of tokens into the session
+	 * @return length of the restored prefix, 0 on a miss
+	 */
+	int restore(Session session, IntTensor tokens, int size) {
+		long[] prefixHash = prefixHashes(tokens, size);
+		lock.readLock().lock();
+		try {
+			for(Integer length : lengths.headMap(size, true).descendingKeySet()) {
+				Entry entry = entries.get(new Key(length, prefixHash[length]));
+				if(entry == null || !matches(entry.tokens, tokens))
+					continue;
+				if(DeviceManager.setSessionState(session, entry.state) == 0)
+					continue;
+				entry.lastUsed = clock.incrementAndGet();
+				session.setHistory(entry.tokens);
+				hits.increment();
+				tokensSaved.add(length);
+				return length;
+			}
+		} finally {
+			lock.readLock().unlock();
+		}
+		misses.increment();
+		return 0;
+	}
+
+	/**
+	 * Snapshot the session's current KV state, keyed by its token history
+	 */
+	void put(Session session) {
+		int[] history = session.getHistory();
+		if(history.length == 0)
+			return;
+		long stateBytes = DeviceManager.sessionStateSize(session);
+		long bytes = stateBytes + (long) history.length * Integer.BYTES;
+		if(bytes > budgetBytes) {
+			if(DEBUG)
+				log.info("Prefix of "+history.length+" tokens needs "+bytes+" bytes, over budget "+budgetBytes);
+			return;
+		}
+		Key key = new Key(history.length, hash(history, history.length));
+		if(entries.containsKey(key))
+			return;
+		Arena arena = Arena.ofShared();
+		MemorySegment state = arena.allocate(stateBytes, 64);
+		if(DeviceManager.getSessionState(session, state) != stateBytes) {
+			arena.close();
+			return;
+		}
+		lock.writeLock().lock();
+		try {
+			if(entries.containsKey(key)) {
+				arena.close();
+				return;
+			}
+			while(usedBytes + bytes > budgetBytes && evictEldest())
+				;
+			entries.put(key, new Entry(history, arena, state, clock.incrementAndGet()));
+			lengths.merge(key.length(), 1, Integer::sum);
+			usedBytes += bytes;
+		} finally {
+			lock.writeLock().unlock();
+		}
+	}
+
+	/**
+	 * Must hold write lock
+	 */
+	private boolean evictEldest() {
+		Map.Entry<Key, Entry> eldest = null;
+		for(Map.Entry<Key, Entry> e : entries.entrySet())
+			if(eldest == null || e.getValue().lastUsed < eldest.getValue().lastUsed)
+				eldest = e;
+		if(eldest == null)
+			return false;
+		entries.remove(eldest.getKey());
+		lengths.computeIfPresent(eldest.getKey().length(), (k, v) -> v == 1 ? null : v - 1);
+		usedBytes -= eldest.getValue().bytes();
+		eldest.getValue().arena.close();
+		evictions.increment();
+		return true;
+	}
+
+	private static boolean matches(int[] prefix, IntTensor tokens) {
+		for(int i = 0; i < prefix.length; i++)
+			if(prefix[i] != tokens.getInt(i))
+				return false;
+		return true;
+	}
+
+	private static long mix(long h, int token) {
+		return (h ^ token) * 0x9E3779B97F4A7C15L + 0x632BE59BD9B4E019L;
+	}
+	private static long hash(int[] tokens, int size) {
+		long h = 0;
+		for(int i = 0; i < size; i++)
+			h = mix(h, tokens[i]);
+		return h;
+	}
+	/**
+	 * @return hash of every prefix, element i covers the first i tokens
+	 */
+	private static long[] prefixHashes(IntTensor tokens, int size) {
+		long[] h = new long[size + 1];
+		for(int i = 0; i < size; i++)
+			h[i + 1] = mix(h[i], tokens.getInt(i));
+		return h;
+	}
+
+	public long getHits() {
+		return hits.sum();
+	}
+	public long getMisses() {
+		return misses.sum();
+	}
+	public long getEvictions() {
+		return evictions.sum();
+	}
+	/**
+	 * @return prompt tokens not prefilled thanks to cache hits
+	 */
+	public long getTokensSaved() {
+		return tokensSaved.sum();
+	}
+	public long getUsedBytes() {
+		lock.readLock().lock();
+		try {
+			return usedBytes;
+		} finally {
+			lock.readLock().unlock();
+		}
+	}
+	public long getBudgetBytes() {
+		return budgetBytes;
+	}
+	public int size() {
+		return entries.size();
+	}
+	/**
+	 * Release all snapshots
+	 */
+	void clear() {
+		lock.writeLock().lock();
+		try {
+			while(evictEldest())
+				;
+		} finally {
+			lock.writeLock().unlock();
+		}
+	}
+	@Override
+	public String toString() {
+		long h = getHits(), m = getMisses();
+		return "PrefixCache entries:"+size()+" bytes:"+getUsedBytes()+"/"+budgetBytes+" hits:"+h+" misses:"+m+
+				" hit rate:"+(h + m == 0 ? 0f : (float) h / (h + m))+" evictions:"+getEvictions()+" tokens saved:"+getTokensSaved();
+	}
+}
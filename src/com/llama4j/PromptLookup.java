@@ -0,0 +1,134 @@
+package com.llama4j;
+
+import java.util.Arrays;
+
+/**
+ * Draft-free proposals for speculative decoding: the last n tokens of the sequence are looked up among
+ * earlier positions of the prompt and generated text, and the tokens that followed the most recent earlier
+ * occurrence are proposed. Pays off when output copies spans of the prompt, as summaries and rewrites do.<p>
+ * Every n-gram is indexed by a polynomial rolling hash as tokens are appended, so a lookup is one probe
+ * followed by a token comparison to rule out collisions. Not thread safe, one per decoder.
+ */
+final class PromptLookup {
+	private static final long BASE = 0x100000001B3L;
+	private static final int EMPTY = -1;
+	private final int ngram;
+	// BASE^(ngram-1), weight of the token leaving the window
+	private final long outWeight;
+	private int[] tokens = new int[1024];
+	private int size;
+	private long hash;
+	// n-gram hash -> index of the token that followed its latest occurrence
+	private long[] keys = new long[1024];
+	private int[] values = new int[1024];
+	private int used;
+
+	/**
+	 * @param ngram number of trailing tokens matched, smaller matches more often but proposes worse
+	 */
+	PromptLookup(int ngram) {
+		if(ngram < 1)
+			throw new IllegalArgumentException("n-gram length must be positive: "+ngram);
+		this.ngram = ngram;
+		long w = 1;
+		for(int i = 1; i < ngram; i++)
+			w *= BASE;
+		this.outWeight = w;
+		Arrays.fill(values, EMPTY);
+	}
+
+	/**
+	 * Start a new sequence from a prompt.
+	 * @param prompt prompt tokens
+	 * @param n number of valid tokens
+	 */
+	void reset(IntTensor prompt, int n) {
+		size = 0;
+		hash = 0;
+		used = 0;
+		Arrays.fill(values, EMPTY);
+		for(int i = 0; i < n; i++)
+			append(prompt.getInt(i));
+	}
+
+	/**
+	 * Extend the sequence, indexing the n-gram that now has a continuation.
+	 */
+	void append(int token) {
+		if(size >= ngram)
+			put(hash, size);
+		if(size == tokens.length)
+			tokens = Arrays.copyOf(tokens, size * 2);
+		tokens[size++] = token;
+		if(size > ngram)
+			hash -= tokens[size - 1 - ngram] * outWeight;
+		hash = hash * BASE + token;
+	}
+
+	/**
+	 * Propose the continuation of the latest earlier occurrence of the trailing n-gram.
+	 * @param out receives the proposal
+	 * @param max most tokens to propose
+	 * @return number of tokens proposed, 0 if the trailing n-gram has not occurred before
+	 */
+	int propose(int[] out, int max) {
+		if(size < ngram || max <= 0)
+			return 0;
+		int at = get(hash);
+		if(at == EMPTY)
+			return 0;
+		for(int j = 1; j <= ngram; j++) {
+			if(tokens[at - j] != tokens[size - j])
+				return 0;
+		}
+		int n = Math.min(max, size - at);
+		System.arraycopy(tokens, at, out, 0, n);
+		return n;
+	}
+
+	int size() {
+		return size;
+	}
+
+	private int slot(long key) {
+		int mask = keys.length - 1;
+		long h = key * 0x9E3779B97F4A7C15L;
+		int i = (int) (h ^ (h >>> 32)) & mask;
+		while(values[i] != EMPTY && keys[i] != key)
+			i = (i + 1) & mask;
+		return i;
+	}
+
+	private int get(long key) {
+		return values[slot(key)];
+	}
+
+	private void put(long key, int value) {
+		int s = slot(key);
+		if(values[s] == EMPTY) {
+			keys[s] = key;
+			if(++used * 4 > keys.length * 3) {
+				values[s] = value;
+				grow();
+				return;
+			}
+		}
+		// latest occurrence wins, it is the likeliest to continue the same way
+		values[s] = value;
+	}
+
+	private void grow() {
+		long[] oldKeys = keys;
+		int[] oldValues = values;
+		keys = new long[oldKeys.length * 2];
+		values = new int[oldValues.length * 2];
+		Arrays.fill(values, EMPTY);
+		for(int i = 0; i < oldKeys.length; i++) {
+			if(oldValues[i] != EMPTY) {
+				int s = slot(oldKeys[i]);
+				keys[s] = oldKeys[i];
+				values[s] = oldValues[i];
+			}
+		}
+	}
+}
@@ -0,0 +1,98 @@
+package com.llama4j;
+
+import java.lang.foreign.MemorySegment;
+import java.nio.ByteOrder;
+
+import jdk.incubator.vector.ByteVector;
+import jdk.incubator.vector.FloatVector;
+import jdk.incubator.vector.VectorOperators;
+
+/**
+ * GGML Q4_0: blocks of 32 four bit quants offset by 8 sharing one float16 scale, 18 bytes per block.
+ * Byte i of a block holds element i in its low nibble and element i + 16 in its high nibble.
+ */
+final class Q4_0FloatTensor extends MappedFloatTensor {
+	static final int BLOCK_SIZE = 32;
+	static final int TYPE_SIZE = 2 + BLOCK_SIZE / 2;
+
+	Q4_0FloatTensor(int size, MemorySegment memorySegment) {
+		super(size, memorySegment);
+	}
+
+	@Override
+	int getFormatType() {
+		return 2;
+	}
+
+	@Override
+	public float getFloat(int index) {
+		assert 0 <= index && index < size;
+		long blockOffset = (long) (index / BLOCK_SIZE) * TYPE_SIZE;
+		float scale = Float.float16ToFloat(readShort(memorySegment, blockOffset));
+		int modIndex = index % BLOCK_SIZE;
+		int quant;
+		if (modIndex < BLOCK_SIZE / 2)
+			quant = readByte(memorySegment, blockOffset + 2 + modIndex) & 0x0F;
+		else
+			quant = (readByte(memorySegment, blockOffset + 2 + modIndex - BLOCK_SIZE / 2) >>> 4) & 0x0F;
+		return (quant - 8) * scale;
+	}
+
+	@Override
+	public float dot(int thisOffset, FloatTensor that, int thatOffset, int size) {
+		if (USE_VECTOR_API && that instanceof ArrayFloatTensor other)
+			return vectorDot(this, thisOffset, other, thatOffset, size);
+		return scalarDot(this, thisOffset, that, thatOffset, size);
+	}
+
+	/**
+	 * Per block: split the 16 bytes into low and high nibbles, recentre them, widen to floats and
+	 * fold in the block scale with one FMA.
+	 */
+	private static float vectorDot(Q4_0FloatTensor thiz, int thisOffset, ArrayFloatTensor that, int thatOffset, int size) {
+		float result = 0f;
+		int j = 0;
+		// scalar up to the first block boundary
+		int alignmentBound = Math.min(size, -thisOffset & (BLOCK_SIZE - 1));
+		if (alignmentBound > 0) {
+			result += scalarDot(thiz, thisOffset, that, thatOffset, alignmentBound);
+			j += alignmentBound;
+		}
+		FloatVector val = FloatVector.zero(F_SPECIES);
+		long blockOffset = (long) ((thisOffset + j) / BLOCK_SIZE) * TYPE_SIZE;
+		int upperBound = j + (size - j) / BLOCK_SIZE * BLOCK_SIZE;
+		int lanes = F_SPECIES.length();
+		for (; j < upperBound; j += BLOCK_SIZE, blockOffset += TYPE_SIZE) {
+			FloatVector wScale = FloatVector.broadcast(F_SPECIES, Float.float16ToFloat(readShort(thiz.memorySegment, blockOffset)));
+			ByteVector wBytes = ByteVector.fromMemorySegment(ByteVector.SPECIES_128, thiz.memorySegment, blockOffset + 2, ByteOrder.LITTLE_ENDIAN);
+			ByteVector loBytes = wBytes.and((byte) 0xF).sub((byte) 8);
+			ByteVector hiBytes = wBytes.lanewise(VectorOperators.LSHR, 4).sub((byte) 8);
+			int at = thatOffset + j;
+			switch (F_SPECIES.vectorBitSize()) {
+				case 512 -> {
+					FloatVector sum0 = that.getFloatVector(F_SPECIES, at).mul(loBytes.castShape(F_SPECIES, 0));
+					FloatVector sum1 = that.getFloatVector(F_SPECIES, at + lanes).mul(hiBytes.castShape(F_SPECIES, 0));
+					val = sum0.add(sum1).fma(wScale, val);
+				}
+				case 256 -> {
+					FloatVector sum0 = that.getFloatVector(F_SPECIES, at).mul(loBytes.castShape(F_SPECIES, 0));
+					FloatVector sum1 = that.getFloatVector(F_SPECIES, at + lanes).mul(loBytes.castShape(F_SPECIES, 1));
+					FloatVector sum2 = that.getFloatVector(F_SPECIES, at + 2 * lanes).mul(hiBytes.castShape(F_SPECIES, 0));
+					FloatVector sum3 = that.getFloatVector(F_SPECIES, at + 3 * lanes).mul(hiBytes.castShape(F_SPECIES, 1));
+					val = sum0.add(sum1).add(sum2).add(sum3).fma(wScale, val);
+				}
+				case 128 -> {
+					for (int i = 0; i < 8; i++) {
+						ByteVector nibbles = i < 4 ? loBytes : hiBytes;
+						val = that.getFloatVector(F_SPECIES, at + i * lanes).mul(nibbles.castShape(F_SPECIES, i & 3)).fma(wScale, val);
+					}
+				}
+				default -> throw new UnsupportedOperationException(F_SPECIES.toString());
+			}
+		}
+		result += val.reduceLanes(VectorOperators.ADD);
+		if (j < size)
+			result += scalarDot(thiz, thisOffset + j, that, thatOffset + j, size - j);
+		return result;
+	}
+}
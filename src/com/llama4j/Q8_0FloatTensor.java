@@ -0,0 +1,95 @@
+package com.llama4j;
+
+import java.lang.foreign.MemorySegment;
+import java.nio.ByteOrder;
+
+import jdk.incubator.vector.ByteVector;
+import jdk.incubator.vector.FloatVector;
+import jdk.incubator.vector.VectorOperators;
+
+/**
+ * GGML Q8_0: blocks of 32 signed bytes sharing one float16 scale, 34 bytes per block.
+ */
+final class Q8_0FloatTensor extends MappedFloatTensor {
+	static final int BLOCK_SIZE = 32;
+	static final int TYPE_SIZE = 2 + BLOCK_SIZE;
+
+	Q8_0FloatTensor(int size, MemorySegment memorySegment) {
+		super(size, memorySegment);
+	}
+
+	@Override
+	int getFormatType() {
+		return 1;
+	}
+
+	@Override
+	public float getFloat(int index) {
+		assert 0 <= index && index < size;
+		long blockOffset = (long) (index / BLOCK_SIZE) * TYPE_SIZE;
+		float scale = Float.float16ToFloat(readShort(memorySegment, blockOffset));
+		return readByte(memorySegment, blockOffset + 2 + index % BLOCK_SIZE) * scale;
+	}
+
+	@Override
+	public float dot(int thisOffset, FloatTensor that, int thatOffset, int size) {
+		if (USE_VECTOR_API && that instanceof ArrayFloatTensor other)
+			return vectorDot(this, thisOffset, other, thatOffset, size);
+		return scalarDot(this, thisOffset, that, thatOffset, size);
+	}
+
+	/**
+	 * Per block: widen the 32 quants to floats lane group by lane group, multiply by the activations,
+	 * and fold in the block scale with one FMA.
+	 */
+	private static float vectorDot(Q8_0FloatTensor thiz, int thisOffset, ArrayFloatTensor that, int thatOffset, int size) {
+		float result = 0f;
+		int j = 0;
+		// scalar up to the first block boundary
+		int alignmentBound = Math.min(size, -thisOffset & (BLOCK_SIZE - 1));
+		if (alignmentBound > 0) {
+			result += scalarDot(thiz, thisOffset, that, thatOffset, alignmentBound);
+			j += alignmentBound;
+		}
+		FloatVector val = FloatVector.zero(F_SPECIES);
+		long blockOffset = (long) ((thisOffset + j) / BLOCK_SIZE) * TYPE_SIZE;
+		int upperBound = j + (size - j) / BLOCK_SIZE * BLOCK_SIZE;
+		int lanes = F_SPECIES.length();
+		for (; j < upperBound; j += BLOCK_SIZE, blockOffset += TYPE_SIZE) {
+			FloatVector wScale = FloatVector.broadcast(F_SPECIES, Float.float16ToFloat(readShort(thiz.memorySegment, blockOffset)));
+			int at = thatOffset + j;
+			switch (F_SPECIES.vectorBitSize()) {
+				case 512 -> {
+					ByteVector wBytes = ByteVector.fromMemorySegment(ByteVector.SPECIES_256, thiz.memorySegment, blockOffset + 2, ByteOrder.LITTLE_ENDIAN);
+					FloatVector sum0 = that.getFloatVector(F_SPECIES, at).mul(wBytes.castShape(F_SPECIES, 0));
+					FloatVector sum1 = that.getFloatVector(F_SPECIES, at + lanes).mul(wBytes.castShape(F_SPECIES, 1));
+					val = sum0.add(sum1).fma(wScale, val);
+				}
+				case 256 -> {
+					ByteVector wBytes = ByteVector.fromMemorySegment(ByteVector.SPECIES_256, thiz.memorySegment, blockOffset + 2, ByteOrder.LITTLE_ENDIAN);
+					FloatVector sum0 = that.getFloatVector(F_SPECIES, at).mul(wBytes.castShape(F_SPECIES, 0));
+					FloatVector sum1 = that.getFloatVector(F_SPECIES, at + lanes).mul(wBytes.castShape(F_SPECIES, 1));
+					FloatVector sum2 = that.getFloatVector(F_SPECIES, at + 2 * lanes).mul(wBytes.castShape(F_SPECIES, 2));
+					FloatVector sum3 = that.getFloatVector(F_SPECIES, at + 3 * lanes).mul(wBytes.castShape(F_SPECIES, 3));
+					val = sum0.add(sum1).add(sum2).add(sum3).fma(wScale, val);
+				}
+				case 128 -> {
+					for (int i = 0; i < 2; i++) {
+						ByteVector wBytes = ByteVector.fromMemorySegment(ByteVector.SPECIES_128, thiz.memorySegment, blockOffset + 2 + i * 16, ByteOrder.LITTLE_ENDIAN);
+						int base = at + i * 16;
+						FloatVector sum0 = that.getFloatVector(F_SPECIES, base).mul(wBytes.castShape(F_SPECIES, 0));
+						FloatVector sum1 = that.getFloatVector(F_SPECIES, base + lanes).mul(wBytes.castShape(F_SPECIES, 1));
+						FloatVector sum2 = that.getFloatVector(F_SPECIES, base + 2 * lanes).mul(wBytes.castShape(F_SPECIES, 2));
+						FloatVector sum3 = that.getFloatVector(F_SPECIES, base + 3 * lanes).mul(wBytes.castShape(F_SPECIES, 3));
+						val = sum0.add(sum1).add(sum2).add(sum3).fma(wScale, val);
+					}
+				}
+				default -> throw new UnsupportedOperationException(F_SPECIES.toString());
+			}
+		}
+		result += val.reduceLanes(VectorOperators.ADD);
+		if (j < size)
+			result += scalarDot(thiz, thisOffset + j, that, thatOffset + j, size - j);
+		return result;
+	}
+}
@@ -0,0 +1,457 @@
+package com.llama4j;
+
+import java.lang.foreign.MemorySegment;
+import java.lang.foreign.ValueLayout;
+import java.nio.ByteOrder;
+import java.util.Arrays;
+import java.util.SplittableRandom;
+import java.util.random.RandomGenerator;
+
+import jdk.incubator.vector.FloatVector;
+import jdk.incubator.vector.VectorOperators;
+import jdk.incubator.vector.VectorSpecies;
+
+/**
+ * Java side sampling over logits returned by the native model, used where generation is driven from Java
+ * and needs the full distribution rather than just a token, as speculative decoding does.<p>
+ * Follows the CLI semantics: penalties, temperature scaling, top-k if set, then min-p if min-p != 0, else top-p;
+ * temperature 0 is greedy. Logits are read in place from the native buffer and scaled, exponentiated and summed
+ * with the Vector API into one scratch row, top-k keeps a bounded heap instead of sorting the vocabulary, and
+ * penalties walk a histogram of the recent tokens rather than the vocabulary.<p>
+ * Not thread safe, scratch buffers are reused between calls.
+ */
+final class Sampler implements TokenSampler {
+	/**
+	 * Penalties on tokens among the last lastN of the sequence, llama.cpp semantics: a repeated token's logit is
+	 * divided by repeat if positive, multiplied if negative, then lowered by count * frequency + presence.
+	 */
+	record Penalties(float repeat, float frequency, float presence, int lastN) {
+		static final Penalties NONE = new Penalties(1f, 0f, 0f, 0);
+
+		boolean active() {
+			return lastN > 0 && (repeat != 1f || frequency != 0f || presence != 0f);
+		}
+	}
+
+	private final int vocab;
+	private final float temperature;
+	private final float minP;
+	private final float topP;
+	private final int topK;
+	private final Penalties penalties;
+	private final RandomGenerator random;
+	// top-p scratch, probability bits in the high word and token in the low word
+	private final long[] candidates;
+	// top-k min heap, keys as for candidates
+	private final long[] heap;
+	private float heapFloor;
+	// probabilities for sample(FloatTensor)
+	private final float[] probs;
+	// penalty history: ring of the last lastN tokens, count per token and the distinct tokens counted
+	private final int[] ring;
+	private int ringSize;
+	private int ringPos;
+	private final int[] counts;
+	private final int[] touched;
+	private final int[] touchedIndex;
+	private int nTouched;
+	private long samples;
+	private long nanos;
+
+	Sampler(int vocab, float temperature, float minP, float topP) {
+		this(vocab, temperature, minP, topP, 0, Penalties.NONE, System.nanoTime());
+	}
+
+	/**
+	 * @param vocab vocabulary size
+	 * @param temperature temperature, 0 for greedy
+	 * @param minP min-p, 0 to use top-p
+	 * @param topP top-p, 1 to disable
+	 * @param topK most likely tokens kept, 0 to disable
+	 * @param penalties repetition penalties
+	 * @param seed seed for {@link #sample(FloatTensor)}
+	 */
+	Sampler(int vocab, float temperature, float minP, float topP, int topK, Penalties penalties, long seed) {
+		this.vocab = vocab;
+		this.temperature = temperature;
+		this.minP = minP;
+		this.topP = topP;
+		this.topK = topK > 0 && topK < vocab ? topK : 0;
+		this.penalties = penalties;
+		this.random = new SplittableRandom(seed);
+		this.candidates = minP == 0f && topP < 1f ? new long[this.topK > 0 ? this.topK : vocab] : null;
+		this.heap = this.topK > 0 ? new long[this.topK] : null;
+		this.probs = new float[vocab];
+		if (penalties.active()) {
+			ring = new int[penalties.lastN()];
+			counts = new int[vocab];
+			touched = new int[penalties.lastN()];
+			touchedIndex = new int[vocab];
+		} else {
+			ring = counts = touched = touchedIndex = null;
+		}
+	}
+
+	int vocab() {
+		return vocab;
+	}
+
+	/**
+	 * Reset the penalty history to the tail of the given tokens.
+	 */
+	@Override
+	public void begin(IntTensor tokens, int n) {
+		if (counts == null)
+			return;
+		for (int j = 0; j < nTouched; j++)
+			counts[touched[j]] = 0;
+		nTouched = 0;
+		ringSize = 0;
+		ringPos = 0;
+		for (int i = Math.max(0, n - ring.length); i < n; i++)
+			accept(tokens.getInt(i));
+	}
+
+	@Override
+	public void accept(int token) {
+		if (counts == null)
+			return;
+		if (ringSize == ring.length) {
+			int old = ring[ringPos];
+			if (--counts[old] == 0) {
+				int last = touched[--nTouched];
+				touched[touchedIndex[old]] = last;
+				touchedIndex[last] = touchedIndex[old];
+			}
+		} else {
+			ringSize++;
+		}
+		ring[ringPos] = token;
+		ringPos = ringPos + 1 == ring.length ? 0 : ringPos + 1;
+		if (counts[token]++ == 0) {
+			touchedIndex[token] = nTouched;
+			touched[nTouched++] = token;
+		}
+	}
+
+	/**
+	 * Draw a token from a logits view, e.g. {@link DeviceManager#logits(Session)}.
+	 */
+	@Override
+	public int sample(FloatTensor logits) {
+		long start = System.nanoTime();
+		int token;
+		if (temperature == 0f) {
+			token = greedy(logits.getSegment(), 0L, probs);
+		} else {
+			probabilities(logits.getSegment(), 0L, probs);
+			token = sample(probs, vocab, 1f, random);
+		}
+		nanos += System.nanoTime() - start;
+		samples++;
+		return token;
+	}
+
+	/**
+	 * Turn one row of logits into the distribution tokens are drawn from.
+	 * @param logits segment holding the row
+	 * @param offset byte offset of the row
+	 * @param probs receives vocab probabilities summing to 1
+	 */
+	void probabilities(MemorySegment logits, long offset, float[] probs) {
+		if (temperature == 0f) {
+			int best = greedy(logits, offset, probs);
+			Arrays.fill(probs, 0, vocab, 0f);
+			probs[best] = 1f;
+			return;
+		}
+		float inv = 1f / temperature;
+		float max = load(logits, offset, probs, inv);
+		if (penalize(probs, inv))
+			max = max(probs);
+		// fused softmax numerator, the max logit maps to exp(0) = 1
+		float sum = expSum(probs, max);
+		if (topK > 0)
+			sum = topK(probs);
+		// min-p compares against minP itself before normalizing since the max is 1
+		if (minP > 0f) {
+			scale(probs, 1f / cutoff(probs, minP));
+		} else if (topP < 1f) {
+			scale(probs, 1f / sum);
+			topP(probs);
+		} else {
+			scale(probs, 1f / sum);
+		}
+	}
+
+	/**
+	 * @return most likely token after penalties, probs holds the penalized logits
+	 */
+	private int greedy(MemorySegment logits, long offset, float[] probs) {
+		float max = load(logits, offset, probs, 1f);
+		if (penalize(probs, 1f))
+			max = max(probs);
+		for (int i = 0; i < vocab; i++) {
+			if (probs[i] == max)
+				return i;
+		}
+		return 0;
+	}
+
+	/**
+	 * Copy a row of logits times scale into probs.
+	 * @return the largest scaled logit
+	 */
+	private float load(MemorySegment logits, long offset, float[] probs, float scale) {
+		float max = Float.NEGATIVE_INFINITY;
+		int i = 0;
+		if (FloatTensor.USE_VECTOR_API) {
+			VectorSpecies<Float> species = FloatTensor.F_SPECIES;
+			FloatVector vmax = FloatVector.broadcast(species, Float.NEGATIVE_INFINITY);
+			int upper = species.loopBound(vocab);
+			for (; i < upper; i += species.length()) {
+				FloatVector v = FloatVector.fromMemorySegment(species, logits, offset + (long) i * Float.BYTES, ByteOrder.nativeOrder()).mul(scale);
+				v.intoArray(probs, i);
+				vmax = vmax.max(v);
+			}
+			max = vmax.reduceLanes(VectorOperators.MAX);
+		}
+		for (; i < vocab; i++) {
+			float v = logits.get(ValueLayout.JAVA_FLOAT, offset + (long) i * Float.BYTES) * scale;
+			probs[i] = v;
+			max = Math.max(max, v);
+		}
+		return max;
+	}
+
+	/**
+	 * Apply the penalties to scaled logits, only the tokens in the history are visited.
+	 * @return whether any logit changed
+	 */
+	private boolean penalize(float[] logits, float scale) {
+		if (nTouched == 0)
+			return false;
+		float repeat = penalties.repeat();
+		float frequency = penalties.frequency() * scale;
+		float presence = penalties.presence() * scale;
+		for (int j = 0; j < nTouched; j++) {
+			int t = touched[j];
+			// a positive scale keeps the sign, so dividing the scaled logit matches dividing the raw one
+			float l = logits[t];
+			l = l > 0f ? l / repeat : l * repeat;
+			logits[t] = l - counts[t] * frequency - presence;
+		}
+		return true;
+	}
+
+	private float max(float[] values) {
+		float max = Float.NEGATIVE_INFINITY;
+		int i = 0;
+		if (FloatTensor.USE_VECTOR_API) {
+			VectorSpecies<Float> species = FloatTensor.F_SPECIES;
+			FloatVector vmax = FloatVector.broadcast(species, Float.NEGATIVE_INFINITY);
+			int upper = species.loopBound(vocab);
+			for (; i < upper; i += species.length())
+				vmax = vmax.max(FloatVector.fromArray(species, values, i));
+			max = vmax.reduceLanes(VectorOperators.MAX);
+		}
+		for (; i < vocab; i++)
+			max = Math.max(max, values[i]);
+		return max;
+	}
+
+	/**
+	 * Replace each value with exp(value - max).
+	 * @return sum of the results
+	 */
+	private float expSum(float[] values, float max) {
+		float sum = 0f;
+		int i = 0;
+		if (FloatTensor.USE_VECTOR_API) {
+			VectorSpecies<Float> species = FloatTensor.F_SPECIES;
+			FloatVector acc = FloatVector.zero(species);
+			int upper = species.loopBound(vocab);
+			for (; i < upper; i += species.length()) {
+				FloatVector v = FloatVector.fromArray(species, values, i).sub(max).lanewise(VectorOperators.EXP);
+				v.intoArray(values, i);
+				acc = acc.add(v);
+			}
+			sum = acc.reduceLanes(VectorOperators.ADD);
+		}
+		for (; i < vocab; i++) {
+			float v = (float) Math.exp(values[i] - max);
+			values[i] = v;
+			sum += v;
+		}
+		return sum;
+	}
+
+	/**
+	 * Zero values below cutoff.
+	 * @return sum of the values kept
+	 */
+	private float cutoff(float[] values, float cutoff) {
+		float kept = 0f;
+		int i = 0;
+		if (FloatTensor.USE_VECTOR_API) {
+			VectorSpecies<Float> species = FloatTensor.F_SPECIES;
+			FloatVector acc = FloatVector.zero(species);
+			int upper = species.loopBound(vocab);
+			for (; i < upper; i += species.length()) {
+				FloatVector v = FloatVector.fromArray(species, values, i);
+				v = v.blend(0f, v.lt(cutoff));
+				v.intoArray(values, i);
+				acc = acc.add(v);
+			}
+			kept = acc.reduceLanes(VectorOperators.ADD);
+		}
+		for (; i < vocab; i++) {
+			if (values[i] < cutoff)
+				values[i] = 0f;
+			else
+				kept += values[i];
+		}
+		return kept;
+	}
+
+	/**
+	 * Keep the topK largest values by a bounded min heap, whole vectors below the heap's floor are skipped.
+	 * @return sum of the values kept
+	 */
+	private float topK(float[] values) {
+		int n = 0;
+		int i = 0;
+		if (FloatTensor.USE_VECTOR_API) {
+			VectorSpecies<Float> species = FloatTensor.F_SPECIES;
+			int upper = species.loopBound(vocab);
+			for (; i < upper; i += species.length()) {
+				if (n == topK && !FloatVector.fromArray(species, values, i).compare(VectorOperators.GT, heapFloor).anyTrue())
+					continue;
+				for (int j = i; j < i + species.length(); j++)
+					n = offer(values[j], j, n);
+			}
+		}
+		for (; i < vocab; i++)
+			n = offer(values[i], i, n);
+		Arrays.fill(values, 0, vocab, 0f);
+		float kept = 0f;
+		for (int j = 0; j < n; j++) {
+			float v = Float.intBitsToFloat((int) (heap[j] >>> 32));
+			values[(int) heap[j]] = v;
+			kept += v;
+		}
+		return kept;
+	}
+
+	private int offer(float value, int token, int n) {
+		if (n == topK && value <= heapFloor)
+			return n;
+		// non negative floats order like their bits
+		long key = ((long) Float.floatToRawIntBits(value) << 32) | token;
+		if (n < topK) {
+			int c = n++;
+			while (c > 0) {
+				int parent = (c - 1) >>> 1;
+				if (heap[parent] <= key)
+					break;
+				heap[c] = heap[parent];
+				c = parent;
+			}
+			heap[c] = key;
+		} else {
+			int c = 0;
+			while (true) {
+				int child = 2 * c + 1;
+				if (child >= n)
+					break;
+				if (child + 1 < n && heap[child + 1] < heap[child])
+					child++;
+				if (key <= heap[child])
+					break;
+				heap[c] = heap[child];
+				c = child;
+			}
+			heap[c] = key;
+		}
+		if (n == topK)
+			heapFloor = Float.intBitsToFloat((int) (heap[0] >>> 32));
+		return n;
+	}
+
+	/**
+	 * Keep the smallest set of most likely tokens whose mass reaches topP. Tokens below (1 - topP) / (n - 1)
+	 * cannot be in that set, which leaves only a handful to sort.
+	 */
+	private void topP(float[] probs) {
+		float cutoff = (1f - topP) / (vocab - 1);
+		int n = 0;
+		for (int i = 0; i < vocab; i++) {
+			if (probs[i] >= cutoff && probs[i] > 0f)
+				candidates[n++] = ((long) Float.floatToRawIntBits(probs[i]) << 32) | i;
+		}
+		Arrays.sort(candidates, 0, n);
+		float mass = 0f;
+		int last = 0;
+		for (int j = n - 1; j >= 0; j--) {
+			mass += Float.intBitsToFloat((int) (candidates[j] >>> 32));
+			if (mass >= topP) {
+				last = j;
+				break;
+			}
+		}
+		Arrays.fill(probs, 0, vocab, 0f);
+		for (int j = last; j < n; j++) {
+			long c = candidates[j];
+			probs[(int) c] = Float.intBitsToFloat((int) (c >>> 32)) / mass;
+		}
+	}
+
+	/**
+	 * Draw from a distribution by inverse CDF.
+	 * @param probs weights, need not be normalized
+	 * @param n number of weights
+	 * @param total sum of the weights
+	 * @param random source of the uniform draw
+	 * @return token
+	 */
+	static int sample(float[] probs, int n, float total, RandomGenerator random) {
+		float u = random.nextFloat() * total;
+		float cdf = 0f;
+		int last = 0;
+		for (int i = 0; i < n; i++) {
+			if (probs[i] == 0f)
+				continue;
+			cdf += probs[i];
+			last = i;
+			if (u < cdf)
+				return i;
+		}
+		// rounding left u just past the end
+		return last;
+	}
+
+	private void scale(float[] probs, float s) {
+		int i = 0;
+		if (FloatTensor.USE_VECTOR_API) {
+			VectorSpecies<Float> species = FloatTensor.F_SPECIES;
+			int upper = species.loopBound(vocab);
+			for (; i < upper; i += species.length())
+				FloatVector.fromArray(species, probs, i).mul(s).intoArray(probs, i);
+		}
+		for (; i < vocab; i++)
+			probs[i] *= s;
+	}
+
+	/**
+	 * @return mean nanoseconds spent per {@link #sample(FloatTensor)}
+	 */
+	long getMeanNanos() {
+		return samples == 0 ? 0L : nanos / samples;
+	}
+
+	@Override
+	public String toString() {
+		return "Sampler temperature:"+temperature+" min-p:"+minP+" top-p:"+topP+" top-k:"+topK+" "+penalties+
+				" samples:"+samples+" mean us:"+(getMeanNanos() / 1000.0);
+	}
+}
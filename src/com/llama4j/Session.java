@@ -0,0 +1,100 @@
+package com.llama4j;
+
+import java.util.Arrays;
+
+/**
+ * Handle to a native llama context opened over the loaded model, or over the draft model for speculative decoding.<p>
+ * Every session has its own KV cache and sampler state but shares the mmapped model weights, so many
+ * conversations can be served from one JVM. A session must only be driven by one thread at a time,
+ * distinct sessions may run concurrently.<p>
+ * The token history mirrors the KV cache only through the token entry points, {@link DeviceManager#runModelIncremental},
+ * runModelSampled, evalSession, decodeSession and keepSession. The string runners and {@link DeviceManager#sessionBegin}
+ * clear it, so a later incremental call starts over rather than reusing positions that hold other tokens.
+ * @see DeviceManager#openSession(int)
+ */
+public final class Session implements AutoCloseable {
+	private final long handle;
+	private final int contextSize;
+	private volatile boolean closed = false;
+	// tokens whose keys and values are resident in the native KV cache, in position order
+	private int[] history = new int[256];
+	private int historySize = 0;
+
+	Session(long handle, int contextSize) {
+		this.handle = handle;
+		this.contextSize = contextSize;
+	}
+	/**
+	 * @return the native context handle
+	 * @throws IllegalStateException if the session has been closed
+	 */
+	long handle() {
+		if(closed)
+			throw new IllegalStateException("Session "+Long.toHexString(handle)+" is closed");
+		return handle;
+	}
+	public int getContextSize() {
+		return contextSize;
+	}
+	public boolean isClosed() {
+		return closed;
+	}
+	/**
+	 * @return number of tokens currently cached in the native KV cache
+	 */
+	public int getCachedTokens() {
+		return historySize;
+	}
+	/**
+	 * Length of the longest common prefix between the cached tokens and the given ones
+	 * @param tokens candidate token sequence
+	 * @param size number of valid tokens in the sequence
+	 * @return number of leading tokens already evaluated in this session
+	 */
+	int commonPrefix(IntTensor tokens, int size) {
+		int n = Math.min(size, historySize);
+		int i = 0;
+		while(i < n && history[i] == tokens.getInt(i))
+			i++;
+		return i;
+	}
+	/**
+	 * Forget cached tokens from position size onward, mirrors a native KV truncation
+	 */
+	void truncate(int size) {
+		historySize = Math.min(historySize, Math.max(0, size));
+	}
+	/**
+	 * Record tokens appended to the native KV cache
+	 */
+	void append(IntTensor tokens, int offset, int size) {
+		if(historySize + size > history.length)
+			history = Arrays.copyOf(history, Math.max(history.length * 2, historySize + size));
+		for(int i = 0; i < size; i++)
+			history[historySize++] = tokens.getInt(offset + i);
+	}
+	/**
+	 * @return copy of the tokens resident in the KV cache
+	 */
+	int[] getHistory() {
+		return Arrays.copyOf(history, historySize);
+	}
+	/**
+	 * Replace the token history, used when KV state is restored from elsewhere
+	 */
+	void setHistory(int[] tokens) {
+		history = Arrays.copyOf(tokens, Math.max(tokens.length, 256));
+		historySize = tokens.length;
+	}
+	@Override
+	public synchronized void close() {
+		if(closed)
+			return;
+		DeviceManager.closeSession(this);
+		closed = true;
+	}
+	@Override
+	public String toString() {
+		return "Session 0x"+Long.toHexString(handle)+" context:"+contextSize+(closed ? " closed" : "");
+	}
+}
@@ -0,0 +1,301 @@
+package com.llama4j;
+
+import java.lang.foreign.Arena;
+import java.lang.foreign.MemorySegment;
+import java.util.Set;
+import java.util.SplittableRandom;
+import java.util.function.IntConsumer;
+import java.util.random.RandomGenerator;
+
+/**
+ * Generation where cheap proposals are verified by the target model in one batched pass.<p>
+ * Each round up to k tokens are proposed, either sampled one at a time from a small draft model or copied from
+ * an earlier occurrence of the trailing n-gram in the prompt and output ({@link PromptLookup}). The target then
+ * evaluates the pending token and all proposals together, yielding its distribution at every proposed position.
+ * Proposal i is accepted with probability min(1, p(x)/q(x)), q being the draft distribution or, for a lookup,
+ * one-hot on the proposal; on the first rejection a replacement is drawn from the normalized residual
+ * max(0, p - q), and if all are accepted a bonus token is drawn from the target's last row. This acceptance rule
+ * makes every emitted token distributed exactly as if the target had sampled it alone, so quality is unchanged
+ * and each target pass yields between 1 and k+1 tokens.<p>
+ * Sessions keep their KV caches between calls, the prompt is reused up to the longest common prefix as in
+ * {@link DeviceManager#runModelIncremental}, and rejected positions are dropped with a KV truncation.
+ * Not thread safe, one decoder serves one conversation.
+ */
+final class SpeculativeDecoder implements AutoCloseable {
+	public static boolean DEBUG = false;
+
+	/**
+	 * Where proposals come from, chosen per request.
+	 */
+	enum Mode {
+		DRAFT, LOOKUP
+	}
+
+	private final Session draft;
+	private final int k;
+	private final int vocab;
+	private final Sampler sampler;
+	private final PromptLookup lookup;
+	private final Set<Integer> stopTokens;
+	private final RandomGenerator random;
+	private final Arena arena = Arena.ofShared();
+	// target logits of the pending token and k proposals
+	private final MemorySegment targetLogits;
+	// draft logits, at most two catch up tokens are fed at once
+	private final MemorySegment draftLogits;
+	private final IntTensor tokens;
+	private final float[] p;
+	private final float[][] q;
+	private final int[] proposed;
+	// tokens the draft has yet to evaluate, the last one is the pending token neither model has evaluated
+	private final int[] catchUp = new int[3];
+	private int behind;
+	private final long[] rounds = new long[Mode.values().length];
+	private final long[] drafted = new long[Mode.values().length];
+	private final long[] accepted = new long[Mode.values().length];
+	private final long[] emitted = new long[Mode.values().length];
+
+	/**
+	 * @param draft session over the draft model, context size as large as the target sessions', null for lookup only
+	 * @param k most tokens proposed per round
+	 * @param ngram trailing tokens matched by prompt lookup
+	 * @param sampler sampling settings applied to all models
+	 * @param stopTokens tokens that end generation, not emitted
+	 * @param seed random seed
+	 */
+	SpeculativeDecoder(Session draft, int k, int ngram, Sampler sampler, Set<Integer> stopTokens, long seed) {
+		if(k < 1)
+			throw new IllegalArgumentException("Draft length must be positive: "+k);
+		this.draft = draft;
+		this.k = k;
+		this.sampler = sampler;
+		this.vocab = sampler.vocab();
+		this.lookup = new PromptLookup(ngram);
+		this.stopTokens = stopTokens;
+		this.random = new SplittableRandom(seed);
+		this.targetLogits = arena.allocate((long) (k + 1) * vocab * Float.BYTES, BufferPool.ALIGNMENT);
+		this.draftLogits = draft == null ? null : arena.allocate(2L * vocab * Float.BYTES, BufferPool.ALIGNMENT);
+		this.tokens = new IntTensor(arena.allocate((long) (k + 2) * Integer.BYTES, BufferPool.ALIGNMENT));
+		this.p = new float[vocab];
+		this.q = draft == null ? null : new float[k][vocab];
+		this.proposed = new int[k];
+	}
+
+	/**
+	 * Run a tokenized prompt, same contract as {@link DeviceManager#runModelIncremental}.
+	 * @param target session over the main model, e.g. a restored one, the draft session follows it
+	 * @param mode where proposals come from
+	 * @param promptTokens the complete tokenized prompt
+	 * @param nPrompt number of valid tokens in promptTokens
+	 * @param returnTokens receives the completion, its size bounds the completion length
+	 * @param tokenConsumer receives each token as it is accepted, null to not stream
+	 * @return number of tokens generated, -1 if context length exceeded
+	 */
+	int generate(Session target, Mode mode, IntTensor promptTokens, int nPrompt, IntTensor returnTokens, IntConsumer tokenConsumer) {
+		if(nPrompt <= 0)
+			throw new IllegalArgumentException("Empty prompt");
+		if(mode == Mode.DRAFT && draft == null)
+			throw new IllegalStateException("No draft model loaded");
+		// everything but the last prompt token is prefilled, it is fed with the first proposals
+		if(prefill(target, promptTokens, nPrompt - 1) < 0)
+			return -1;
+		int contextSize = target.getContextSize();
+		if(mode == Mode.DRAFT) {
+			if(prefill(draft, promptTokens, nPrompt - 1) < 0)
+				return -1;
+			contextSize = Math.min(contextSize, draft.getContextSize());
+		} else {
+			lookup.reset(promptTokens, nPrompt);
+		}
+		int m = mode.ordinal();
+		int max = returnTokens.size();
+		int produced = 0;
+		int pending = promptTokens.getInt(nPrompt - 1);
+		catchUp[0] = pending;
+		behind = 1;
+		while(produced < max) {
+			int pos = target.getCachedTokens();
+			int room = Math.min(k, Math.min(contextSize - pos - 1, max - produced - 1));
+			if(room < 0)
+				return produced > 0 ? produced : -1;
+			int n = mode == Mode.DRAFT ? proposeDraft(room) : lookup.propose(proposed, room);
+			if(n < 0)
+				return produced > 0 ? produced : -1;
+			// verify the pending token and all proposals in one target pass
+			tokens.setInt(0, pending);
+			for(int i = 0; i < n; i++)
+				tokens.setInt(i + 1, proposed[i]);
+			if(DeviceManager.decodeSession(target, tokens, 0, n + 1, targetLogits) < 0)
+				return produced > 0 ? produced : -1;
+			int a = 0;
+			int next = -1;
+			for(; a < n; a++) {
+				sampler.probabilities(targetLogits, (long) a * vocab * Float.BYTES, p);
+				int x = proposed[a];
+				// a lookup proposal is certain, q(x) = 1
+				float qx = mode == Mode.DRAFT ? q[a][x] : 1f;
+				if(random.nextFloat() * qx < p[x])
+					continue;
+				float mass = mode == Mode.DRAFT ? residual(p, q[a]) : residual(p, x);
+				if(mass > 0f) {
+					next = Sampler.sample(p, vocab, mass, random);
+				} else {
+					// p and q equal up to rounding, the residual is empty so draw from p itself
+					sampler.probabilities(targetLogits, (long) a * vocab * Float.BYTES, p);
+					next = Sampler.sample(p, vocab, 1f, random);
+				}
+				break;
+			}
+			if(next < 0) {
+				sampler.probabilities(targetLogits, (long) n * vocab * Float.BYTES, p);
+				next = Sampler.sample(p, vocab, 1f, random);
+			}
+			rounds[m]++;
+			drafted[m] += n;
+			accepted[m] += a;
+			// the target keeps pending and the accepted proposals
+			DeviceManager.keepSession(target, pos + 1 + a);
+			if(mode == Mode.DRAFT)
+				followDraft(pos, n, a, next);
+			boolean stop = false;
+			for(int i = 0; i <= a; i++) {
+				int t = i < a ? proposed[i] : next;
+				if(stopTokens.contains(t) || produced == max) {
+					stop = true;
+					break;
+				}
+				returnTokens.setInt(produced++, t);
+				emitted[m]++;
+				if(mode == Mode.LOOKUP)
+					lookup.append(t);
+				if(tokenConsumer != null)
+					tokenConsumer.accept(t);
+			}
+			if(stop)
+				break;
+			pending = next;
+		}
+		if(DEBUG)
+			System.out.println(this);
+		return produced;
+	}
+
+	/**
+	 * Sample n proposals from the draft, its first pass also evaluates the tokens it has not seen.
+	 * @return n, or -1 if the draft context is exceeded
+	 */
+	private int proposeDraft(int n) {
+		for(int i = 0; i < n; i++) {
+			int feed = 1;
+			if(i == 0) {
+				feed = behind;
+				for(int j = 0; j < behind; j++)
+					tokens.setInt(j, catchUp[j]);
+			} else {
+				tokens.setInt(0, proposed[i - 1]);
+			}
+			if(DeviceManager.decodeSession(draft, tokens, 0, feed, draftLogits) < 0)
+				return -1;
+			sampler.probabilities(draftLogits, (long) (feed - 1) * vocab * Float.BYTES, q[i]);
+			proposed[i] = Sampler.sample(q[i], vocab, 1f, random);
+		}
+		return n;
+	}
+
+	/**
+	 * Trim the draft to the accepted tokens and queue what it has not evaluated, it never saw the last proposal.
+	 */
+	private void followDraft(int pos, int n, int a, int next) {
+		if(n == 0) {
+			// nothing was fed, only possible in the final round
+			catchUp[behind++] = next;
+			return;
+		}
+		DeviceManager.keepSession(draft, pos + Math.min(1 + a, n));
+		behind = 0;
+		if(a == n)
+			catchUp[behind++] = proposed[n - 1];
+		catchUp[behind++] = next;
+	}
+
+	/**
+	 * Overwrite p with max(0, p - q).
+	 * @return mass of the residual
+	 */
+	private float residual(float[] p, float[] q) {
+		float mass = 0f;
+		for(int i = 0; i < vocab; i++) {
+			float r = p[i] - q[i];
+			r = r > 0f ? r : 0f;
+			p[i] = r;
+			mass += r;
+		}
+		return mass;
+	}
+
+	/**
+	 * Residual against a one-hot q, which is p without the rejected token.
+	 * @return mass of the residual
+	 */
+	private static float residual(float[] p, int rejected) {
+		float mass = 1f - p[rejected];
+		p[rejected] = 0f;
+		return mass;
+	}
+
+	/**
+	 * Bring a session to hold exactly the first count prompt tokens, reusing its longest common prefix.
+	 */
+	private static int prefill(Session session, IntTensor promptTokens, int count) {
+		int reuse = Math.min(session.commonPrefix(promptTokens, count), count);
+		DeviceManager.keepSession(session, reuse);
+		if(reuse == count)
+			return 0;
+		return DeviceManager.evalSession(session, promptTokens, reuse, count - reuse);
+	}
+
+	/**
+	 * @return whether draft mode is available
+	 */
+	boolean hasDraft() {
+		return draft != null;
+	}
+
+	/**
+	 * @return fraction of proposed tokens the target accepted in the mode
+	 */
+	float getAcceptanceRate(Mode mode) {
+		long d = drafted[mode.ordinal()];
+		return d == 0 ? 0f : (float) accepted[mode.ordinal()] / d;
+	}
+
+	/**
+	 * @return mean tokens emitted per target pass in the mode
+	 */
+	float getTokensPerPass(Mode mode) {
+		long r = rounds[mode.ordinal()];
+		return r == 0 ? 0f : (float) emitted[mode.ordinal()] / r;
+	}
+
+	/**
+	 * Release the logits buffers, the sessions are owned by the caller.
+	 */
+	@Override
+	public void close() {
+		arena.close();
+	}
+
+	@Override
+	public String toString() {
+		StringBuilder sb = new StringBuilder("SpeculativeDecoder k:").append(k);
+		for(Mode mode : Mode.values()) {
+			int m = mode.ordinal();
+			if(rounds[m] == 0)
+				continue;
+			sb.append(' ').append(mode).append(" rounds:").append(rounds[m]).append(" proposed:").append(drafted[m])
+				.append(" accepted:").append(accepted[m]).append(" acceptance:").append(getAcceptanceRate(mode))
+				.append(" tokens/pass:").append(getTokensPerPass(mode));
+		}
+		return sb.toString();
+	}
+}
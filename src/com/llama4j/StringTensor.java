@@ -8,12 +8,15 @@ import java.lang.foreign.Arena;
 import java.lang.foreign.FunctionDescriptor;
 import java.lang.foreign.Linker;
 import java.lang.foreign.MemorySegment;
+import java.lang.foreign.SegmentAllocator;
 import java.lang.foreign.SymbolLookup;
 import java.lang.foreign.ValueLayout;
 import java.lang.invoke.MethodHandle;
 import java.nio.charset.StandardCharsets;
 import java.util.Arrays;
 
+import com.llama4j.ffi.NativeMethods;
+
 
 public final class StringTensor implements Externalizable, Comparable {
 	public static boolean DEBUG = false;
@@ -36,12 +39,43 @@ public final class StringTensor implements Externalizable, Comparable {
 
 	public StringTensor() {}
 
+	/**
+	 * Copy into the process lifetime shared arena, for strings that live as long as the process such as
+	 * the model path. Per request strings use {@link #of(SegmentAllocator, String)}.
+	 */
 	public StringTensor(String s) {
 		copy(s);
 	}
 	public StringTensor(byte[] b) {
 		copy(b);
 	}
+	/**
+	 * Wrap an existing segment, e.g. a pooled buffer
+	 */
+	StringTensor(MemorySegment memorySegment) {
+		this.memorySegment = memorySegment;
+	}
+	/**
+	 * Null terminated UTF-8 copy of s allocated from a request scoped allocator
+	 */
+	static StringTensor of(SegmentAllocator allocator, String s) {
+		return of(allocator, getUTF8(s));
+	}
+	/**
+	 * Null terminated copy of UTF-8 bytes allocated from a request scoped allocator
+	 */
+	static StringTensor of(SegmentAllocator allocator, byte[] utf8Bytes) {
+		MemorySegment seg = allocator.allocate(utf8Bytes.length + 1, BufferPool.ALIGNMENT);
+		MemorySegment.copy(utf8Bytes, 0, seg, ValueLayout.JAVA_BYTE, 0, utf8Bytes.length);
+		seg.set(ValueLayout.JAVA_BYTE, utf8Bytes.length, (byte)0);
+		return new StringTensor(seg);
+	}
+	/**
+	 * Zeroed output buffer of capacity bytes allocated from a request scoped allocator
+	 */
+	static StringTensor buffer(SegmentAllocator allocator, int capacity) {
+		return new StringTensor(allocator.allocate(capacity, BufferPool.ALIGNMENT));
+	}
 
 	public Arena getArena() {
 		return Llama3.sharedArena;
@@ -73,6 +107,12 @@ public final class StringTensor implements Externalizable, Comparable {
 		while(utfBytes[len] != 0) len++;
 		return new String(utfBytes, 0, len, StandardCharsets.UTF_8);
 	}
+	/**
+	 * Decode only the first byteLength bytes, for buffers filled natively with a known length
+	 */
+	public String toString(int byteLength) {
+		return new String(memorySegment.asSlice(0, byteLength).toArray(ValueLayout.JAVA_BYTE), StandardCharsets.UTF_8);
+	}
 	public int size() {
 		return (int) memorySegment.byteSize();
 	}
@@ -156,7 +196,7 @@ public final class StringTensor implements Externalizable, Comparable {
 		MemorySegment hostSeg = getSegment();
 		long addr = hostSeg.address(); // strong field keeps reachability
 		try {
-			Llama3.copyFromNativeMH.invokeExact(addr, bytes);
+			NativeMethods.Device.copyFromNativeMH.invokeExact(addr, bytes);
 		} catch (Throwable e) {
 			throw new RuntimeException("CopyFromNative transfer failed , "+ this.getSegment(), e);
 		}
@@ -0,0 +1,158 @@
+package com.llama4j;
+
+import java.nio.charset.StandardCharsets;
+import java.util.Arrays;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.atomic.AtomicLong;
+import java.util.concurrent.atomic.LongAdder;
+import java.util.concurrent.locks.ReentrantLock;
+
+/**
+ * Bounded LRU cache in front of the tokenizer, keyed by the UTF-8 bytes of the text.<p>
+ * Role names, header separators and repeated boilerplate are tokenized over and over while building
+ * prompts; each miss is an FFI round trip on the critical path before prefill. Lookups are lock free so
+ * any number of readers proceed concurrently. Recency is tracked by an access stamp per entry and the
+ * cache is trimmed back to capacity in batches, once it overshoots by an eighth, so eviction cost is
+ * amortized across inserts rather than paid on every one.<p>
+ * Returned arrays are shared between callers and must not be modified.
+ */
+final class TokenCache {
+	static final int DEFAULT_CAPACITY = Integer.getInteger("llama.TokenCacheSize", 4096);
+	// longer texts are unlikely to repeat verbatim and would crowd out the boilerplate
+	static final int DEFAULT_MAX_KEY_BYTES = Integer.getInteger("llama.TokenCacheMaxBytes", 4096);
+
+	@FunctionalInterface
+	interface Encoder {
+		int[] encode(byte[] utf8);
+	}
+
+	private static final class Key {
+		final byte[] utf8;
+		final int hash;
+		Key(byte[] utf8) {
+			this.utf8 = utf8;
+			this.hash = Arrays.hashCode(utf8);
+		}
+		@Override
+		public int hashCode() {
+			return hash;
+		}
+		@Override
+		public boolean equals(Object o) {
+			return o instanceof Key k && hash == k.hash && Arrays.equals(utf8, k.utf8);
+		}
+	}
+
+	private static final class Entry {
+		final int[] tokens;
+		volatile long lastUsed;
+		Entry(int[] tokens, long lastUsed) {
+			this.tokens = tokens;
+			this.lastUsed = lastUsed;
+		}
+	}
+
+	private final Encoder encoder;
+	private final int capacity;
+	private final int maxKeyBytes;
+	private final ConcurrentHashMap<Key, Entry> entries;
+	private final AtomicLong clock = new AtomicLong();
+	private final ReentrantLock trimLock = new ReentrantLock();
+	private final LongAdder hits = new LongAdder();
+	private final LongAdder misses = new LongAdder();
+	private final LongAdder evictions = new LongAdder();
+
+	TokenCache(Encoder encoder) {
+		this(encoder, DEFAULT_CAPACITY, DEFAULT_MAX_KEY_BYTES);
+	}
+	/**
+	 * @param encoder tokenizer invoked on a miss
+	 * @param capacity number of entries retained
+	 * @param maxKeyBytes texts longer than this are tokenized but not cached
+	 */
+	TokenCache(Encoder encoder, int capacity, int maxKeyBytes) {
+		if(capacity < 1)
+			throw new IllegalArgumentException("capacity must be positive: "+capacity);
+		this.encoder = encoder;
+		this.capacity = capacity;
+		this.maxKeyBytes = maxKeyBytes;
+		this.entries = new ConcurrentHashMap<>(capacity + capacity / 8 + 1);
+	}
+
+	int[] encode(String text) {
+		return encode(text.getBytes(StandardCharsets.UTF_8));
+	}
+	/**
+	 * @param utf8 text to tokenize, not retained unless cached, and then not to be modified
+	 * @return the tokens, shared and read only
+	 */
+	int[] encode(byte[] utf8) {
+		if(utf8.length > maxKeyBytes) {
+			misses.increment();
+			return encoder.encode(utf8);
+		}
+		Key key = new Key(utf8);
+		Entry entry = entries.get(key);
+		if(entry != null) {
+			entry.lastUsed = clock.incrementAndGet();
+			hits.increment();
+			return entry.tokens;
+		}
+		misses.increment();
+		int[] tokens = encoder.encode(utf8);
+		entries.putIfAbsent(key, new Entry(tokens, clock.incrementAndGet()));
+		if(entries.size() > capacity + capacity / 8)
+			trim();
+		return tokens;
+	}
+	/**
+	 * Evict least recently used entries down to capacity
+	 */
+	private void trim() {
+		if(!trimLock.tryLock())
+			return; // another thread is already trimming
+		try {
+			int excess = entries.size() - capacity;
+			if(excess <= 0)
+				return;
+			long[] stamps = new long[entries.size()];
+			int n = 0;
+			for(Entry e : entries.values())
+				if(n < stamps.length)
+					stamps[n++] = e.lastUsed;
+			Arrays.sort(stamps, 0, n);
+			long cutoff = stamps[Math.min(excess, n) - 1];
+			for(var it = entries.values().iterator(); it.hasNext();) {
+				if(it.next().lastUsed <= cutoff) {
+					it.remove();
+					evictions.increment();
+				}
+			}
+		} finally {
+			trimLock.unlock();
+		}
+	}
+	public long getHits() {
+		return hits.sum();
+	}
+	public long getMisses() {
+		return misses.sum();
+	}
+	public long getEvictions() {
+		return evictions.sum();
+	}
+	public float getHitRate() {
+		long h = getHits(), m = getMisses();
+		return h + m == 0 ? 0f : (float) h / (h + m);
+	}
+	public int size() {
+		return entries.size();
+	}
+	void clear() {
+		entries.clear();
+	}
+	@Override
+	public String toString() {
+		return "TokenCache entries:"+size()+"/"+capacity+" hits:"+getHits()+" misses:"+getMisses()+" hit rate:"+getHitRate()+" evictions:"+getEvictions();
+	}
+}
@@ -0,0 +1,27 @@
+package com.llama4j;
+
+/**
+ * Chooses the next token from the logits of a Java driven generation loop, see
+ * {@link DeviceManager#runModelSampled}. Implementations may keep per sequence state such as penalty histories.
+ */
+interface TokenSampler {
+	/**
+	 * Start a sequence.
+	 * @param tokens the tokens so far, e.g. the prompt
+	 * @param n number of valid tokens
+	 */
+	default void begin(IntTensor tokens, int n) {
+	}
+
+	/**
+	 * @param logits vocab logits of the last evaluated token, a view valid only for the duration of the call
+	 * @return the chosen token
+	 */
+	int sample(FloatTensor logits);
+
+	/**
+	 * Record a token appended to the sequence, sampled or not.
+	 */
+	default void accept(int token) {
+	}
+}
@@ -0,0 +1,272 @@
+package com.llama4j;
+
+import java.io.IOException;
+import java.io.OutputStream;
+import java.lang.foreign.Arena;
+import java.lang.foreign.MemorySegment;
+import java.lang.foreign.ValueLayout;
+import java.nio.charset.StandardCharsets;
+
+import com.llama4j.ffi.NativeMethods;
+
+/**
+ * Raw bytes of every token in the model vocabulary, rendered once through the native library and kept
+ * off-heap as one packed byte segment with an offset table.<p>
+ * Detokenizing from the table is a slice copy per token with no downcall, and a {@link Decoder} turns a
+ * token stream into text incrementally, holding back a multi-byte UTF-8 sequence split across tokens
+ * until it is complete instead of emitting broken characters.
+ */
+final class TokenTable implements AutoCloseable {
+	// a vocabulary rendering to more than this is taken as a broken library rather than retried further
+	private static final int MAX_TABLE_BYTES = 1 << BufferPool.MAX_CLASS;
+	private final Arena arena;
+	private final int vocabSize;
+	private final MemorySegment bytes;
+	private final MemorySegment offsets; // vocabSize+1 ints, piece i is [offsets[i], offsets[i+1])
+	private final int maxPieceBytes;
+
+	private TokenTable(Arena arena, int vocabSize, MemorySegment bytes, MemorySegment offsets) {
+		this.arena = arena;
+		this.vocabSize = vocabSize;
+		this.bytes = bytes;
+		this.offsets = offsets;
+		int max = 0;
+		for(int i = 0; i < vocabSize; i++)
+			max = Math.max(max, offset(i + 1) - offset(i));
+		this.maxPieceBytes = max;
+	}
+
+	/**
+	 * @return whether the loaded library has the exports {@link #fromModel()} needs
+	 */
+	static boolean canRender() {
+		return NativeMethods.exports("vocab_size") && NativeMethods.exports("token_to_string_batch");
+	}
+	/**
+	 * Render the loaded model's whole vocabulary with one batched downcall
+	 * @throws IllegalStateException if the vocabulary does not fit in {@link #MAX_TABLE_BYTES}
+	 */
+	static TokenTable fromModel() {
+		int vocabSize = DeviceManager.vocabSize();
+		try (BufferPool.Scope scope = Llama3.bufferPool.scope()) {
+			IntTensor tokens = IntTensor.allocate(scope, vocabSize);
+			IntTensor runs = IntTensor.allocate(scope, vocabSize + 1);
+			for(int i = 0; i < vocabSize; i++) {
+				tokens.setInt(i, i);
+				runs.setInt(i, i);
+			}
+			runs.setInt(vocabSize, vocabSize);
+			IntTensor pieceOffsets = IntTensor.allocate(scope, vocabSize + 1);
+			for(int capacity = (int) Math.min(vocabSize * 8L, MAX_TABLE_BYTES);; capacity = (int) Math.min(capacity * 2L, MAX_TABLE_BYTES)) {
+				try (BufferPool.Scope attempt = Llama3.bufferPool.scope()) {
+					StringTensor text = StringTensor.buffer(attempt, capacity);
+					int total = DeviceManager.tokenToStringBatch(tokens, runs, vocabSize, text, pieceOffsets);
+					if(total < 0) {
+						if(capacity == MAX_TABLE_BYTES)
+							throw new IllegalStateException("Vocabulary of "+vocabSize+" tokens does not render within "+MAX_TABLE_BYTES+" bytes");
+						continue;
+					}
+					Arena arena = Arena.ofShared();
+					MemorySegment packed = arena.allocate(Math.max(1, total), BufferPool.ALIGNMENT);
+					MemorySegment.copy(text.getSegment(), 0, packed, 0, total);
+					MemorySegment offs = arena.allocate((long) (vocabSize + 1) * Integer.BYTES, BufferPool.ALIGNMENT);
+					MemorySegment.copy(pieceOffsets.getSegment(), 0, offs, 0, offs.byteSize());
+					return new TokenTable(arena, vocabSize, packed, offs);
+				}
+			}
+		}
+	}
+	/**
+	 * @param pieces raw bytes of each token indexed by id, null for none
+	 */
+	static TokenTable of(byte[][] pieces) {
+		long total = 0;
+		for(byte[] p : pieces)
+			total += p == null ? 0 : p.length;
+		Arena arena = Arena.ofShared();
+		MemorySegment packed = arena.allocate(Math.max(1, total), BufferPool.ALIGNMENT);
+		MemorySegment offs = arena.allocate((long) (pieces.length + 1) * Integer.BYTES, BufferPool.ALIGNMENT);
+		int at = 0;
+		for(int i = 0; i < pieces.length; i++) {
+			offs.setAtIndex(ValueLayout.JAVA_INT, i, at);
+			if(pieces[i] != null) {
+				MemorySegment.copy(pieces[i], 0, packed, ValueLayout.JAVA_BYTE, at, pieces[i].length);
+				at += pieces[i].length;
+			}
+		}
+		offs.setAtIndex(ValueLayout.JAVA_INT, pieces.length, at);
+		return new TokenTable(arena, pieces.length, packed, offs);
+	}
+
+	private int offset(int i) {
+		return offsets.getAtIndex(ValueLayout.JAVA_INT, i);
+	}
+	int getVocabSize() {
+		return vocabSize;
+	}
+	int getMaxPieceBytes() {
+		return maxPieceBytes;
+	}
+	int pieceLength(int token) {
+		return offset(token + 1) - offset(token);
+	}
+	/**
+	 * Copy the raw bytes of a token into dst
+	 * @return number of bytes copied
+	 */
+	int copyPiece(int token, byte[] dst, int dstOffset) {
+		int start = offset(token);
+		int len = offset(token + 1) - start;
+		MemorySegment.copy(bytes, ValueLayout.JAVA_BYTE, start, dst, dstOffset, len);
+		return len;
+	}
+	/**
+	 * @return a copy of the raw bytes of a token
+	 */
+	byte[] piece(int token) {
+		byte[] b = new byte[pieceLength(token)];
+		copyPiece(token, b, 0);
+		return b;
+	}
+	/**
+	 * @return all pieces indexed by token id
+	 */
+	byte[][] pieces() {
+		byte[][] p = new byte[vocabSize][];
+		for(int i = 0; i < vocabSize; i++)
+			p[i] = piece(i);
+		return p;
+	}
+	/**
+	 * Decode a complete token sequence to text
+	 */
+	String decode(IntTensor tokens, int size) {
+		int total = 0;
+		for(int i = 0; i < size; i++)
+			total += pieceLength(tokens.getInt(i));
+		byte[] b = new byte[total];
+		int at = 0;
+		for(int i = 0; i < size; i++)
+			at += copyPiece(tokens.getInt(i), b, at);
+		return new String(b, StandardCharsets.UTF_8);
+	}
+	/**
+	 * @return a new incremental decoder over this table
+	 */
+	Decoder decoder() {
+		return new Decoder();
+	}
+	@Override
+	public void close() {
+		arena.close();
+	}
+
+	/**
+	 * Incremental detokenizer for one token stream. Not thread safe, reusable after {@link #reset()}.
+	 */
+	final class Decoder {
+		// held back incomplete sequence at [0, pending), then the current piece
+		private final byte[] scratch = new byte[maxPieceBytes + 4];
+		private int pending = 0;
+
+		private Decoder() {}
+
+		/**
+		 * Write the complete UTF-8 bytes available after this token, holding back a trailing incomplete sequence
+		 */
+		void write(int token, OutputStream out) throws IOException {
+			int n = pending + copyPiece(token, scratch, pending);
+			int complete = completeLength(scratch, n);
+			out.write(scratch, 0, complete);
+			hold(complete, n);
+		}
+		/**
+		 * Append the text completed by this token, holding back a trailing incomplete sequence
+		 */
+		void append(int token, StringBuilder out) {
+			int n = pending + copyPiece(token, scratch, pending);
+			int complete = completeLength(scratch, n);
+			appendUTF8(scratch, complete, out);
+			hold(complete, n);
+		}
+		/**
+		 * Emit whatever is held back, e.g. at the end of the stream
+		 */
+		void flush(OutputStream out) throws IOException {
+			out.write(scratch, 0, pending);
+			pending = 0;
+		}
+		void flush(StringBuilder out) {
+			appendUTF8(scratch, pending, out);
+			pending = 0;
+		}
+		void reset() {
+			pending = 0;
+		}
+		private void hold(int complete, int n) {
+			pending = n - complete;
+			System.arraycopy(scratch, complete, scratch, 0, pending);
+		}
+	}
+
+	/**
+	 * @return length of the prefix of b[0,n) that does not end inside a multi-byte sequence
+	 */
+	static int completeLength(byte[] b, int n) {
+		for(int i = n - 1; i >= 0 && i >= n - 4; i--) {
+			int c = b[i] & 0xFF;
+			if((c & 0xC0) == 0x80)
+				continue; // continuation, keep looking for the lead byte
+			int need = c < 0x80 ? 1 : (c & 0xE0) == 0xC0 ? 2 : (c & 0xF0) == 0xE0 ? 3 : (c & 0xF8) == 0xF0 ? 4 : 1;
+			return i + need > n ? i : n;
+		}
+		return n;
+	}
+	/**
+	 * Decode UTF-8 without intermediate allocation, malformed input becomes U+FFFD
+	 */
+	static void appendUTF8(byte[] b, int n, StringBuilder out) {
+		int i = 0;
+		while(i < n) {
+			int c = b[i] & 0xFF;
+			int need, cp;
+			if(c < 0x80) {
+				out.append((char) c);
+				i++;
+				continue;
+			} else if((c & 0xE0) == 0xC0) {
+				need = 1; cp = c & 0x1F;
+			} else if((c & 0xF0) == 0xE0) {
+				need = 2; cp = c & 0x0F;
+			} else if((c & 0xF8) == 0xF0) {
+				need = 3; cp = c & 0x07;
+			} else {
+				out.append('\uFFFD');
+				i++;
+				continue;
+			}
+			if(i + need >= n) {
+				out.append('\uFFFD');
+				i++;
+				continue;
+			}
+			int j = 1;
+			for(; j <= need; j++) {
+				int cc = b[i + j] & 0xFF;
+				if((cc & 0xC0) != 0x80)
+					break;
+				cp = (cp << 6) | (cc & 0x3F);
+			}
+			if(j <= need) {
+				out.append('\uFFFD');
+				i += j;
+				continue;
+			}
+			if(cp > Character.MAX_CODE_POINT || (cp >= Character.MIN_SURROGATE && cp <= Character.MAX_SURROGATE))
+				out.append('\uFFFD');
+			else
+				out.appendCodePoint(cp);
+			i += need + 1;
+		}
+	}
+}
@@ -0,0 +1,222 @@
+package com.llama4j.ffi;
+
+import java.io.File;
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.StringReader;
+import java.lang.foreign.Arena;
+import java.lang.foreign.SymbolLookup;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.HashSet;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.Properties;
+import java.util.Set;
+
+import org.apache.commons.logging.Log;
+import org.apache.commons.logging.LogFactory;
+
+/**
+ * Names the native libraries to load, their dependencies and the build variants to choose between.<p>
+ * A manifest is a properties file:
+ * <pre>
+ * # libraries to load, dependencies are pulled in first
+ * libraries=llamagpu
+ * lib.llamagpu.depends=llama
+ * lib.llama.depends=ggml
+ * lib.ggml.depends=ggml-base
+ * # variants in order of preference, the first whose probe loads and whose libraries are all present wins
+ * variants=cuda,cpu
+ * variant.cuda.dir=cuda
+ * variant.cuda.probe=libcuda.so.1
+ * variant.cuda.libraries=ggml-cuda
+ * lib.ggml-cuda.depends=ggml-base
+ * variant.cpu.dir=cpu
+ * </pre>
+ * Library names are bare, as for {@link System#loadLibrary(String)}. A variant dir is relative to each
+ * {@code java.library.path} entry, a variant's extra libraries load before the common ones and
+ * {@code -Dllama.Variant=cpu} forces a variant.
+ * @author Jonathan Groff Copyright (C) NeoCoreTechs 2025
+ */
+final class LibraryManifest {
+	private static final Log log = LogFactory.getLog(LibraryManifest.class);
+	static final String FILE_NAME = "llamagpu.manifest";
+	private final String source;
+	private final List<String> libraries;
+	private final List<String> variants;
+	private final Properties props;
+
+	private LibraryManifest(String source, Properties props) {
+		this.source = source;
+		this.props = props;
+		this.libraries = list(props.getProperty("libraries"));
+		this.variants = list(props.getProperty("variants"));
+		if (libraries.isEmpty())
+			throw new IllegalArgumentException("Native manifest names no libraries: "+FILE_NAME);
+	}
+
+	/**
+	 * Find the manifest, -Dllama.NativeManifest, then llamagpu.manifest in a library directory, then on the classpath.
+	 * @param dirs java.library.path entries
+	 * @return the manifest or null to fall back to loading everything in the library directory
+	 */
+	static LibraryManifest find(List<File> dirs) throws IOException {
+		String named = System.getProperty("llama.NativeManifest");
+		if (named != null)
+			return parse(Files.readString(Path.of(named), StandardCharsets.UTF_8));
+		for (File dir : dirs) {
+			File f = new File(dir, FILE_NAME);
+			if (f.isFile())
+				return parse(Files.readString(f.toPath(), StandardCharsets.UTF_8));
+		}
+		try (InputStream in = LibraryManifest.class.getResourceAsStream("/"+FILE_NAME)) {
+			return in == null ? null : parse(new String(in.readAllBytes(), StandardCharsets.UTF_8));
+		}
+	}
+
+	static LibraryManifest parse(String text) throws IOException {
+		Properties props = new Properties();
+		props.load(new StringReader(text));
+		return new LibraryManifest(text, props);
+	}
+
+	/**
+	 * @return manifest text, part of the resolution cache key
+	 */
+	String source() {
+		return source;
+	}
+
+	/**
+	 * Pick the variant and order its libraries so every dependency loads before its dependents.
+	 * @param dirs java.library.path entries
+	 * @return variant name, or "default" when the manifest has none, and the absolute library paths in load order
+	 */
+	Resolution resolve(List<File> dirs) {
+		String forced = System.getProperty("llama.Variant");
+		if (variants.isEmpty()) {
+			List<File> files = locate(order(libraries), dirs, null);
+			if (files == null)
+				throw new UnsatisfiedLinkError("Native libraries of "+libraries+" missing from "+dirs);
+			return new Resolution("default", files);
+		}
+		List<String> tried = new ArrayList<>();
+		for (String variant : variants) {
+			if (forced != null && !forced.equals(variant))
+				continue;
+			String probe = props.getProperty("variant."+variant+".probe");
+			if (probe != null && !probe(probe)) {
+				tried.add(variant+" (no "+probe+")");
+				continue;
+			}
+			List<String> roots = new ArrayList<>(list(props.getProperty("variant."+variant+".libraries")));
+			roots.addAll(libraries);
+			List<File> files = locate(order(roots), dirs, props.getProperty("variant."+variant+".dir"));
+			if (files == null) {
+				tried.add(variant+" (libraries missing)");
+				continue;
+			}
+			return new Resolution(variant, files);
+		}
+		throw new UnsatisfiedLinkError("No usable native variant in "+dirs+", tried "+(tried.isEmpty() ? forced : tried));
+	}
+
+	/**
+	 * @return the variant dirs the manifest declares, relative to each library directory
+	 */
+	List<String> variantDirs() {
+		List<String> out = new ArrayList<>();
+		for (String variant : variants) {
+			String dir = props.getProperty("variant."+variant+".dir");
+			if (dir != null && !dir.isBlank())
+				out.add(dir.trim());
+		}
+		return out;
+	}
+
+	/**
+	 * Depth first topological sort over lib.&lt;name&gt;.depends.
+	 */
+	List<String> order(List<String> roots) {
+		Map<String, Boolean> state = new LinkedHashMap<>(); // false visiting, true done
+		for (String root : roots)
+			visit(root, state, new ArrayList<>());
+		return new ArrayList<>(state.keySet());
+	}
+
+	private void visit(String lib, Map<String, Boolean> state, List<String> path) {
+		Boolean s = state.get(lib);
+		if (s == Boolean.TRUE)
+			return;
+		path.add(lib);
+		if (s == Boolean.FALSE)
+			throw new IllegalStateException("Native library dependency cycle: "+String.join(" -> ", path));
+		state.put(lib, Boolean.FALSE);
+		for (String dep : list(props.getProperty("lib."+lib+".depends")))
+			visit(dep, state, path);
+		path.remove(path.size() - 1);
+		// reinsert so iteration order is completion order, dependencies first
+		state.remove(lib);
+		state.put(lib, Boolean.TRUE);
+	}
+
+	/**
+	 * @return the files in order, or null if any is missing from every directory
+	 */
+	private static List<File> locate(List<String> ordered, List<File> dirs, String variantDir) {
+		List<File> files = new ArrayList<>(ordered.size());
+		for (String lib : ordered) {
+			String mapped = System.mapLibraryName(lib);
+			File found = null;
+			for (File dir : dirs) {
+				File base = variantDir == null ? dir : new File(dir, variantDir);
+				File f = new File(base, mapped);
+				if (f.isFile()) {
+					found = f.getAbsoluteFile();
+					break;
+				}
+			}
+			if (found == null) {
+				log.info("Native library "+mapped+" not found"+(variantDir == null ? "" : " for "+variantDir));
+				return null;
+			}
+			files.add(found);
+		}
+		return files;
+	}
+
+	/**
+	 * Try to open a system library, a driver for instance, to decide if an accelerated variant can run.
+	 */
+	private static boolean probe(String name) {
+		try {
+			SymbolLookup.libraryLookup(name, Arena.global());
+			return true;
+		} catch (IllegalArgumentException e) {
+			return false;
+		}
+	}
+
+	private static List<String> list(String value) {
+		if (value == null || value.isBlank())
+			return List.of();
+		Set<String> seen = new HashSet<>();
+		List<String> out = new ArrayList<>();
+		for (String s : Arrays.asList(value.split(","))) {
+			s = s.trim();
+			if (!s.isEmpty() && seen.add(s))
+				out.add(s);
+		}
+		return out;
+	}
+
+	/**
+	 * Chosen variant and the libraries to load, in order.
+	 */
+	record Resolution(String variant, List<File> files) {}
+}
@@ -1,21 +1,41 @@
 package com.llama4j.ffi;
 
 import java.io.File;
-import java.lang.foreign.FunctionDescriptor;
-import java.lang.foreign.Linker;
-import java.lang.foreign.SymbolLookup;
-import java.lang.foreign.ValueLayout;
+import java.io.IOException;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.Files;
+import java.nio.file.LinkOption;
+import java.nio.file.Path;
+import java.nio.file.StandardCopyOption;
+import java.nio.file.attribute.PosixFilePermission;
+import java.nio.file.attribute.PosixFilePermissions;
+import java.nio.file.attribute.UserPrincipal;
+import java.util.ArrayList;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.Set;
+import java.util.concurrent.CountDownLatch;
+import java.util.concurrent.TimeUnit;
 import java.util.concurrent.atomic.AtomicReference;
 
 import org.apache.commons.logging.Log;
 import org.apache.commons.logging.LogFactory;
 
-import com.llama4j.Llama3;
-
+/**
+ * Loads llamagpu and its dependencies.<p>
+ * With a {@link LibraryManifest} the libraries named there load in dependency order from the selected
+ * variant, otherwise every .so/.dll in java.library.path loads in directory order as before.
+ * The resolved file list is cached in -Dllama.NativeCache, default ~/.cache/llama4j/native.cache, so later
+ * starts and forked worker JVMs skip the directory scan and variant probe; -Dllama.NativeCache=none disables it.
+ * Since the cache names libraries to load, it is ignored unless the current user owns it and its directory,
+ * neither is writable by group or others, and every file it lists lies in a java.library.path directory
+ * or in a variant dir the manifest declares under one.
+ * @author Jonathan Groff Copyright (C) NeoCoreTechs 2025
+ */
 public final class NativeLoader {
 	public static boolean DEBUG = true;
 	private static final Log log = LogFactory.getLog(NativeLoader.class);
-    private static volatile boolean loaded = false;
     private NativeLoader() {}
     private enum LibraryState {
 		NOT_LOADED,
@@ -23,335 +43,282 @@ public final class NativeLoader {
 		LOADED
 	}
 	private static final AtomicReference<LibraryState> libraryLoaded = new AtomicReference<>(LibraryState.NOT_LOADED);
+	private static final CountDownLatch loadedLatch = new CountDownLatch(1);
+	private static volatile Throwable loadFailure;
+	private static volatile String variant;
+	// declared before the static load so library load can be recorded
+	private static final Map<String, long[]> phases = new LinkedHashMap<>();
 
 	static {
-			NativeLoader.loadLibrary(new File(System.getProperty("java.library.path")).list());
+		load();
 	}
 
-	public static void load() {
-			NativeLoader.loadLibrary(new File(System.getProperty("java.library.path")).list());
-	}
-	
 	/**
-	 * Tries to load the necessary library files from the given list of
-	 * directories.
-	 *
-	 * @param paths a list of strings where each describes a directory of a library.
+	 * Load the native libraries once, callers racing the first load block until it finishes.
 	 */
-	public static void loadLibrary(final String[] paths) {
+	public static void load() {
 		if (libraryLoaded.get() == LibraryState.LOADED) {
+			checkLoaded();
 			return;
 		}
 		if(libraryLoaded.compareAndSet(LibraryState.NOT_LOADED,LibraryState.LOADING)) {
-			synchronized (NativeLoader.class) {
-				//.out.println("Loading from paths list of length:"+paths.size());
-				for (final String path : paths) {
-					//if(DEBUG) log.info(path);
-					if(path.endsWith(".so") || path.endsWith(".dll")) {
-						String fname = new File(path).getName();
-						fname = fname.substring(0,fname.indexOf("."));
-						if(DEBUG)
-							log.info("Trying load for:"+fname);
-						System.loadLibrary(fname);
-					}
+			long start = System.nanoTime();
+			try {
+				loadResolved();
+			} catch (Throwable t) {
+				loadFailure = t;
+			} finally {
+				recordPhase("library load", System.nanoTime() - start);
+				libraryLoaded.set(LibraryState.LOADED);
+				loadedLatch.countDown();
+			}
+		} else {
+			boolean interrupted = false;
+			while (true) {
+				try {
+					loadedLatch.await();
+					break;
+				} catch(final InterruptedException e) {
+					interrupted = true;
 				}
 			}
-			libraryLoaded.set(LibraryState.LOADED);
+			if (interrupted)
+				Thread.currentThread().interrupt();
+		}
+		checkLoaded();
+	}
+
+	private static void checkLoaded() {
+		Throwable t = loadFailure;
+		if (t != null) {
+			UnsatisfiedLinkError e = new UnsatisfiedLinkError("Native libraries failed to load: "+t.getMessage());
+			e.initCause(t);
+			throw e;
 		}
-		while (libraryLoaded.get() == LibraryState.LOADING) {
+	}
+
+	/**
+	 * @return manifest variant loaded, "scan" without a manifest, null before load
+	 */
+	public static String variant() {
+		return variant;
+	}
+
+	private static void loadResolved() throws IOException {
+		List<File> dirs = libraryDirs();
+		LibraryManifest manifest = LibraryManifest.find(dirs);
+		String key = cacheKey(manifest, dirs);
+		Path cache = cachePath();
+		List<File> files = cache == null ? null : readCache(cache, key, trustedDirs(manifest, dirs));
+		if (files != null) {
 			try {
-				log.info("Waiting for load, retry..");
-				Thread.sleep(10);
-			} catch(final InterruptedException e) {}
+				loadAll(files);
+				return;
+			} catch (UnsatisfiedLinkError e) {
+				// a driver or library changed under a valid looking entry, resolve again
+				log.info("Cached native resolution failed, resolving again: "+e.getMessage());
+				Files.deleteIfExists(cache);
+			}
+		}
+		if (manifest != null) {
+			LibraryManifest.Resolution r = manifest.resolve(dirs);
+			variant = r.variant();
+			files = r.files();
+		} else {
+			variant = "scan";
+			files = scan(dirs);
+		}
+		loadAll(files);
+		if (cache != null)
+			writeCache(cache, key, files);
+	}
+
+	private static void loadAll(List<File> files) {
+		for (File f : files) {
+			if(DEBUG)
+				log.info("Loading "+variant+":"+f);
+			System.load(f.getPath());
+		}
+	}
+
+	private static List<File> libraryDirs() {
+		List<File> dirs = new ArrayList<>();
+		for (String p : System.getProperty("java.library.path", "").split(File.pathSeparator)) {
+			if (!p.isEmpty())
+				dirs.add(new File(p));
+		}
+		return dirs;
+	}
+
+	/**
+	 * Without a manifest load every .so/.dll found in the library directories.
+	 */
+	private static List<File> scan(List<File> dirs) {
+		List<File> files = new ArrayList<>();
+		for (File dir : dirs) {
+			String[] names = dir.list();
+			if (names == null)
+				continue;
+			for (String name : names) {
+				if(name.endsWith(".so") || name.endsWith(".dll"))
+					files.add(new File(dir, name).getAbsoluteFile());
+			}
+		}
+		return files;
+	}
+
+	private static Path cachePath() {
+		String p = System.getProperty("llama.NativeCache");
+		if ("none".equals(p))
+			return null;
+		if (p != null)
+			return Path.of(p);
+		String xdg = System.getenv("XDG_CACHE_HOME");
+		Path base = xdg != null && !xdg.isEmpty() ? Path.of(xdg) : Path.of(System.getProperty("user.home"), ".cache");
+		return base.resolve("llama4j").resolve("native.cache");
+	}
+
+	/**
+	 * @return whether path is owned by the current user and, where POSIX permissions exist, not group or world writable
+	 */
+	private static boolean isPrivate(Path path) throws IOException {
+		UserPrincipal user = path.getFileSystem().getUserPrincipalLookupService().lookupPrincipalByName(System.getProperty("user.name"));
+		if (!Files.getOwner(path, LinkOption.NOFOLLOW_LINKS).equals(user))
+			return false;
+		if (!path.getFileSystem().supportedFileAttributeViews().contains("posix"))
+			return true;
+		Set<PosixFilePermission> perms = Files.getPosixFilePermissions(path, LinkOption.NOFOLLOW_LINKS);
+		return !perms.contains(PosixFilePermission.GROUP_WRITE) && !perms.contains(PosixFilePermission.OTHERS_WRITE);
+	}
+
+	/**
+	 * @return the library directories and, with a manifest, each declared variant dir under them
+	 */
+	private static List<File> trustedDirs(LibraryManifest manifest, List<File> dirs) {
+		if (manifest == null)
+			return dirs;
+		List<File> trusted = new ArrayList<>(dirs);
+		for (String variantDir : manifest.variantDirs()) {
+			for (File dir : dirs)
+				trusted.add(new File(dir, variantDir));
+		}
+		return trusted;
+	}
+
+	/**
+	 * @return whether file sits directly in one of the trusted directories, after resolving links
+	 */
+	private static boolean inTrustedDirs(File file, List<File> dirs) throws IOException {
+		File parent = file.getCanonicalFile().getParentFile();
+		for (File dir : dirs) {
+			if (dir.getCanonicalFile().equals(parent))
+				return true;
 		}
+		return false;
 	}
 
-	public static void loadMethods() {
-		Linker linker = Linker.nativeLinker();
-		//if(DEBUG) log.info("linker:"+linker);
-		SymbolLookup lookup = SymbolLookup.loaderLookup();
-		//if(DEBUG) log.info("Loader:"+lookup);
-		//
-		//float getFloat(const uint64_t q, int index, int blockSize, int typeSize, int headerBytes) {
-		//    const float* d_q = reinterpret_cast<const float*>(q);
-		Llama3.getFloat = linker.downcallHandle(
-				lookup.find("getFloat").get(),
-				FunctionDescriptor.of(
-						ValueLayout.JAVA_FLOAT, // return float
-						ValueLayout.JAVA_LONG,  // device A
-						ValueLayout.JAVA_INT,   // index
-						ValueLayout.JAVA_INT,	// format
-						ValueLayout.JAVA_INT,	// blocksize
-						ValueLayout.JAVA_INT,	// typesize
-						ValueLayout.JAVA_INT	// headerBytes
-						));
-		if(DEBUG)
-		log.info("getFloat:"+Llama3.getFloat);
-		//
-		Llama3.sdotSliceDeviceHandle = linker.downcallHandle(
-				lookup.find("sdotSliceDevice").get(),
-				FunctionDescriptor.of(
-						//float sdotSliceDevice(const uint8_t* qA, int indexA, int formatA, int blockSizeA, int typeSizeA, int headerBytesA,
-						//	    const uint8_t* qB, int indexB, int formatB, int blockSizeB, int typeSizeB, int headerBytesB,
-						//	    int N)
-						ValueLayout.JAVA_FLOAT,   // return float
-						ValueLayout.JAVA_LONG,    // device A
-						ValueLayout.JAVA_INT ,    // offset A
-						ValueLayout.JAVA_INT,     // format A (1-5 = Q8,Q4,F16,BF16,F32)
-						ValueLayout.JAVA_INT,     // blockSize A for format
-						ValueLayout.JAVA_INT,     // typeSize A for format
-						ValueLayout.JAVA_INT,     // headerBytes A for format
-						ValueLayout.JAVA_LONG,    // device B
-						ValueLayout.JAVA_INT,     // offset B
-						ValueLayout.JAVA_INT,     // format B
-						ValueLayout.JAVA_INT,     // blocksize B
-						ValueLayout.JAVA_INT,     // typeSize B
-						ValueLayout.JAVA_INT,     // headerBytes B
-						ValueLayout.JAVA_INT	  // Number of elements in tensor
-						));
-		if(DEBUG) log.info("sdotSliceDevice:"+Llama3.sdotSliceDeviceHandle);
-		//if(DEBUG) log.info("cublasHandle:"+Llama3.cublasGetHandle);
-		//Llama3.cublasFreeHandle = linker.downcallHandle(
-		//		lookup.find("cublasHandleDestroy").get(),
-		//		FunctionDescriptor.ofVoid(
-		//				// return void
-		//				ValueLayout.JAVA_LONG  // pass long handle
-		//				));
-		//if(DEBUG) log.info("cublasHandleDestroy:"+Llama3.cublasFreeHandle);
-		Llama3.cudaInit = linker.downcallHandle(
-				lookup.find("cudaInit").get(),
-				FunctionDescriptor.ofVoid());
-		Llama3.cudaGetMemInfo = linker.downcallHandle(
-				lookup.find("cudaGetMemInfo").get(),
-				FunctionDescriptor.ofVoid(
-						ValueLayout.ADDRESS,    // size_t* free, writes to memorysegments
-						ValueLayout.ADDRESS     // size_t* total
-						));
-		if(DEBUG) log.info("cudaGetMemInfo:"+Llama3.cudaGetMemInfo);
-		//launch_rmsnorm_fp32_rowmajor(uint8_t* qA, int indexA, int formatA, int blockSizeA, int typeSizeA, int headerBytesA,
-	    //uint8_t* qB, int indexB, int formatB, int blockSizeB, int typeSizeB, int headerBytesB,
-	    //float* out, int size, float eps) {
-		Llama3.launchRmsnorm = linker.downcallHandle(
-				lookup.find("launch_rmsnorm_fp32_rowmajor").get(),
-				FunctionDescriptor.ofVoid(
-						ValueLayout.JAVA_LONG, // deviceptr x
-						ValueLayout.JAVA_INT, // offset into x
-						ValueLayout.JAVA_INT, // format x
-						ValueLayout.JAVA_INT, // blocksize x
-						ValueLayout.JAVA_INT, // typesiez x
-						ValueLayout.JAVA_INT, // headerbytes s
-						ValueLayout.JAVA_LONG, // deviceptr weights
-						ValueLayout.JAVA_INT, // offset into weights
-						ValueLayout.JAVA_INT, // format weights
-						ValueLayout.JAVA_INT, // blocksize weights
-						ValueLayout.JAVA_INT, // typesize weights
-						ValueLayout.JAVA_INT, // headerbytes weights
-						ValueLayout.JAVA_LONG, // deviceptr out
-						ValueLayout.JAVA_INT,   // size
-						ValueLayout.JAVA_FLOAT  // eps
-						)
-				);
-		if(DEBUG) log.info("launch_rmsnorm_fp32_rowmajor:"+Llama3.launchRmsnorm);
-		Llama3.launchSoftmaxInplace = linker.downcallHandle(
-				lookup.find("launch_row_softmax_inplace_fp32").get(),
-				FunctionDescriptor.ofVoid(
-						ValueLayout.JAVA_LONG, // S device address
-						ValueLayout.JAVA_INT, // offset
-						ValueLayout.JAVA_INT  // size
-						)
-				);
-		if(DEBUG) log.info("launch_row_softmax_inplace_fp32:"+Llama3.launchSoftmaxInplace);
-		//void launch_weighted_sum(uint8_t* Att, uint8_t* xb, uint8_t* vCache, int h, int headSize, 
-		// int attOffset, int xbOffset, int vcOffset, int kvDim, int kvMul, int position, int token, int size) 
-		Llama3.launchAV = linker.downcallHandle(
-			    lookup.find("launch_weighted_sum").get(),
-			    FunctionDescriptor.ofVoid(
-			        ValueLayout.JAVA_LONG, // Att
-			        ValueLayout.JAVA_LONG, // xb
-			        ValueLayout.JAVA_LONG, // vCache
-			        //int h, int headSize, int attOffset, int xbOffset,  
-			        ValueLayout.JAVA_INT, ValueLayout.JAVA_INT, ValueLayout.JAVA_INT, ValueLayout.JAVA_INT,
-			        ValueLayout.JAVA_INT, ValueLayout.JAVA_INT, //int kvDim, int kvMul
-			        ValueLayout.JAVA_INT, ValueLayout.JAVA_INT //int position, int token
-			    )
-			);
-		if(DEBUG) log.info("launch_weighted_sum:"+Llama3.launchAV);
-		// void launchMatmul(const uint8_t* qA, int indexA, int formatA, int blockSizeA, int typeSizeA, int headerBytesA,
-		//	    const uint8_t* qB, int indexB, int formatB, int blockSizeB, int typeSizeB, int headerBytesB,
-		//	    uint8_t* out, int dim0, int dim1) {
-		Llama3.launchMatmul = linker.downcallHandle(
-			    lookup.find("launch_Matmul").get(),
-			    FunctionDescriptor.ofVoid(
-			        ValueLayout.JAVA_LONG, // qA
-			        //int indexA, formatA, blockSizeA, typeSizeA, headerBytesA
-			        ValueLayout.JAVA_INT, ValueLayout.JAVA_INT, ValueLayout.JAVA_INT, ValueLayout.JAVA_INT, ValueLayout.JAVA_INT,
-			        ValueLayout.JAVA_LONG, // qB
-			        //int indexA, formatA, blockSizeA, typeSizeA, headerBytesA
-			        ValueLayout.JAVA_INT, ValueLayout.JAVA_INT, ValueLayout.JAVA_INT, ValueLayout.JAVA_INT, ValueLayout.JAVA_INT,
-			        ValueLayout.JAVA_LONG, // out
-			        ValueLayout.JAVA_INT, // dim0
-			        ValueLayout.JAVA_INT // dim1
-			    )
-			);
-		if(DEBUG) log.info("launch_Matmul:"+Llama3.launchMatmul);
-		//float launch_cpu_scalar_Dot(const uint8_t* d_q, int indexA, int formatA, int blockSizeA, int typeSizeA, int headerBytesA,
-		//	    const uint8_t* d_k, int indexB, int formatB, int blockSizeB, int typeSizeB, int headerBytesB, int size)
-		Llama3.sdotSimple = linker.downcallHandle(
-				lookup.find("launch_cpu_scalar_Dot").get(),
-				FunctionDescriptor.of(
-						ValueLayout.JAVA_FLOAT,   // return float
-						ValueLayout.JAVA_LONG,    // device A
-						ValueLayout.JAVA_INT ,    // offset A
-						ValueLayout.JAVA_INT,     // format A (1-5 = Q8,Q4,F16,BF16,F32)
-						ValueLayout.JAVA_INT,     // blockSize A for format
-						ValueLayout.JAVA_INT,     // typeSize A for format
-						ValueLayout.JAVA_INT,     // headerBytes A for format
-						ValueLayout.JAVA_LONG,    // device B
-						ValueLayout.JAVA_INT,     // offset B
-						ValueLayout.JAVA_INT,     // format B
-						ValueLayout.JAVA_INT,     // blocksize B
-						ValueLayout.JAVA_INT,     // typeSize B
-						ValueLayout.JAVA_INT,     // headerBytes B
-						ValueLayout.JAVA_INT	  // Number of elements in tensor
-						));
-		if(DEBUG) log.info("launch_cpu_scalar_Dot:"+Llama3.sdotSimple);
-		//void launch_qkscores(uint8_t* q, int qOffset, int formatA, int blockSizeA, int typeSizeA, int headerBlockA,
-	    //uint8_t* keyCache, int keyCacheOffset, int formatB, int blockSizeB, int typeSizeB, int headerBlockB, 
-	    //uint8_t* Att, int attOffset, 
-	    //int position, int token, int h, int headSize, int kvDim, int kvMul )
-		Llama3.launchQK = linker.downcallHandle(
-				lookup.find("launch_qkscores").get(),
-				FunctionDescriptor.ofVoid(
-						ValueLayout.JAVA_LONG,    // q
-						ValueLayout.JAVA_INT ,    // offset q
-						ValueLayout.JAVA_INT,     // format q (1-5 = Q8,Q4,F16,BF16,F32)
-						ValueLayout.JAVA_INT,     // blockSize q for format
-						ValueLayout.JAVA_INT,     // typeSize q for format
-						ValueLayout.JAVA_INT,     // headerBytes q for format
-						ValueLayout.JAVA_LONG,    // keyCache (keyCacheOffset computed in device kernel)
-						ValueLayout.JAVA_INT,     // format 
-						ValueLayout.JAVA_INT,     // blocksize 
-						ValueLayout.JAVA_INT,     // typeSize 
-						ValueLayout.JAVA_INT,     // headerBytes keyCache
-						ValueLayout.JAVA_LONG,    // Att
-						ValueLayout.JAVA_INT,     // attOffset 
-						ValueLayout.JAVA_INT,	  // position
-						ValueLayout.JAVA_INT,     // token 
-						ValueLayout.JAVA_INT,     // h
-						ValueLayout.JAVA_INT,     // headSize
-						ValueLayout.JAVA_INT,     // numHeads
-						ValueLayout.JAVA_INT,     // contextLength
-						ValueLayout.JAVA_INT,     // kvDim
-						ValueLayout.JAVA_INT	  // kvMul
-						));
-		if(DEBUG) log.info("launch_qkscores:"+Llama3.launchQK);
-	    //void launch_rope(const uint8_t* d_real, int indexA, int formatA, int blockSizeA, int typeSizeA, int headerBytesA,
-	    //const uint8_t* d_imag, int indexB, int formatB, int blockSizeB, int typeSizeB, int headerBytesB,
-	    //uint8_t* d_q, uint8_t* d_k, // state.q , state.k
-	    //int nTokens, int dim, int position, int headSize, int kvDim)
-		Llama3.launchRope = linker.downcallHandle(
-				lookup.find("launch_rope").get(),
-				FunctionDescriptor.ofVoid(
-						ValueLayout.JAVA_LONG,    // d_real weight
-						ValueLayout.JAVA_INT,    // index d_real
-						ValueLayout.JAVA_INT,     // format q (1-5 = Q8,Q4,F16,BF16,F32)
-						ValueLayout.JAVA_INT,     // blockSize q for format
-						ValueLayout.JAVA_INT,     // typeSize q for format
-						ValueLayout.JAVA_INT,     // headerBytes q for format
-						ValueLayout.JAVA_LONG,    // d_imag weight
-						ValueLayout.JAVA_INT,     // index d_imag
-						ValueLayout.JAVA_INT,     // format 
-						ValueLayout.JAVA_INT,     // blocksize 
-						ValueLayout.JAVA_INT,     // typeSize 
-						ValueLayout.JAVA_INT,     // headerBytes
-						ValueLayout.JAVA_LONG,    // d_q DeviceTensor state.q
-						ValueLayout.JAVA_LONG,    // d_k DeviceTensor state.k
-						ValueLayout.JAVA_INT,     // nTokens
-						ValueLayout.JAVA_INT,	  // dim
-						ValueLayout.JAVA_INT,     // position
-						ValueLayout.JAVA_INT,     // headSize
-						ValueLayout.JAVA_INT     // kvDim
-						));
-		if(DEBUG) log.info("launch_rope:"+Llama3.launchRope);
-	    Llama3.allocDevicePtr = linker.downcallHandle(
-		        lookup.find("allocDevicePtr").get(),
-		        FunctionDescriptor.of(ValueLayout.JAVA_LONG, // uint64_t device ptr
-		        					ValueLayout.JAVA_LONG) // size 
-		    );
-		if(DEBUG) log.info("allocDevicePtr:"+Llama3.allocDevicePtr);
-	    Llama3.freeDevicePtr = linker.downcallHandle(
-		        lookup.find("freeDevicePtr").get(),
-		        FunctionDescriptor.ofVoid(ValueLayout.JAVA_LONG) // uint64_t device ptr
-		    );
-		if(DEBUG) log.info("freeDevicePtr:"+Llama3.freeDevicePtr);
-		 // copyHostToDevice
-	    Llama3.copyHostToDeviceMH = linker.downcallHandle(
-	        lookup.find("copyHostToDevice").get(),
-	        FunctionDescriptor.ofVoid(ValueLayout.ADDRESS,   // uint8_t* tensor
-	                              ValueLayout.JAVA_LONG, // uint64_t device ptr
-	                              ValueLayout.JAVA_LONG) // int bytes
-	    );
-		if(DEBUG) log.info("copyHostToDevice:"+Llama3.copyHostToDeviceMH);
-	    // copyDeviceToHost
-	    // copyDeviceToHost
-	    Llama3.copyDeviceToHostMH = linker.downcallHandle(
-	        lookup.find("copyDeviceToHost").get(),
-	        FunctionDescriptor.ofVoid(ValueLayout.JAVA_LONG, // uint64_t device pt
-	                                  ValueLayout.JAVA_LONG,   // uint8_t* tensor
-	                                  ValueLayout.JAVA_LONG) // size_t bytes
-	    );
-		if(DEBUG) log.info("copyDeviceToHost:"+Llama3.copyDeviceToHostMH);
+	/**
+	 * Anything that changes the resolution is part of the key, a scan also depends on directory contents.
+	 */
+	private static String cacheKey(LibraryManifest manifest, List<File> dirs) {
+		StringBuilder sb = new StringBuilder();
+		sb.append(manifest == null ? "scan" : Integer.toHexString(manifest.source().hashCode()));
+		sb.append('|').append(System.getProperty("llama.Variant", ""));
+		sb.append('|').append(System.getProperty("os.arch"));
+		for (File dir : dirs) {
+			sb.append('|').append(dir.getAbsolutePath());
+			if (manifest == null)
+				sb.append('@').append(dir.lastModified());
+		}
+		return sb.toString();
+	}
 
-	    Llama3.copyFromNativeMH = linker.downcallHandle(
-	        lookup.find("copyFromNative").get(),
-	        FunctionDescriptor.ofVoid(ValueLayout.JAVA_LONG,   // uint8_t* tensor, or uint8_t** arraytensor
-	                                  ValueLayout.JAVA_LONG) // size_t bytes
-	    );
-		if(DEBUG) log.info("copyFromNative:"+Llama3.copyFromNativeMH);
-		Llama3.loadModelMH = linker.downcallHandle(
-			        lookup.find("load_model").get(),
-			        FunctionDescriptor.ofVoid(ValueLayout.JAVA_LONG, // uint8_t* tensor model path
-			        							ValueLayout.JAVA_INT)  // context size
-			);
-		if(DEBUG) log.info("load_model:"+Llama3.loadModelMH);
-	    Llama3.runModelMH = linker.downcallHandle(
-		        lookup.find("run_model").get(),
-		        FunctionDescriptor.of(ValueLayout.JAVA_INT,
-		        						ValueLayout.JAVA_LONG, // prompt StringTensor
-		        						ValueLayout.JAVA_FLOAT, // temp
-		        						ValueLayout.JAVA_FLOAT, // mip_p
-		        						ValueLayout.JAVA_FLOAT, // top_p
-		        						ValueLayout.JAVA_LONG // IntTensor return tokens
-		        						) // StringTensor return dialog uint8_t* tensor, or uint8_t** ArrayTensor
-		    );
-		if(DEBUG) log.info("run_model:"+Llama3.runModelMH);
-	    Llama3.runModelTokenizeMH = linker.downcallHandle(
-		        lookup.find("run_model_tokenize").get(),
-		        FunctionDescriptor.of(ValueLayout.JAVA_INT,
-		        						ValueLayout.JAVA_LONG, // prompt StringTensor
-		        						ValueLayout.JAVA_FLOAT, // temp
-		        						ValueLayout.JAVA_FLOAT, // mip_p
-		        						ValueLayout.JAVA_FLOAT, // top_p
-		        						ValueLayout.JAVA_LONG // IntTensor return tokens
-		        						) // StringTensor return dialog uint8_t* tensor, or uint8_t** ArrayTensor
-		    );
-		if(DEBUG) log.info("run_model_tokenize:"+Llama3.runModelTokenizeMH);
-		Llama3.stringToTokenMH = linker.downcallHandle(
-			    lookup.find("string_to_token").get(),
-			    FunctionDescriptor.of(ValueLayout.JAVA_INT,
-			        					ValueLayout.JAVA_LONG, // prompt StringTensor
-			        					ValueLayout.JAVA_LONG // IntTensor return tokens
-			        					) // StringTensor return dialog uint8_t* tensor, or uint8_t** ArrayTensor
-			    );
-		if(DEBUG) log.info("string_to_token:"+Llama3.stringToTokenMH);
-		Llama3.tokenToStringMH = linker.downcallHandle(
-				lookup.find("token_to_string").get(),
-				FunctionDescriptor.of(ValueLayout.JAVA_INT,
-				        					ValueLayout.JAVA_LONG, // IntTensor of tokens
-				        					ValueLayout.JAVA_INT, // size
-				        					ValueLayout.JAVA_LONG // StringTensor return string
-				        					)
-				);
-		if(DEBUG) log.info("token_to_string:"+Llama3.tokenToStringMH);
+	/**
+	 * @return cached files in load order if the key matches and no file has changed, else null
+	 */
+	private static List<File> readCache(Path cache, String key, List<File> dirs) {
+		try {
+			if (!Files.isRegularFile(cache, LinkOption.NOFOLLOW_LINKS))
+				return null;
+			if (!isPrivate(cache) || !isPrivate(cache.toAbsolutePath().getParent())) {
+				log.warn("Ignoring native resolution cache "+cache+", it or its directory is not private to "+System.getProperty("user.name"));
+				return null;
+			}
+			List<String> lines = Files.readAllLines(cache, StandardCharsets.UTF_8);
+			if (lines.size() < 2 || !lines.get(0).equals(key))
+				return null;
+			List<File> files = new ArrayList<>(lines.size() - 2);
+			for (String line : lines.subList(2, lines.size())) {
+				String[] f = line.split("\t");
+				File file = new File(f[0]);
+				if (f.length != 3 || file.length() != Long.parseLong(f[1]) || file.lastModified() != Long.parseLong(f[2]))
+					return null;
+				if (!inTrustedDirs(file, dirs)) {
+					log.warn("Ignoring native resolution cache "+cache+", "+file+" is outside java.library.path");
+					return null;
+				}
+				files.add(file);
+			}
+			variant = lines.get(1);
+			return files;
+		} catch (IOException | RuntimeException e) {
+			log.info("Ignoring native resolution cache "+cache+": "+e);
+			return null;
+		}
+	}
+
+	private static void writeCache(Path cache, String key, List<File> files) {
+		List<String> lines = new ArrayList<>(files.size() + 2);
+		lines.add(key);
+		lines.add(variant);
+		for (File f : files)
+			lines.add(f.getPath()+"\t"+f.length()+"\t"+f.lastModified());
+		try {
+			Path dir = cache.toAbsolutePath().getParent();
+			if (!Files.isDirectory(dir)) {
+				if (dir.getFileSystem().supportedFileAttributeViews().contains("posix"))
+					Files.createDirectories(dir, PosixFilePermissions.asFileAttribute(PosixFilePermissions.fromString("rwx------")));
+				else
+					Files.createDirectories(dir);
+			}
+			// write aside and rename so a concurrently starting JVM never reads a partial file,
+			// the temporary file is created owner only
+			Path tmp = Files.createTempFile(dir, "llama4j-native", ".tmp");
+			Files.write(tmp, lines, StandardCharsets.UTF_8);
+			Files.move(tmp, cache, StandardCopyOption.REPLACE_EXISTING, StandardCopyOption.ATOMIC_MOVE);
+		} catch (IOException | RuntimeException e) {
+			log.info("Could not write native resolution cache "+cache+": "+e);
+		}
+	}
+
+	/**
+	 * Accumulate time spent in a startup phase, library load, handle binding, model load and so on.
+	 * @param phase label, reported in first recorded order
+	 * @param nanos elapsed time
+	 */
+	public static void recordPhase(String phase, long nanos) {
+		synchronized (phases) {
+			long[] p = phases.computeIfAbsent(phase, _ -> new long[2]);
+			p[0] += nanos;
+			p[1]++;
+		}
+	}
+
+	/**
+	 * @return one line of per-phase startup timings, with counts for phases recorded more than once
+	 */
+	public static String startupReport() {
+		StringBuilder sb = new StringBuilder("startup:");
+		synchronized (phases) {
+			for (Map.Entry<String, long[]> e : phases.entrySet()) {
+				long[] p = e.getValue();
+				sb.append(' ').append(e.getKey()).append(' ').append(TimeUnit.NANOSECONDS.toMillis(p[0])).append(" ms");
+				if (p[1] > 1)
+					sb.append(" (").append(p[1]).append(')');
+				sb.append(',');
+			}
+		}
+		sb.setLength(sb.length() - 1);
+		return sb.toString();
 	}
 }
@@ -0,0 +1,617 @@
+package com.llama4j.ffi;
+
+import java.lang.foreign.FunctionDescriptor;
+import java.lang.foreign.Linker;
+import java.lang.foreign.MemorySegment;
+import java.lang.foreign.SymbolLookup;
+import java.lang.foreign.ValueLayout;
+import java.lang.invoke.MethodHandle;
+import java.lang.invoke.MethodHandles;
+import java.lang.invoke.MethodType;
+import java.util.Optional;
+
+import org.apache.commons.logging.Log;
+import org.apache.commons.logging.LogFactory;
+
+/**
+ * Downcall handles into llamagpu.<p>
+ * Every handle is a static final field so the JIT treats it as a constant and can inline
+ * the call site, which it cannot do for the mutable fields these replaced. Handles are grouped
+ * into holder classes that are initialized by the JVM on first use, so a run that only tokenizes
+ * never binds the kernels. {@link #bindAll()} forces every group up front.<p>
+ * Only the exports of the bundled libraries are bound strictly. Everything added since is bound with
+ * {@link #bindOptional}, so an older llamagpu that lacks one export still loads its group and fails
+ * only when that handle is called. Callers with a fallback test {@link #exports(String)} first.<p>
+ * Small calls that never upcall or block are bound with {@link Linker.Option#critical(boolean)}
+ * to skip the thread state transition.
+ * @author Jonathan Groff Copyright (C) NeoCoreTechs 2025
+ */
+public final class NativeMethods {
+	public static boolean DEBUG = false;
+	private static final Log log = LogFactory.getLog(NativeMethods.class);
+	private static final Linker LINKER = Linker.nativeLinker();
+	private static final SymbolLookup LOOKUP;
+	private static final Linker.Option CRITICAL = Linker.Option.critical(false);
+
+	static {
+		NativeLoader.load();
+		LOOKUP = SymbolLookup.loaderLookup();
+	}
+
+	private NativeMethods() {}
+
+	private static MethodHandle bind(String name, FunctionDescriptor function, Linker.Option... options) {
+		long start = System.nanoTime();
+		MemorySegment symbol = LOOKUP.find(name).orElseThrow(() -> new UnsatisfiedLinkError("llamagpu symbol not found: "+name));
+		MethodHandle mh = LINKER.downcallHandle(symbol, function, options);
+		NativeLoader.recordPhase("bind", System.nanoTime() - start);
+		if(DEBUG) log.info(name+":"+mh);
+		return mh;
+	}
+
+	/**
+	 * Bind an export the library may lack. A missing symbol yields a handle of the same type
+	 * that throws {@link UnsupportedOperationException} when invoked, so it stays a constant
+	 * and cannot fail the rest of its holder class.
+	 */
+	private static MethodHandle bindOptional(String name, FunctionDescriptor function, Linker.Option... options) {
+		if (LOOKUP.find(name).isPresent())
+			return bind(name, function, options);
+		if(DEBUG) log.info(name+": not exported");
+		MethodType type = function.toMethodType();
+		try {
+			MethodHandle missing = MethodHandles.lookup().findStatic(NativeMethods.class, "missing", MethodType.methodType(Object.class, String.class));
+			missing = MethodHandles.insertArguments(missing, 0, name).asType(MethodType.methodType(type.returnType()));
+			return MethodHandles.dropArguments(missing, 0, type.parameterList());
+		} catch (ReflectiveOperationException e) {
+			throw new RuntimeException(e);
+		}
+	}
+
+	private static Object missing(String name) {
+		throw new UnsupportedOperationException("llamagpu does not export "+name);
+	}
+
+	/**
+	 * @return whether the loaded library exports the symbol, for callers of an optional handle that can fall back
+	 */
+	public static boolean exports(String name) {
+		Optional<MemorySegment> symbol = LOOKUP.find(name);
+		return symbol.isPresent();
+	}
+
+	/**
+	 * Bind a C library function rather than a llamagpu one.
+	 */
+	private static MethodHandle bindSystem(String name, FunctionDescriptor function, Linker.Option... options) {
+		MemorySegment symbol = LINKER.defaultLookup().find(name).orElseThrow(() -> new UnsatisfiedLinkError("C library symbol not found: "+name));
+		MethodHandle mh = LINKER.downcallHandle(symbol, function, options);
+		if(DEBUG) log.info(name+":"+mh);
+		return mh;
+	}
+
+	/**
+	 * Bind every handle now rather than on first call.
+	 */
+	public static void bindAll() {
+		try {
+			for (Class<?> group : NativeMethods.class.getDeclaredClasses()) {
+				// bound on demand, the symbol only exists on Linux
+				if (group != Affinity.class)
+					MethodHandles.lookup().ensureInitialized(group);
+			}
+		} catch (IllegalAccessException e) {
+			throw new RuntimeException(e);
+		}
+	}
+
+	/** Compute kernels and device dot products used by the tensor code. */
+	public static final class Kernels {
+		private Kernels() {}
+		//float getFloat(const uint64_t q, int index, int blockSize, int typeSize, int headerBytes) {
+		//    const float* d_q = reinterpret_cast<const float*>(q);
+		public static final MethodHandle getFloat = bind("getFloat",
+				FunctionDescriptor.of(
+						ValueLayout.JAVA_FLOAT, // return float
+						ValueLayout.JAVA_LONG,  // device A
+						ValueLayout.JAVA_INT,   // index
+						ValueLayout.JAVA_INT,	// format
+						ValueLayout.JAVA_INT,	// blocksize
+						ValueLayout.JAVA_INT,	// typesize
+						ValueLayout.JAVA_INT	// headerBytes
+				), CRITICAL);
+
+		public static final MethodHandle sdotSliceDeviceHandle = bind("sdotSliceDevice",
+				FunctionDescriptor.of(
+						//float sdotSliceDevice(const uint8_t* qA, int indexA, int formatA, int blockSizeA, int typeSizeA, int headerBytesA,
+						//	    const uint8_t* qB, int indexB, int formatB, int blockSizeB, int typeSizeB, int headerBytesB,
+						//	    int N)
+						ValueLayout.JAVA_FLOAT,   // return float
+						ValueLayout.JAVA_LONG,    // device A
+						ValueLayout.JAVA_INT ,    // offset A
+						ValueLayout.JAVA_INT,     // format A (1-5 = Q8,Q4,F16,BF16,F32)
+						ValueLayout.JAVA_INT,     // blockSize A for format
+						ValueLayout.JAVA_INT,     // typeSize A for format
+						ValueLayout.JAVA_INT,     // headerBytes A for format
+						ValueLayout.JAVA_LONG,    // device B
+						ValueLayout.JAVA_INT,     // offset B
+						ValueLayout.JAVA_INT,     // format B
+						ValueLayout.JAVA_INT,     // blocksize B
+						ValueLayout.JAVA_INT,     // typeSize B
+						ValueLayout.JAVA_INT,     // headerBytes B
+						ValueLayout.JAVA_INT	  // Number of elements in tensor
+				));
+
+		//launch_rmsnorm_fp32_rowmajor(uint8_t* qA, int indexA, int formatA, int blockSizeA, int typeSizeA, int headerBytesA,
+		//uint8_t* qB, int indexB, int formatB, int blockSizeB, int typeSizeB, int headerBytesB,
+		//float* out, int size, float eps) {
+		public static final MethodHandle launchRmsnorm = bind("launch_rmsnorm_fp32_rowmajor",
+				FunctionDescriptor.ofVoid(
+						ValueLayout.JAVA_LONG, // deviceptr x
+						ValueLayout.JAVA_INT, // offset into x
+						ValueLayout.JAVA_INT, // format x
+						ValueLayout.JAVA_INT, // blocksize x
+						ValueLayout.JAVA_INT, // typesiez x
+						ValueLayout.JAVA_INT, // headerbytes s
+						ValueLayout.JAVA_LONG, // deviceptr weights
+						ValueLayout.JAVA_INT, // offset into weights
+						ValueLayout.JAVA_INT, // format weights
+						ValueLayout.JAVA_INT, // blocksize weights
+						ValueLayout.JAVA_INT, // typesize weights
+						ValueLayout.JAVA_INT, // headerbytes weights
+						ValueLayout.JAVA_LONG, // deviceptr out
+						ValueLayout.JAVA_INT,   // size
+						ValueLayout.JAVA_FLOAT  // eps
+				)
+				);
+
+		public static final MethodHandle launchSoftmaxInplace = bind("launch_row_softmax_inplace_fp32",
+				FunctionDescriptor.ofVoid(
+						ValueLayout.JAVA_LONG, // S device address
+						ValueLayout.JAVA_INT, // offset
+						ValueLayout.JAVA_INT  // size
+				)
+				);
+
+		//void launch_weighted_sum(uint8_t* Att, uint8_t* xb, uint8_t* vCache, int h, int headSize,
+		// int attOffset, int xbOffset, int vcOffset, int kvDim, int kvMul, int position, int token, int size)
+		public static final MethodHandle launchAV = bind("launch_weighted_sum",
+				FunctionDescriptor.ofVoid(
+						ValueLayout.JAVA_LONG, // Att
+						ValueLayout.JAVA_LONG, // xb
+						ValueLayout.JAVA_LONG, // vCache
+						//int h, int headSize, int attOffset, int xbOffset,
+						ValueLayout.JAVA_INT, ValueLayout.JAVA_INT, ValueLayout.JAVA_INT, ValueLayout.JAVA_INT,
+						ValueLayout.JAVA_INT, ValueLayout.JAVA_INT, //int kvDim, int kvMul
+						ValueLayout.JAVA_INT, ValueLayout.JAVA_INT //int position, int token
+				)
+				);
+
+		// void launchMatmul(const uint8_t* qA, int indexA, int formatA, int blockSizeA, int typeSizeA, int headerBytesA,
+		//	    const uint8_t* qB, int indexB, int formatB, int blockSizeB, int typeSizeB, int headerBytesB,
+		//	    uint8_t* out, int dim0, int dim1) {
+		public static final MethodHandle launchMatmul = bind("launch_Matmul",
+				FunctionDescriptor.ofVoid(
+						ValueLayout.JAVA_LONG, // qA
+						//int indexA, formatA, blockSizeA, typeSizeA, headerBytesA
+						ValueLayout.JAVA_INT, ValueLayout.JAVA_INT, ValueLayout.JAVA_INT, ValueLayout.JAVA_INT, ValueLayout.JAVA_INT,
+						ValueLayout.JAVA_LONG, // qB
+						//int indexA, formatA, blockSizeA, typeSizeA, headerBytesA
+						ValueLayout.JAVA_INT, ValueLayout.JAVA_INT, ValueLayout.JAVA_INT, ValueLayout.JAVA_INT, ValueLayout.JAVA_INT,
+						ValueLayout.JAVA_LONG, // out
+						ValueLayout.JAVA_INT, // dim0
+						ValueLayout.JAVA_INT // dim1
+				)
+				);
+
+		//float launch_cpu_scalar_Dot(const uint8_t* d_q, int indexA, int formatA, int blockSizeA, int typeSizeA, int headerBytesA,
+		//	    const uint8_t* d_k, int indexB, int formatB, int blockSizeB, int typeSizeB, int headerBytesB, int size)
+		public static final MethodHandle sdotSimple = bind("launch_cpu_scalar_Dot",
+				FunctionDescriptor.of(
+						ValueLayout.JAVA_FLOAT,   // return float
+						ValueLayout.JAVA_LONG,    // device A
+						ValueLayout.JAVA_INT ,    // offset A
+						ValueLayout.JAVA_INT,     // format A (1-5 = Q8,Q4,F16,BF16,F32)
+						ValueLayout.JAVA_INT,     // blockSize A for format
+						ValueLayout.JAVA_INT,     // typeSize A for format
+						ValueLayout.JAVA_INT,     // headerBytes A for format
+						ValueLayout.JAVA_LONG,    // device B
+						ValueLayout.JAVA_INT,     // offset B
+						ValueLayout.JAVA_INT,     // format B
+						ValueLayout.JAVA_INT,     // blocksize B
+						ValueLayout.JAVA_INT,     // typeSize B
+						ValueLayout.JAVA_INT,     // headerBytes B
+						ValueLayout.JAVA_INT	  // Number of elements in tensor
+				));
+
+		//void launch_qkscores(uint8_t* q, int qOffset, int formatA, int blockSizeA, int typeSizeA, int headerBlockA,
+		//uint8_t* keyCache, int keyCacheOffset, int formatB, int blockSizeB, int typeSizeB, int headerBlockB,
+		//uint8_t* Att, int attOffset,
+		//int position, int token, int h, int headSize, int kvDim, int kvMul )
+		public static final MethodHandle launchQK = bind("launch_qkscores",
+				FunctionDescriptor.ofVoid(
+						ValueLayout.JAVA_LONG,    // q
+						ValueLayout.JAVA_INT ,    // offset q
+						ValueLayout.JAVA_INT,     // format q (1-5 = Q8,Q4,F16,BF16,F32)
+						ValueLayout.JAVA_INT,     // blockSize q for format
+						ValueLayout.JAVA_INT,     // typeSize q for format
+						ValueLayout.JAVA_INT,     // headerBytes q for format
+						ValueLayout.JAVA_LONG,    // keyCache (keyCacheOffset computed in device kernel)
+						ValueLayout.JAVA_INT,     // format
+						ValueLayout.JAVA_INT,     // blocksize
+						ValueLayout.JAVA_INT,     // typeSize
+						ValueLayout.JAVA_INT,     // headerBytes keyCache
+						ValueLayout.JAVA_LONG,    // Att
+						ValueLayout.JAVA_INT,     // attOffset
+						ValueLayout.JAVA_INT,	  // position
+						ValueLayout.JAVA_INT,     // token
+						ValueLayout.JAVA_INT,     // h
+						ValueLayout.JAVA_INT,     // headSize
+						ValueLayout.JAVA_INT,     // numHeads
+						ValueLayout.JAVA_INT,     // contextLength
+						ValueLayout.JAVA_INT,     // kvDim
+						ValueLayout.JAVA_INT	  // kvMul
+				));
+
+		//void launch_rope(const uint8_t* d_real, int indexA, int formatA, int blockSizeA, int typeSizeA, int headerBytesA,
+		//const uint8_t* d_imag, int indexB, int formatB, int blockSizeB, int typeSizeB, int headerBytesB,
+		//uint8_t* d_q, uint8_t* d_k, // state.q , state.k
+		//int nTokens, int dim, int position, int headSize, int kvDim)
+		public static final MethodHandle launchRope = bind("launch_rope",
+				FunctionDescriptor.ofVoid(
+						ValueLayout.JAVA_LONG,    // d_real weight
+						ValueLayout.JAVA_INT,    // index d_real
+						ValueLayout.JAVA_INT,     // format q (1-5 = Q8,Q4,F16,BF16,F32)
+						ValueLayout.JAVA_INT,     // blockSize q for format
+						ValueLayout.JAVA_INT,     // typeSize q for format
+						ValueLayout.JAVA_INT,     // headerBytes q for format
+						ValueLayout.JAVA_LONG,    // d_imag weight
+						ValueLayout.JAVA_INT,     // index d_imag
+						ValueLayout.JAVA_INT,     // format
+						ValueLayout.JAVA_INT,     // blocksize
+						ValueLayout.JAVA_INT,     // typeSize
+						ValueLayout.JAVA_INT,     // headerBytes
+						ValueLayout.JAVA_LONG,    // d_q DeviceTensor state.q
+						ValueLayout.JAVA_LONG,    // d_k DeviceTensor state.k
+						ValueLayout.JAVA_INT,     // nTokens
+						ValueLayout.JAVA_INT,	  // dim
+						ValueLayout.JAVA_INT,     // position
+						ValueLayout.JAVA_INT,     // headSize
+						ValueLayout.JAVA_INT     // kvDim
+				));
+	}
+
+	/** CUDA initialization, device memory and host/device copies. */
+	public static final class Device {
+		private Device() {}
+		public static final MethodHandle cudaInit = bind("cudaInit",
+				FunctionDescriptor.ofVoid());
+
+		public static final MethodHandle cudaGetMemInfo = bind("cudaGetMemInfo",
+				FunctionDescriptor.ofVoid(
+						ValueLayout.ADDRESS,    // size_t* free, writes to memorysegments
+						ValueLayout.ADDRESS     // size_t* total
+				));
+
+		public static final MethodHandle allocDevicePtr = bind("allocDevicePtr",
+				FunctionDescriptor.of(ValueLayout.JAVA_LONG, // uint64_t device ptr
+						ValueLayout.JAVA_LONG) // size
+				);
+
+		public static final MethodHandle freeDevicePtr = bind("freeDevicePtr",
+				FunctionDescriptor.ofVoid(ValueLayout.JAVA_LONG) // uint64_t device ptr
+				);
+
+		// copyHostToDevice
+		public static final MethodHandle copyHostToDeviceMH = bind("copyHostToDevice",
+				FunctionDescriptor.ofVoid(ValueLayout.ADDRESS,   // uint8_t* tensor
+						ValueLayout.JAVA_LONG, // uint64_t device ptr
+						ValueLayout.JAVA_LONG) // int bytes
+				);
+
+		public static final MethodHandle copyDeviceToHostMH = bind("copyDeviceToHost",
+				FunctionDescriptor.ofVoid(ValueLayout.JAVA_LONG, // uint64_t device pt
+						ValueLayout.JAVA_LONG,   // uint8_t* tensor
+						ValueLayout.JAVA_LONG) // size_t bytes
+				);
+
+		public static final MethodHandle copyFromNativeMH = bind("copyFromNative",
+				FunctionDescriptor.ofVoid(ValueLayout.JAVA_LONG,   // uint8_t* tensor, or uint8_t** arraytensor
+						ValueLayout.JAVA_LONG) // size_t bytes
+				);
+	}
+
+	/** Model load and single shot generation. */
+	public static final class Model {
+		private Model() {}
+		public static final MethodHandle loadModelMH = bind("load_model",
+				FunctionDescriptor.ofVoid(ValueLayout.JAVA_LONG, // uint8_t* tensor model path
+						ValueLayout.JAVA_INT)  // context size
+				);
+
+		public static final MethodHandle runModelMH = bind("run_model",
+				FunctionDescriptor.of(ValueLayout.JAVA_INT,
+						ValueLayout.JAVA_LONG, // prompt StringTensor
+						ValueLayout.JAVA_FLOAT, // temp
+						ValueLayout.JAVA_FLOAT, // mip_p
+						ValueLayout.JAVA_FLOAT, // top_p
+						ValueLayout.JAVA_LONG // IntTensor return tokens
+				) // StringTensor return dialog uint8_t* tensor, or uint8_t** ArrayTensor
+				);
+
+		public static final MethodHandle runModelTokenizeMH = bindOptional("run_model_tokenize",
+				FunctionDescriptor.of(ValueLayout.JAVA_INT,
+						ValueLayout.JAVA_LONG, // prompt StringTensor
+						ValueLayout.JAVA_FLOAT, // temp
+						ValueLayout.JAVA_FLOAT, // mip_p
+						ValueLayout.JAVA_FLOAT, // top_p
+						ValueLayout.JAVA_LONG // IntTensor return tokens
+				) // StringTensor return dialog uint8_t* tensor, or uint8_t** ArrayTensor
+				);
+
+		//int run_model_stream(const uint8_t* prompt, float temp, float min_p, float top_p, int* tokens, void (*onToken)(int))
+		public static final MethodHandle runModelStreamMH = bindOptional("run_model_stream",
+				FunctionDescriptor.of(ValueLayout.JAVA_INT,
+						ValueLayout.JAVA_LONG, // prompt StringTensor
+						ValueLayout.JAVA_FLOAT, // temp
+						ValueLayout.JAVA_FLOAT, // mip_p
+						ValueLayout.JAVA_FLOAT, // top_p
+						ValueLayout.JAVA_LONG, // IntTensor return tokens
+						ValueLayout.JAVA_LONG // upcall stub invoked per sampled token
+				)
+				);
+
+		public static final MethodHandle runModelTokenizeStreamMH = bindOptional("run_model_tokenize_stream",
+				FunctionDescriptor.of(ValueLayout.JAVA_INT,
+						ValueLayout.JAVA_LONG, // prompt StringTensor
+						ValueLayout.JAVA_FLOAT, // temp
+						ValueLayout.JAVA_FLOAT, // mip_p
+						ValueLayout.JAVA_FLOAT, // top_p
+						ValueLayout.JAVA_LONG, // IntTensor return tokens
+						ValueLayout.JAVA_LONG // upcall stub invoked per sampled token
+				)
+				);
+	}
+
+	/** Per-conversation contexts, batching, KV cache reuse and state snapshots. */
+	public static final class Sessions {
+		private Sessions() {}
+		//uint64_t open_session(int contextSize), new llama context over the loaded model, 0 on failure
+		public static final MethodHandle openSessionMH = bindOptional("open_session",
+				FunctionDescriptor.of(ValueLayout.JAVA_LONG, // session handle
+						ValueLayout.JAVA_INT) // context size
+				);
+
+		public static final MethodHandle closeSessionMH = bindOptional("close_session",
+				FunctionDescriptor.ofVoid(ValueLayout.JAVA_LONG) // session handle
+				);
+
+		//int run_model_session(uint64_t session, const uint8_t* prompt, float temp, float min_p, float top_p, int* tokens, void (*onToken)(int))
+		public static final MethodHandle runModelSessionMH = bindOptional("run_model_session",
+				FunctionDescriptor.of(ValueLayout.JAVA_INT,
+						ValueLayout.JAVA_LONG, // session handle
+						ValueLayout.JAVA_LONG, // prompt StringTensor
+						ValueLayout.JAVA_FLOAT, // temp
+						ValueLayout.JAVA_FLOAT, // mip_p
+						ValueLayout.JAVA_FLOAT, // top_p
+						ValueLayout.JAVA_LONG, // IntTensor return tokens
+						ValueLayout.JAVA_LONG // upcall stub per sampled token, 0 for none
+				)
+				);
+
+		public static final MethodHandle runModelTokenizeSessionMH = bindOptional("run_model_tokenize_session",
+				FunctionDescriptor.of(ValueLayout.JAVA_INT,
+						ValueLayout.JAVA_LONG, // session handle
+						ValueLayout.JAVA_LONG, // prompt StringTensor
+						ValueLayout.JAVA_FLOAT, // temp
+						ValueLayout.JAVA_FLOAT, // mip_p
+						ValueLayout.JAVA_FLOAT, // top_p
+						ValueLayout.JAVA_LONG, // IntTensor return tokens
+						ValueLayout.JAVA_LONG // upcall stub per sampled token, 0 for none
+				)
+				);
+
+		//int session_begin(uint64_t session, const uint8_t* prompt, float temp, float min_p, float top_p)
+		public static final MethodHandle sessionBeginMH = bindOptional("session_begin",
+				FunctionDescriptor.of(ValueLayout.JAVA_INT, // prompt tokens queued, -1 exceeds context
+						ValueLayout.JAVA_LONG, // session handle
+						ValueLayout.JAVA_LONG, // prompt StringTensor
+						ValueLayout.JAVA_FLOAT, // temp
+						ValueLayout.JAVA_FLOAT, // min_p
+						ValueLayout.JAVA_FLOAT) // top_p
+				);
+
+		//int decode_batch(const uint64_t* sessions, int n, int* outTokens)
+		public static final MethodHandle decodeBatchMH = bindOptional("decode_batch",
+				FunctionDescriptor.of(ValueLayout.JAVA_INT, // tokens evaluated
+						ValueLayout.JAVA_LONG, // uint64_t* session handles
+						ValueLayout.JAVA_INT, // number of sessions
+						ValueLayout.JAVA_LONG) // int* one sampled token per session, -1 when done
+				);
+
+		//int run_model_session_tokens(uint64_t session, const int* tokens, int n, float temp, float min_p, float top_p, int* outTokens, void (*onToken)(int))
+		// evaluates the tokens at the current KV position, then samples
+		public static final MethodHandle runModelSessionTokensMH = bindOptional("run_model_session_tokens",
+				FunctionDescriptor.of(ValueLayout.JAVA_INT,
+						ValueLayout.JAVA_LONG, // session handle
+						ValueLayout.JAVA_LONG, // int* prompt tokens
+						ValueLayout.JAVA_INT, // number of prompt tokens
+						ValueLayout.JAVA_FLOAT, // temp
+						ValueLayout.JAVA_FLOAT, // mip_p
+						ValueLayout.JAVA_FLOAT, // top_p
+						ValueLayout.JAVA_LONG, // IntTensor return tokens
+						ValueLayout.JAVA_LONG // upcall stub per sampled token, 0 for none
+				)
+				);
+
+		//void session_keep(uint64_t session, int nKeep), removes KV positions >= nKeep
+		public static final MethodHandle sessionKeepMH = bindOptional("session_keep",
+				FunctionDescriptor.ofVoid(ValueLayout.JAVA_LONG, // session handle
+						ValueLayout.JAVA_INT) // positions to keep
+				);
+
+		//int session_n_past(uint64_t session)
+		public static final MethodHandle sessionNPastMH = bindOptional("session_n_past",
+				FunctionDescriptor.of(ValueLayout.JAVA_INT, // positions in KV cache
+						ValueLayout.JAVA_LONG), // session handle
+				CRITICAL);
+
+		//size_t session_state_size(uint64_t session)
+		public static final MethodHandle sessionStateSizeMH = bindOptional("session_state_size",
+				FunctionDescriptor.of(ValueLayout.JAVA_LONG, // bytes needed for KV state
+						ValueLayout.JAVA_LONG) // session handle
+				);
+
+		//size_t session_state_get(uint64_t session, uint8_t* dst, size_t size)
+		public static final MethodHandle sessionStateGetMH = bindOptional("session_state_get",
+				FunctionDescriptor.of(ValueLayout.JAVA_LONG, // bytes written
+						ValueLayout.JAVA_LONG, // session handle
+						ValueLayout.JAVA_LONG, // uint8_t* destination
+						ValueLayout.JAVA_LONG) // destination size
+				);
+
+		//size_t session_state_set(uint64_t session, const uint8_t* src, size_t size)
+		public static final MethodHandle sessionStateSetMH = bindOptional("session_state_set",
+				FunctionDescriptor.of(ValueLayout.JAVA_LONG, // bytes read, 0 on failure
+						ValueLayout.JAVA_LONG, // session handle
+						ValueLayout.JAVA_LONG, // const uint8_t* source
+						ValueLayout.JAVA_LONG) // source size
+				);
+
+		//int session_eval(uint64_t session, const int* tokens, int n), prefill without sampling
+		public static final MethodHandle sessionEvalMH = bindOptional("session_eval",
+				FunctionDescriptor.of(ValueLayout.JAVA_INT, // 0 ok, -1 exceeds context
+						ValueLayout.JAVA_LONG, // session handle
+						ValueLayout.JAVA_LONG, // int* tokens
+						ValueLayout.JAVA_INT) // number of tokens
+				);
+	}
+
+	/** Vocabulary lookups, single and batched. */
+	public static final class Tokenizer {
+		private Tokenizer() {}
+		public static final MethodHandle stringToTokenMH = bindOptional("string_to_token",
+				FunctionDescriptor.of(ValueLayout.JAVA_INT,
+						ValueLayout.JAVA_LONG, // prompt StringTensor
+						ValueLayout.JAVA_LONG // IntTensor return tokens
+				), // StringTensor return dialog uint8_t* tensor, or uint8_t** ArrayTensor
+				CRITICAL);
+
+		//int string_to_token_n(const uint8_t* str, int* tokens, int capacity)
+		public static final MethodHandle stringToTokenNMH = bindOptional("string_to_token_n",
+				FunctionDescriptor.of(ValueLayout.JAVA_INT, // tokens written, minus the tokens needed if capacity is exceeded
+						ValueLayout.JAVA_LONG, // prompt StringTensor
+						ValueLayout.JAVA_LONG, // IntTensor return tokens
+						ValueLayout.JAVA_INT // capacity of return tokens
+				),
+				CRITICAL);
+
+		public static final MethodHandle tokenToStringMH = bindOptional("token_to_string",
+				FunctionDescriptor.of(ValueLayout.JAVA_INT,
+						ValueLayout.JAVA_LONG, // IntTensor of tokens
+						ValueLayout.JAVA_INT, // size
+						ValueLayout.JAVA_LONG // StringTensor return string
+				),
+				CRITICAL);
+
+		//int vocab_size()
+		public static final MethodHandle vocabSizeMH = bindOptional("vocab_size",
+				FunctionDescriptor.of(ValueLayout.JAVA_INT), // tokens in loaded model vocabulary
+				CRITICAL);
+
+		//int string_to_token_batch(const char** strs, int n, int* outTokens, int capacity, int* offsets)
+		public static final MethodHandle stringToTokenBatchMH = bindOptional("string_to_token_batch",
+				FunctionDescriptor.of(ValueLayout.JAVA_INT, // total tokens, -1 if capacity exceeded
+						ValueLayout.JAVA_LONG, // char** ArrayStringTensor
+						ValueLayout.JAVA_INT, // number of strings
+						ValueLayout.JAVA_LONG, // IntTensor packed return tokens
+						ValueLayout.JAVA_INT, // capacity of return tokens
+						ValueLayout.JAVA_LONG // IntTensor n+1 offsets per string
+				)
+				);
+
+		//int token_to_string_batch(const int* tokens, const int* offsets, int n, char* out, int capacity, int* outOffsets)
+		public static final MethodHandle tokenToStringBatchMH = bindOptional("token_to_string_batch",
+				FunctionDescriptor.of(ValueLayout.JAVA_INT, // total bytes, -1 if capacity exceeded
+						ValueLayout.JAVA_LONG, // IntTensor packed tokens
+						ValueLayout.JAVA_LONG, // IntTensor n+1 offsets per run
+						ValueLayout.JAVA_INT, // number of runs
+						ValueLayout.JAVA_LONG, // StringTensor packed return text
+						ValueLayout.JAVA_INT, // capacity of return text
+						ValueLayout.JAVA_LONG // IntTensor n+1 byte offsets per run
+				)
+				);
+	}
+
+	/** Pooled sentence embeddings from the model in embedding mode. */
+	public static final class Embeddings {
+		private Embeddings() {}
+		//int embedding_dim()
+		public static final MethodHandle embeddingDimMH = bindOptional("embedding_dim",
+				FunctionDescriptor.of(ValueLayout.JAVA_INT), // n_embd of the loaded model
+				CRITICAL);
+
+		//int embed_batch(const char** strs, int n, int pooling, float* out, int dim)
+		// evaluates all inputs as separate sequences of one batch on an embeddings context over the loaded model,
+		// splitting only when they exceed n_batch, and writes one pooled row of dim floats per input
+		public static final MethodHandle embedBatchMH = bindOptional("embed_batch",
+				FunctionDescriptor.of(ValueLayout.JAVA_INT, // inputs embedded, -(i+1) if input i exceeds the context
+						ValueLayout.JAVA_LONG, // char** ArrayStringTensor
+						ValueLayout.JAVA_INT, // number of inputs
+						ValueLayout.JAVA_INT, // llama_pooling_type, 1 mean, 2 cls, 3 last
+						ValueLayout.JAVA_LONG, // float* n x dim return embeddings
+						ValueLayout.JAVA_INT // dim
+				));
+	}
+
+	/** Draft model and logits level decoding for speculative generation. */
+	public static final class Speculative {
+		private Speculative() {}
+		//int load_draft_model(const uint8_t* path, int contextSize)
+		public static final MethodHandle loadDraftModelMH = bindOptional("load_draft_model",
+				FunctionDescriptor.of(ValueLayout.JAVA_INT, // 0 ok, -1 load failed, -2 vocabulary differs from the model
+						ValueLayout.JAVA_LONG, // uint8_t* tensor model path
+						ValueLayout.JAVA_INT // context size
+				));
+
+		//uint64_t open_draft_session(int contextSize), like open_session over the draft model, closed by close_session
+		public static final MethodHandle openDraftSessionMH = bindOptional("open_draft_session",
+				FunctionDescriptor.of(ValueLayout.JAVA_LONG, // session handle, 0 on failure
+						ValueLayout.JAVA_INT // context size
+				));
+
+		//int session_decode(uint64_t session, const int* tokens, int n, float* logits)
+		// evaluates the tokens at the current KV position and writes the logits of every one of them
+		public static final MethodHandle sessionDecodeMH = bindOptional("session_decode",
+				FunctionDescriptor.of(ValueLayout.JAVA_INT, // 0 ok, -1 exceeds context
+						ValueLayout.JAVA_LONG, // session handle
+						ValueLayout.JAVA_LONG, // int* tokens
+						ValueLayout.JAVA_INT, // number of tokens
+						ValueLayout.JAVA_LONG // float* n x vocab return logits
+				));
+	}
+
+	/** Direct access to the model's own logits buffer for sampling in Java. */
+	public static final class Sampling {
+		private Sampling() {}
+		//const float* session_logits(uint64_t session)
+		// llama_get_logits_ith(ctx, -1), the vocab logits of the last evaluated token, valid until the next decode
+		public static final MethodHandle sessionLogitsMH = bindOptional("session_logits",
+				FunctionDescriptor.of(ValueLayout.JAVA_LONG, // float* vocab logits, 0 if nothing evaluated yet
+						ValueLayout.JAVA_LONG // session handle
+				), CRITICAL);
+	}
+
+	/** Thread placement from the C library, Linux only. */
+	public static final class Affinity {
+		private Affinity() {}
+		//int sched_setaffinity(pid_t pid, size_t cpusetsize, const cpu_set_t* mask)
+		// pid 0 is the calling thread, returns 0 or -1 with errno set
+		public static final MethodHandle schedSetaffinityMH = bindSystem("sched_setaffinity",
+				FunctionDescriptor.of(ValueLayout.JAVA_INT, // 0 ok, -1 error
+						ValueLayout.JAVA_INT, // pid_t, 0 for the calling thread
+						ValueLayout.JAVA_LONG, // size_t bytes of mask
+						ValueLayout.ADDRESS // cpu_set_t* bit mask
+				));
+	}
+}